@@ -0,0 +1,166 @@
+package de.avpod.telegrambot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.avpod.telegrambot.aws.InMemoryPersistentStorageWrapper;
+import de.avpod.telegrambot.telegram.*;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.telegram.telegrambots.ApiContextInitializer;
+import org.telegram.telegrambots.api.methods.BotApiMethod;
+import org.telegram.telegrambots.api.methods.groupadministration.SetChatPhoto;
+import org.telegram.telegrambots.api.methods.send.*;
+import org.telegram.telegrambots.api.methods.stickers.AddStickerToSet;
+import org.telegram.telegrambots.api.methods.stickers.CreateNewStickerSet;
+import org.telegram.telegrambots.api.methods.stickers.UploadStickerFile;
+import org.telegram.telegrambots.api.objects.File;
+import org.telegram.telegrambots.api.objects.Message;
+import org.telegram.telegrambots.api.objects.Update;
+import org.telegram.telegrambots.bots.AbsSender;
+import org.telegram.telegrambots.updateshandlers.SentCallback;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Dispatch of text updates through the configured processor list. Storage and the Bot API are replaced by
+ * in-memory stand-ins and the user executor runs tasks in the calling thread, so the measured operation is
+ * the routing itself plus the handoff of the response to the outbound scheduler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AvpodBotDispatchBenchmark {
+    private static final int USERS_COUNT = 64;
+
+    /**
+     * "/keyboard" is answered by the keyboard processor, any other text falls through the whole list.
+     */
+    @Param({"/keyboard", "hello"})
+    private String messageText;
+
+    private AvpodBot bot;
+    private Update[] updates;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        ApiContextInitializer.init();
+        InMemoryPersistentStorageWrapper storage = new InMemoryPersistentStorageWrapper(FaultInjector.NONE);
+        OutboundMessageScheduler outboundMessageScheduler = new OutboundMessageScheduler(new DiscardingSender(),
+                1_000_000_000d, Integer.MAX_VALUE, 1_000_000_000d, Integer.MAX_VALUE, 2, 0);
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        List<UpdateProcessor> updateProcessors = Arrays.<UpdateProcessor>asList(
+                new CallbackUpdateProcessor(null, storage, null, null, null, Runnable::run),
+                new CustomKeyboardTextUpdateProcessor(),
+                new UploadDocumentUpdateProcessor(null, null, Runnable::run, storage, null, null, null),
+                new UploadImageUpdateProcessor(null, null, Runnable::run, storage, null, null, null, null),
+                new ManualFinishTextUpdateProcessor(storage),
+                new FallbackTextUpdateProcessor()
+        ).stream()
+                .map((processor) -> new TimedUpdateProcessor(processor, meterRegistry))
+                .collect(Collectors.toList());
+        // updates are sent over and over, an empty window lets all of them through
+        bot = new AvpodBot("benchmark-token", updateProcessors, (username) -> Runnable::run,
+                storage, outboundMessageScheduler, new UpdateDeduplicator(0, Optional.empty(), 0));
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        updates = new Update[USERS_COUNT];
+        for (int i = 0; i < USERS_COUNT; i++) {
+            String username = "user-" + i;
+            storage.insertUser(username, "First", "Last", i, FlowStatus.WAITING_FILES);
+            updates[i] = objectMapper.readValue("{\"update_id\":" + i + "," +
+                    "\"message\":{\"message_id\":" + i + "," +
+                    "\"from\":{\"id\":" + i + ",\"first_name\":\"First\",\"is_bot\":false,\"username\":\"" + username + "\"}," +
+                    "\"chat\":{\"id\":" + i + ",\"type\":\"private\"}," +
+                    "\"date\":1538000000," +
+                    "\"text\":\"" + messageText + "\"}}", Update.class);
+        }
+    }
+
+    @Benchmark
+    public void onUpdateReceived() {
+        next = (next + 1) % updates.length;
+        bot.onUpdateReceived(updates[next]);
+    }
+
+    private static class DiscardingSender extends AbsSender {
+
+        @Override
+        public Message sendDocument(SendDocument sendDocument) {
+            return new Message();
+        }
+
+        @Override
+        public Message sendPhoto(SendPhoto sendPhoto) {
+            return new Message();
+        }
+
+        @Override
+        public Message sendVideo(SendVideo sendVideo) {
+            return new Message();
+        }
+
+        @Override
+        public Message sendVideoNote(SendVideoNote sendVideoNote) {
+            return new Message();
+        }
+
+        @Override
+        public Message sendSticker(SendSticker sendSticker) {
+            return new Message();
+        }
+
+        @Override
+        public Message sendAudio(SendAudio sendAudio) {
+            return new Message();
+        }
+
+        @Override
+        public Message sendVoice(SendVoice sendVoice) {
+            return new Message();
+        }
+
+        @Override
+        public List<Message> sendMediaGroup(SendMediaGroup sendMediaGroup) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Boolean setChatPhoto(SetChatPhoto setChatPhoto) {
+            return true;
+        }
+
+        @Override
+        public Boolean addStickerToSet(AddStickerToSet addStickerToSet) {
+            return true;
+        }
+
+        @Override
+        public Boolean createNewStickerSet(CreateNewStickerSet createNewStickerSet) {
+            return true;
+        }
+
+        @Override
+        public File uploadStickerFile(UploadStickerFile uploadStickerFile) {
+            return new File();
+        }
+
+        @Override
+        protected <T extends Serializable, Method extends BotApiMethod<T>, Callback extends SentCallback<T>> void sendApiMethodAsync(
+                Method method, Callback callback) {
+            callback.onResult(method, null);
+        }
+
+        @Override
+        protected <T extends Serializable, Method extends BotApiMethod<T>> T sendApiMethod(Method method) {
+            return null;
+        }
+    }
+}
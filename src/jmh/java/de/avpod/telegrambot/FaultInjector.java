@@ -0,0 +1,33 @@
+package de.avpod.telegrambot;
+
+import lombok.AllArgsConstructor;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Latency and failures of the in-memory stand-ins. Each call waits the latency plus or minus a random jitter
+ * and then fails with the given probability.
+ */
+@AllArgsConstructor
+public class FaultInjector {
+    public static final FaultInjector NONE = new FaultInjector(0, 0, 0);
+
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double errorRate;
+
+    public void call(String operation) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delayMillis = latencyMillis + (jitterMillis > 0 ? random.nextLong(-jitterMillis, jitterMillis + 1) : 0);
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted during " + operation, e);
+            }
+        }
+        if (errorRate > 0 && random.nextDouble() < errorRate)
+            throw new IllegalStateException("Injected failure of " + operation);
+    }
+}
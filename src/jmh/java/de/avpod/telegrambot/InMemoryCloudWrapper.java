@@ -0,0 +1,63 @@
+package de.avpod.telegrambot;
+
+import lombok.AllArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads the whole content of uploaded files and keeps only their sizes and types.
+ */
+@Log4j2
+@AllArgsConstructor
+public class InMemoryCloudWrapper implements CloudWrapper {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Map<String, StoredFile> files = new ConcurrentHashMap<>();
+    private final FaultInjector faultInjector;
+
+    @Override
+    public String uploadFile(UploadFile uploadFile) {
+        faultInjector.call("uploadFile");
+        String cloudId = uploadFile.getUsername() + "/" + uploadFile.getName();
+        long size = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream content = uploadFile.getContent().getThrows()) {
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                size += read;
+                if (uploadFile.getProgressListener() != null)
+                    uploadFile.getProgressListener().onProgress(size, uploadFile.getSize());
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Cannot read content of file " + uploadFile.getName(), e);
+        }
+        files.put(cloudId, new StoredFile(size, DocumentType.UNKNOWN));
+        return cloudId;
+    }
+
+    @Override
+    public void recognizeDocument(String cloudId, DocumentType documentType) {
+        faultInjector.call("recognizeDocument");
+        if (files.computeIfPresent(cloudId, (id, file) -> new StoredFile(file.size, documentType)) == null)
+            throw new IllegalStateException("Cannot find file for cloud id:" + cloudId);
+    }
+
+    @Override
+    public void deleteDocument(String cloudId) {
+        faultInjector.call("deleteDocument");
+        files.remove(cloudId);
+    }
+
+    public int filesCount() {
+        return files.size();
+    }
+
+    @AllArgsConstructor
+    private static class StoredFile {
+        private final long size;
+        private final DocumentType documentType;
+    }
+}
@@ -0,0 +1,75 @@
+package de.avpod.telegrambot;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Submissions of many producer threads for a shared set of users, the way updates of the polling session
+ * and the handler executor meet in the user executor. Rejected submissions are counted as operations too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class UserAwareExecutorBenchmark {
+    private static final int USERS_COUNT = 1024;
+
+    @Param({"lanes", "serial"})
+    private String executorMode;
+
+    private UserAwareExecutor userAwareExecutor;
+    private String[] usernames;
+
+    @State(Scope.Thread)
+    public static class Producer {
+        private int next;
+
+        String nextUser(String[] usernames) {
+            next = (next + 1) % usernames.length;
+            return usernames[next];
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        usernames = new String[USERS_COUNT];
+        for (int i = 0; i < USERS_COUNT; i++) {
+            usernames[i] = "user-" + i;
+        }
+        if (executorMode.equals("serial")) {
+            userAwareExecutor = new SerialUserAwareExecutor(
+                    Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()), 100,
+                    new SimpleMeterRegistry());
+        } else {
+            userAwareExecutor = new LaneUserAwareExecutor(0, 10000, 100,
+                    LaneUserAwareExecutor.RejectionPolicy.BLOCK, 1000, new SimpleMeterRegistry());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        userAwareExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public void getExecutor(Producer producer, Blackhole blackhole) {
+        blackhole.consume(userAwareExecutor.getExecutor(producer.nextUser(usernames)));
+    }
+
+    @Benchmark
+    public void submit(Producer producer, Blackhole blackhole) {
+        try {
+            userAwareExecutor.submit(producer.nextUser(usernames), () -> Blackhole.consumeCPU(16));
+        } catch (RejectedExecutionException e) {
+            blackhole.consume(e);
+        }
+    }
+}
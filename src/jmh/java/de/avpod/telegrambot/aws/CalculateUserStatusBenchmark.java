@@ -0,0 +1,64 @@
+package de.avpod.telegrambot.aws;
+
+import de.avpod.telegrambot.DocumentType;
+import de.avpod.telegrambot.FlowStatus;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Status calculation runs on every document type change. Users with a persisted documents mask are compared
+ * against the precomputed masks, users written before the mask existed get it calculated from their documents.
+ * Passports are never generated so the flow is never finished.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CalculateUserStatusBenchmark {
+
+    @Param({"1", "10", "100", "500"})
+    private int documentsCount;
+
+    private UserInfo userInfo;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        DocumentType[] types = DocumentType.values();
+        List<StoredDocument> documents = new ArrayList<>();
+        while (documents.size() < documentsCount) {
+            DocumentType documentType = types[random.nextInt(types.length)];
+            if (documentType == DocumentType.PASSPORT)
+                continue;
+            documents.add(StoredDocument.builder()
+                    .id(UUID.randomUUID().toString())
+                    .documentType(documentType.name())
+                    .cloudIdentifier(UUID.randomUUID().toString())
+                    .savedFilename("benchmark_" + documents.size() + ".jpg")
+                    .build());
+        }
+        userInfo = UserInfo.builder()
+                .username("benchmark")
+                .status(FlowStatus.WAITING_FILES.name())
+                .documents(documents)
+                .build();
+    }
+
+    @Benchmark
+    public FlowStatus calculateUserStatus() {
+        return DynamoDBWrapper.calculateUserStatus(userInfo);
+    }
+
+    @Benchmark
+    public FlowStatus calculateUserStatusWithoutMask() {
+        userInfo.setDocumentsMask(null);
+        return DynamoDBWrapper.calculateUserStatus(userInfo);
+    }
+}
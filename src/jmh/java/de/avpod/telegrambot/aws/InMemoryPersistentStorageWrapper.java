@@ -0,0 +1,245 @@
+package de.avpod.telegrambot.aws;
+
+import de.avpod.telegrambot.DocumentHashIndex;
+import de.avpod.telegrambot.DocumentType;
+import de.avpod.telegrambot.DocumentUpdateResult;
+import de.avpod.telegrambot.FaultInjector;
+import de.avpod.telegrambot.FlowStatus;
+import de.avpod.telegrambot.PersistentStorageWrapper;
+import de.avpod.telegrambot.UploadedDocument;
+import de.avpod.telegrambot.telegram.UnrecognizedDocumentInfo;
+import lombok.AllArgsConstructor;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps users in a map and derives statuses with the same rules as {@link DynamoDBWrapper}. Every call goes
+ * through the fault injector first. Reads return copies, so callers never see a user in the middle of a change.
+ */
+@AllArgsConstructor
+public class InMemoryPersistentStorageWrapper implements PersistentStorageWrapper {
+    private final Map<String, UserInfo> users = new ConcurrentHashMap<>();
+    private final FaultInjector faultInjector;
+
+    @Override
+    public void updateFlowStatus(String userName, FlowStatus flowStatus) {
+        faultInjector.call("updateFlowStatus");
+        UserInfo userInfo = existingUser(userName);
+        synchronized (userInfo) {
+            userInfo.setStatus(flowStatus.name());
+            if (flowStatus == FlowStatus.FINISHED)
+                userInfo.setRecognitionPending(null);
+        }
+    }
+
+    @Override
+    public FlowStatus getFlowStatus(String userName) {
+        faultInjector.call("getFlowStatus");
+        UserInfo userInfo = users.get(userName);
+        if (userInfo == null)
+            return FlowStatus.NEW;
+        synchronized (userInfo) {
+            return FlowStatus.valueOf(userInfo.getStatus());
+        }
+    }
+
+    @Override
+    public String saveDocumentInfo(String userName, String telegramFileId, String cloudIdentifier,
+                                   Optional<String> originalFileName, String cloudFileName,
+                                   Optional<String> telegramThumbnailId) {
+        faultInjector.call("saveDocumentInfo");
+        return appendDocuments(userName, Collections.singletonList(DynamoDBWrapper.uploadedDocument(telegramFileId,
+                cloudIdentifier, originalFileName, cloudFileName, telegramThumbnailId)), Optional.empty()).get(0);
+    }
+
+    @Override
+    public String saveDocumentAndUpdateFlowStatus(String userName, String telegramFileId, String cloudIdentifier,
+                                                  Optional<String> originalFileName, String cloudFileName,
+                                                  Optional<String> telegramThumbnailId, FlowStatus flowStatus) {
+        faultInjector.call("saveDocumentAndUpdateFlowStatus");
+        return appendDocuments(userName, Collections.singletonList(DynamoDBWrapper.uploadedDocument(telegramFileId,
+                cloudIdentifier, originalFileName, cloudFileName, telegramThumbnailId)), Optional.of(flowStatus)).get(0);
+    }
+
+    @Override
+    public List<String> saveDocumentsAndUpdateFlowStatus(String userName, List<UploadedDocument> documents,
+                                                         FlowStatus flowStatus) {
+        faultInjector.call("saveDocumentsAndUpdateFlowStatus");
+        return appendDocuments(userName, documents, Optional.of(flowStatus));
+    }
+
+    private List<String> appendDocuments(String userName, List<UploadedDocument> documents,
+                                         Optional<FlowStatus> flowStatus) {
+        UserInfo userInfo = existingUser(userName);
+        List<String> ids = new ArrayList<>(documents.size());
+        synchronized (userInfo) {
+            for (UploadedDocument document : documents) {
+                String id = UUID.randomUUID().toString();
+                ids.add(id);
+                userInfo.getDocuments().add(DynamoDBWrapper.toStoredDocument(id, document));
+                if (document.getFingerprint() != null) {
+                    if (userInfo.getContentHashes() == null)
+                        userInfo.setContentHashes(new HashSet<>());
+                    userInfo.getContentHashes().add(document.getFingerprint().getSha256());
+                    document.getFingerprint().getPerceptualHash().ifPresent((hash) -> {
+                        if (userInfo.getPerceptualHashes() == null)
+                            userInfo.setPerceptualHashes(new HashSet<>());
+                        userInfo.getPerceptualHashes().add(hash);
+                    });
+                }
+            }
+            userInfo.setUnrecognizedCount(userInfo.getUnrecognizedCount() + documents.size());
+            userInfo.setRecognitionPending(UserInfo.PENDING_RECOGNITION);
+            flowStatus.ifPresent((status) -> userInfo.setStatus(status.name()));
+        }
+        return ids;
+    }
+
+    @Override
+    public DocumentHashIndex getDocumentHashIndex(String userName) {
+        faultInjector.call("getDocumentHashIndex");
+        UserInfo userInfo = users.get(userName);
+        if (userInfo == null)
+            return new DocumentHashIndex(Collections.emptySet(), Collections.emptySet());
+        synchronized (userInfo) {
+            return new DocumentHashIndex(
+                    userInfo.getContentHashes() == null ?
+                            Collections.emptySet() :
+                            new HashSet<>(userInfo.getContentHashes()),
+                    userInfo.getPerceptualHashes() == null ?
+                            Collections.emptySet() :
+                            new HashSet<>(userInfo.getPerceptualHashes())
+            );
+        }
+    }
+
+    @Override
+    public void insertUser(String userName, String firstName, String lastName, long chatId, FlowStatus flowStatus) {
+        faultInjector.call("insertUser");
+        users.put(userName, UserInfo.builder()
+                .username(userName)
+                .firstName(firstName)
+                .lastName(lastName)
+                .chatId(chatId)
+                .status(flowStatus.name())
+                .documents(new ArrayList<>())
+                .documentsMask(0L)
+                .unrecognizedCount(0)
+                .build());
+    }
+
+    @Override
+    public Collection<UserInfo> queryUsersForImageRecognition() {
+        faultInjector.call("queryUsersForImageRecognition");
+        return users.values()
+                .stream()
+                .map(InMemoryPersistentStorageWrapper::copy)
+                .filter((userInfo) -> UserInfo.PENDING_RECOGNITION.equals(userInfo.getRecognitionPending()) &&
+                        !FlowStatus.FINISHED.name().equals(userInfo.getStatus()) &&
+                        !FlowStatus.NEW.name().equals(userInfo.getStatus()))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<UnrecognizedDocumentInfo> queryUnrecognizedDocuments(String username) {
+        faultInjector.call("queryUnrecognizedDocuments");
+        return DynamoDBWrapper.unrecognizedDocuments(copy(existingUser(username)));
+    }
+
+    @Override
+    public void markDocumentAsNotifiedForRecognition(String username, String documentId) {
+        faultInjector.call("markDocumentAsNotifiedForRecognition");
+        doUpdateDocumentType(username, documentId, DocumentType.UNKNOWN_REQUESTED);
+    }
+
+    @Override
+    public UserInfo getFullInfo(String userName) {
+        faultInjector.call("getFullInfo");
+        UserInfo userInfo = users.get(userName);
+        return userInfo == null ? null : copy(userInfo);
+    }
+
+    @Override
+    public DocumentUpdateResult deleteDocument(String userName, String documentId) {
+        faultInjector.call("deleteDocument");
+        UserInfo userInfo = existingUser(userName);
+        synchronized (userInfo) {
+            Optional<StoredDocument> deletedDocument = DynamoDBWrapper.findDocument(userInfo, documentId);
+            if (!deletedDocument.isPresent())
+                return new DocumentUpdateResult(FlowStatus.valueOf(userInfo.getStatus()), Optional.empty());
+            userInfo.getDocuments().remove(deletedDocument.get());
+            DynamoDBWrapper.removeContentHashes(userInfo, deletedDocument.get());
+            DynamoDBWrapper.applyDocumentTypeChange(userInfo,
+                    Optional.of(DocumentType.valueOf(deletedDocument.get().getDocumentType())), Optional.empty(),
+                    DynamoDBWrapper.hasDocumentOfType(userInfo));
+            FlowStatus flowStatus = DynamoDBWrapper.calculateUserStatus(userInfo);
+            userInfo.setStatus(flowStatus.name());
+            userInfo.setRecognitionPending(DynamoDBWrapper.calculateRecognitionPending(userInfo));
+            return new DocumentUpdateResult(flowStatus,
+                    Optional.ofNullable(deletedDocument.get().getCloudIdentifier()));
+        }
+    }
+
+    @Override
+    public DocumentUpdateResult updateDocumentType(String userName, String documentId, DocumentType documentType) {
+        faultInjector.call("updateDocumentType");
+        return doUpdateDocumentType(userName, documentId, documentType);
+    }
+
+    private DocumentUpdateResult doUpdateDocumentType(String userName, String documentId, DocumentType documentType) {
+        UserInfo userInfo = existingUser(userName);
+        synchronized (userInfo) {
+            Optional<StoredDocument> updatedDocument = DynamoDBWrapper.findDocument(userInfo, documentId);
+            updatedDocument.ifPresent((document) -> {
+                DocumentType previousType = DocumentType.valueOf(document.getDocumentType());
+                document.setDocumentType(documentType.name());
+                DynamoDBWrapper.applyDocumentTypeChange(userInfo, Optional.of(previousType),
+                        Optional.of(documentType), DynamoDBWrapper.hasDocumentOfType(userInfo));
+            });
+            FlowStatus flowStatus = DynamoDBWrapper.calculateUserStatus(userInfo);
+            userInfo.setStatus(flowStatus.name());
+            userInfo.setRecognitionPending(DynamoDBWrapper.calculateRecognitionPending(userInfo));
+            return new DocumentUpdateResult(flowStatus, updatedDocument.map(StoredDocument::getCloudIdentifier));
+        }
+    }
+
+    private UserInfo existingUser(String userName) {
+        UserInfo userInfo = users.get(userName);
+        if (userInfo == null)
+            throw new IllegalStateException("Cannot find user:" + userName);
+        return userInfo;
+    }
+
+    private static UserInfo copy(UserInfo userInfo) {
+        synchronized (userInfo) {
+            return UserInfo.builder()
+                    .username(userInfo.getUsername())
+                    .status(userInfo.getStatus())
+                    .firstName(userInfo.getFirstName())
+                    .lastName(userInfo.getLastName())
+                    .chatId(userInfo.getChatId())
+                    .documents(userInfo.getDocuments()
+                            .stream()
+                            .map(InMemoryPersistentStorageWrapper::copy)
+                            .collect(Collectors.toList()))
+                    .recognitionPending(userInfo.getRecognitionPending())
+                    .documentsMask(userInfo.getDocumentsMask())
+                    .unrecognizedCount(userInfo.getUnrecognizedCount())
+                    .contentHashes(userInfo.getContentHashes() == null ?
+                            null :
+                            new HashSet<>(userInfo.getContentHashes()))
+                    .perceptualHashes(userInfo.getPerceptualHashes() == null ?
+                            null :
+                            new HashSet<>(userInfo.getPerceptualHashes()))
+                    .build();
+        }
+    }
+
+    private static StoredDocument copy(StoredDocument document) {
+        return new StoredDocument(document.getId(), document.getDocumentType(), document.getCloudIdentifier(),
+                document.getOriginalFilename(), document.getSavedFilename(), document.getTelegramFileId(),
+                document.getTelegramThumbnailId(), document.getContentSha256(), document.getPerceptualHash());
+    }
+}
@@ -0,0 +1,230 @@
+package de.avpod.telegrambot.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.avpod.telegrambot.TextContents;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+import org.telegram.telegrambots.ApiContextInitializer;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+/**
+ * Runs the bot with in-memory storage and cloud against {@link TelegramApiStub} and lets concurrent users go
+ * through the whole flow: greeting, upload of documents, answers to the recognition prompts and the manual
+ * finish. Prints count, failures, throughput and latency percentiles per stage.
+ * <p>
+ * mvn -P benchmarks test-compile exec:exec -Dbenchmark.main=de.avpod.telegrambot.load.LoadGenerator
+ * -Djmh.args="--load.users=200 --load.cloud.errorRate=0.01"
+ * <p>
+ * Any other application property can be passed the same way, e.g. --telegram.executor.mode=virtual.
+ */
+@Log4j2
+public class LoadGenerator {
+    private static final String TOKEN = "load-test-token";
+
+    private final TelegramApiStub telegramApi;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final int documentsPerUser;
+    private final int fileSizeBytes;
+    private final long timeoutMillis;
+    private final StageStatistics greeting = new StageStatistics("greeting");
+    private final StageStatistics upload = new StageStatistics("upload");
+    private final StageStatistics prompt = new StageStatistics("prompt");
+    private final StageStatistics recognize = new StageStatistics("recognize");
+    private final StageStatistics finish = new StageStatistics("finish");
+
+    private LoadGenerator(TelegramApiStub telegramApi, int documentsPerUser, int fileSizeBytes, long timeoutMillis) {
+        this.telegramApi = telegramApi;
+        this.documentsPerUser = documentsPerUser;
+        this.fileSizeBytes = fileSizeBytes;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ApiContextInitializer.init();
+        try (TelegramApiStub telegramApi = new TelegramApiStub(TOKEN, 16)) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("telegram.token", TOKEN);
+            properties.put("telegram.mode", "polling");
+            properties.put("telegram.api.baseUrl", telegramApi.getBaseUrl());
+            properties.put("telegram.api.fileBaseUrl", telegramApi.getFileBaseUrl());
+            properties.put("cloud.backend", "memory");
+            properties.put("storage.backend", "memory");
+            // the limits of the real Bot API would be the only thing measured
+            properties.put("telegram.outbound.globalRatePerSecond", 100000);
+            properties.put("telegram.outbound.globalBurst", 100000);
+            properties.put("telegram.outbound.perChatRatePerSecond", 1000);
+            properties.put("telegram.outbound.perChatBurst", 1000);
+
+            ConfigurableApplicationContext context = new SpringApplicationBuilder(LoadTestConfiguration.class)
+                    .web(WebApplicationType.NONE)
+                    .properties(properties)
+                    .run(args);
+            int exitCode;
+            try {
+                Environment environment = context.getEnvironment();
+                LoadGenerator loadGenerator = new LoadGenerator(telegramApi,
+                        environment.getProperty("load.documentsPerUser", Integer.class, 2),
+                        environment.getProperty("load.fileSizeBytes", Integer.class, 256 * 1024),
+                        TimeUnit.SECONDS.toMillis(environment.getProperty("load.timeoutSeconds", Long.class, 60L)));
+                exitCode = loadGenerator.run(environment.getProperty("load.users", Integer.class, 50));
+            } finally {
+                context.close();
+            }
+            System.exit(exitCode);
+        }
+    }
+
+    private int run(int usersCount) throws InterruptedException {
+        log.warn("Starting flow of {} users with {} documents of {} bytes each",
+                usersCount, documentsPerUser, fileSizeBytes);
+        ExecutorService users = Executors.newFixedThreadPool(usersCount);
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < usersCount; i++) {
+            int userIndex = i;
+            users.execute(() -> {
+                try {
+                    simulateUser(userIndex);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    log.error("Flow of user {} failed", userIndex, e);
+                }
+            });
+        }
+        users.shutdown();
+        users.awaitTermination(1, TimeUnit.HOURS);
+        double seconds = (System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+
+        System.out.println();
+        System.out.println(String.format("%d users finished in %.1f s", usersCount, seconds));
+        System.out.println(StageStatistics.header());
+        int failures = 0;
+        for (StageStatistics stage : Arrays.asList(greeting, upload, prompt, recognize, finish)) {
+            System.out.println(stage.report());
+            failures += stage.getFailures();
+        }
+        return failures == 0 ? 0 : 1;
+    }
+
+    /**
+     * Stops at the first failed stage, later stages of the user are not counted.
+     */
+    private void simulateUser(int userIndex) throws InterruptedException {
+        long chatId = 1000 + userIndex;
+        String username = "load-user-" + userIndex;
+
+        long startNanos = greeting.start();
+        telegramApi.sendUpdate(textUpdate(chatId, username, "/start"));
+        if (!await(greeting, startNanos, chatId, (message) ->
+                TextContents.GREETINGS_TEXT.getText().equals(message.getText())).isPresent())
+            return;
+
+        for (int i = 0; i < documentsPerUser; i++) {
+            String fileId = "file-" + userIndex + "-" + i;
+            byte[] content = new byte[fileSizeBytes];
+            ThreadLocalRandom.current().nextBytes(content);
+            telegramApi.addFile(fileId, content);
+
+            startNanos = upload.start();
+            telegramApi.sendUpdate(documentUpdate(chatId, username, fileId, content.length));
+            Optional<TelegramApiStub.SentMessage> uploaded = await(upload, startNanos, chatId, (message) ->
+                    TextContents.DOCUMENT_UPLOAD_SUCCESS.getText().equals(message.getText()) ||
+                            TextContents.DOCUMENT_UPLOAD_ERROR.getText().equals(message.getText()));
+            if (!uploaded.isPresent())
+                return;
+        }
+
+        // prompts are sent by the recognition job independently of the upload answers
+        for (int i = 0; i < documentsPerUser; i++) {
+            startNanos = prompt.start();
+            Optional<TelegramApiStub.SentMessage> recognitionPrompt = await(prompt, startNanos, chatId, (message) ->
+                    message.getReplyMarkup() != null && message.getReplyMarkup().has("inline_keyboard"));
+            if (!recognitionPrompt.isPresent())
+                return;
+
+            // the first button is a real document type, the last one deletes the document
+            JsonNode button = recognitionPrompt.get().getReplyMarkup().get("inline_keyboard").get(0).get(0);
+            int promptId = recognitionPrompt.get().getMessageId();
+            startNanos = recognize.start();
+            telegramApi.sendUpdate(callbackUpdate(chatId, username, promptId, button.get("callback_data").asText()));
+            if (!await(recognize, startNanos, chatId, (message) ->
+                    message.getMethod().equals("deletemessage") && message.getMessageId() == promptId).isPresent())
+                return;
+        }
+
+        startNanos = finish.start();
+        telegramApi.sendUpdate(textUpdate(chatId, username, TextContents.ANSWER_NO_ALL_DOCUMENTS_ARE_THERE.getText()));
+        await(finish, startNanos, chatId, (message) ->
+                TextContents.ALL_DOCUMENTS_RECEIVED.getText().equals(message.getText()));
+    }
+
+    /**
+     * Error answers of the bot count as failures the same as timeouts.
+     */
+    private Optional<TelegramApiStub.SentMessage> await(StageStatistics stage, long startNanos, long chatId,
+                                                        Predicate<TelegramApiStub.SentMessage> predicate)
+            throws InterruptedException {
+        Optional<TelegramApiStub.SentMessage> message = telegramApi.awaitMessage(chatId, predicate, timeoutMillis);
+        if (!message.isPresent() || TextContents.DOCUMENT_UPLOAD_ERROR.getText().equals(message.get().getText())) {
+            log.warn("Stage {} failed for chat {}", stage.getName(), chatId);
+            stage.failed();
+            return Optional.empty();
+        }
+        stage.succeeded(startNanos);
+        return message;
+    }
+
+    private ObjectNode textUpdate(long chatId, String username, String text) {
+        ObjectNode update = objectMapper.createObjectNode();
+        message(update.putObject("message"), chatId, username).put("text", text);
+        return update;
+    }
+
+    private ObjectNode documentUpdate(long chatId, String username, String fileId, int size) {
+        ObjectNode update = objectMapper.createObjectNode();
+        message(update.putObject("message"), chatId, username).putObject("document")
+                .put("file_id", fileId)
+                .put("file_name", fileId + ".pdf")
+                .put("mime_type", "application/pdf")
+                .put("file_size", size);
+        return update;
+    }
+
+    private ObjectNode callbackUpdate(long chatId, String username, int promptId, String callbackData) {
+        ObjectNode update = objectMapper.createObjectNode();
+        ObjectNode callbackQuery = update.putObject("callback_query");
+        callbackQuery.put("id", UUID.randomUUID().toString());
+        callbackQuery.put("chat_instance", String.valueOf(chatId));
+        callbackQuery.put("data", callbackData);
+        user(callbackQuery.putObject("from"), chatId, username);
+        ObjectNode message = callbackQuery.putObject("message");
+        message.put("message_id", promptId);
+        message.put("date", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+        message.putObject("chat").put("id", chatId).put("type", "private");
+        return update;
+    }
+
+    private static ObjectNode message(ObjectNode message, long chatId, String username) {
+        message.put("message_id", ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE));
+        message.put("date", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+        user(message.putObject("from"), chatId, username);
+        message.putObject("chat").put("id", chatId).put("type", "private");
+        return message;
+    }
+
+    private static void user(ObjectNode user, long chatId, String username) {
+        user.put("id", chatId);
+        user.put("is_bot", false);
+        user.put("first_name", "Load");
+        user.put("last_name", "Test");
+        user.put("username", username);
+    }
+}
@@ -0,0 +1,62 @@
+package de.avpod.telegrambot.load;
+
+import de.avpod.telegrambot.CloudWrapper;
+import de.avpod.telegrambot.FaultInjector;
+import de.avpod.telegrambot.InMemoryCloudWrapper;
+import de.avpod.telegrambot.PersistentStorageWrapper;
+import de.avpod.telegrambot.aws.InMemoryPersistentStorageWrapper;
+import de.avpod.telegrambot.telegram.CallbackDataStorage;
+import de.avpod.telegrambot.telegram.InMemoryCallbackDataStorage;
+import de.avpod.telegrambot.telegram.TelegramBotConfiguration;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+/**
+ * The application with in-memory backends, requires cloud.backend and storage.backend set to memory.
+ */
+@Configuration
+@EnableAutoConfiguration
+@Import({TelegramBotConfiguration.class})
+public class LoadTestConfiguration {
+
+    @Value("${load.storage.latencyMillis:5}")
+    private long storageLatencyMillis;
+
+    @Value("${load.storage.jitterMillis:2}")
+    private long storageJitterMillis;
+
+    @Value("${load.storage.errorRate:0}")
+    private double storageErrorRate;
+
+    @Value("${load.cloud.latencyMillis:50}")
+    private long cloudLatencyMillis;
+
+    @Value("${load.cloud.jitterMillis:20}")
+    private long cloudJitterMillis;
+
+    @Value("${load.cloud.errorRate:0}")
+    private double cloudErrorRate;
+
+    @Bean
+    @Qualifier("storageBackend")
+    PersistentStorageWrapper inMemoryStorage() {
+        return new InMemoryPersistentStorageWrapper(
+                new FaultInjector(storageLatencyMillis, storageJitterMillis, storageErrorRate));
+    }
+
+    @Bean
+    @Qualifier("cloudBackend")
+    CloudWrapper inMemoryCloud() {
+        return new InMemoryCloudWrapper(new FaultInjector(cloudLatencyMillis, cloudJitterMillis, cloudErrorRate));
+    }
+
+    @Bean
+    CallbackDataStorage callbackDataStorage() {
+        return new InMemoryCallbackDataStorage(
+                new FaultInjector(storageLatencyMillis, storageJitterMillis, storageErrorRate));
+    }
+}
@@ -0,0 +1,75 @@
+package de.avpod.telegrambot.load;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies of one stage of the user flow. Throughput is counted over the time between the first start
+ * and the last completion of the stage.
+ */
+class StageStatistics {
+    private final String name;
+    private final ConcurrentLinkedQueue<Long> latenciesNanos = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong firstStartNanos = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong lastEndNanos = new AtomicLong(Long.MIN_VALUE);
+
+    StageStatistics(String name) {
+        this.name = name;
+    }
+
+    long start() {
+        long startNanos = System.nanoTime();
+        firstStartNanos.accumulateAndGet(startNanos, Math::min);
+        return startNanos;
+    }
+
+    void succeeded(long startNanos) {
+        long endNanos = System.nanoTime();
+        lastEndNanos.accumulateAndGet(endNanos, Math::max);
+        latenciesNanos.add(endNanos - startNanos);
+    }
+
+    void failed() {
+        failures.incrementAndGet();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getFailures() {
+        return failures.get();
+    }
+
+    String report() {
+        long[] sorted = latenciesNanos.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        double seconds = sorted.length == 0 ?
+                0 :
+                (lastEndNanos.get() - firstStartNanos.get()) / (double) TimeUnit.SECONDS.toNanos(1);
+        return String.format("%-10s %8d %8d %12.1f %10.1f %10.1f %10.1f",
+                name,
+                sorted.length,
+                failures.get(),
+                seconds > 0 ? sorted.length / seconds : 0,
+                percentileMillis(sorted, 0.5),
+                percentileMillis(sorted, 0.99),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+    }
+
+    static String header() {
+        return String.format("%-10s %8s %8s %12s %10s %10s %10s",
+                "Stage", "Count", "Failed", "Ops/s", "p50, ms", "p99, ms", "max, ms");
+    }
+
+    private static double percentileMillis(long[] sorted, double percentile) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,307 @@
+package de.avpod.telegrambot.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Local replacement of the Bot API for one bot token. Serves getUpdates from the updates put by the test,
+ * getFile and downloads from registered contents, and records sendMessage, sendPhoto, sendDocument and
+ * deleteMessage calls, so the test can wait for the bot's answers per chat. Other methods succeed with true.
+ */
+@Log4j2
+public class TelegramApiStub implements AutoCloseable {
+    private static final long MAX_POLL_MILLIS = 1000;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final BlockingQueue<ObjectNode> pendingUpdates = new LinkedBlockingQueue<>();
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private final Map<Long, List<SentMessage>> sentMessages = new ConcurrentHashMap<>();
+    private final AtomicInteger nextUpdateId = new AtomicInteger(1);
+    private final AtomicInteger nextMessageId = new AtomicInteger(1);
+    private final String token;
+    private final HttpServer server;
+
+    public TelegramApiStub(String token, int threads) throws IOException {
+        this.token = token;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/bot" + token + "/", this::handleMethod);
+        server.createContext("/file/bot" + token + "/", this::handleDownload);
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.start();
+        log.info("Telegram API stub listens on port {}", server.getAddress().getPort());
+    }
+
+    /**
+     * Prefix of the Bot API methods, the token is appended by the clients.
+     */
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/bot";
+    }
+
+    public String getFileBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/file/bot";
+    }
+
+    public void addFile(String fileId, byte[] content) {
+        files.put(fileId, content);
+    }
+
+    /**
+     * Queues the update for the next getUpdates call, update_id is assigned by the stub.
+     */
+    public void sendUpdate(ObjectNode update) {
+        update.put("update_id", nextUpdateId.getAndIncrement());
+        pendingUpdates.add(update);
+    }
+
+    /**
+     * Waits for the first call to the chat matching the predicate and removes it, other calls are kept.
+     *
+     * @return empty if no matching call was made within the timeout
+     */
+    public Optional<SentMessage> awaitMessage(long chatId, Predicate<SentMessage> predicate, long timeoutMillis)
+            throws InterruptedException {
+        List<SentMessage> messages = sentMessages.computeIfAbsent(chatId, (id) -> new ArrayList<>());
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (messages) {
+            while (true) {
+                Iterator<SentMessage> iterator = messages.iterator();
+                while (iterator.hasNext()) {
+                    SentMessage message = iterator.next();
+                    if (predicate.test(message)) {
+                        iterator.remove();
+                        return Optional.of(message);
+                    }
+                }
+                long remainingMillis = deadline - System.currentTimeMillis();
+                if (remainingMillis <= 0)
+                    return Optional.empty();
+                messages.wait(remainingMillis);
+            }
+        }
+    }
+
+    private void handleMethod(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        // method names are case insensitive, the client sends some of them in lower case
+        String method = path.substring(path.lastIndexOf('/') + 1).toLowerCase();
+        try {
+            Map<String, String> parameters = parameters(exchange);
+            JsonNode result;
+            switch (method) {
+                case "getupdates":
+                    result = getUpdates(parameters);
+                    break;
+                case "getfile":
+                    result = getFile(parameters.get("file_id"));
+                    break;
+                case "sendmessage":
+                case "sendphoto":
+                case "senddocument":
+                    result = recordMessage(method, parameters);
+                    break;
+                case "deletemessage":
+                    recordMessage(method, parameters);
+                    result = objectMapper.getNodeFactory().booleanNode(true);
+                    break;
+                default:
+                    result = objectMapper.getNodeFactory().booleanNode(true);
+            }
+            if (result == null) {
+                respond(exchange, 400, "{\"ok\":false,\"error_code\":400,\"description\":\"Bad Request: " +
+                        "invalid file_id\"}");
+                return;
+            }
+            ObjectNode response = objectMapper.createObjectNode();
+            response.put("ok", true);
+            response.set("result", result);
+            respond(exchange, 200, objectMapper.writeValueAsString(response));
+        } catch (Exception e) {
+            log.error("Cannot handle method {}", method, e);
+            ObjectNode response = objectMapper.createObjectNode();
+            response.put("ok", false);
+            response.put("error_code", 500);
+            response.put("description", e.toString());
+            respond(exchange, 500, objectMapper.writeValueAsString(response));
+        }
+    }
+
+    private JsonNode getUpdates(Map<String, String> parameters) throws InterruptedException {
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(parameters.getOrDefault("timeout", "0")));
+        int limit = Integer.parseInt(parameters.getOrDefault("limit", "100"));
+        ArrayNode updates = objectMapper.createArrayNode();
+        // shorter than the requested long poll, so a closed session is noticed soon
+        ObjectNode first = pendingUpdates.poll(Math.min(timeoutMillis, MAX_POLL_MILLIS), TimeUnit.MILLISECONDS);
+        if (first == null)
+            return updates;
+        updates.add(first);
+        List<ObjectNode> next = new ArrayList<>();
+        pendingUpdates.drainTo(next, limit - 1);
+        updates.addAll(next);
+        return updates;
+    }
+
+    private JsonNode getFile(String fileId) {
+        byte[] content = files.get(fileId);
+        if (content == null)
+            return null;
+        ObjectNode file = objectMapper.createObjectNode();
+        file.put("file_id", fileId);
+        file.put("file_size", content.length);
+        file.put("file_path", "documents/" + fileId + ".pdf");
+        return file;
+    }
+
+    private JsonNode recordMessage(String method, Map<String, String> parameters) throws IOException {
+        long chatId = Long.parseLong(parameters.get("chat_id"));
+        int messageId = method.equals("deletemessage") ?
+                Integer.parseInt(parameters.get("message_id")) :
+                nextMessageId.getAndIncrement();
+        String text = parameters.containsKey("text") ? parameters.get("text") : parameters.get("caption");
+        JsonNode replyMarkup = parameters.containsKey("reply_markup") ?
+                objectMapper.readTree(parameters.get("reply_markup")) :
+                null;
+        List<SentMessage> messages = sentMessages.computeIfAbsent(chatId, (id) -> new ArrayList<>());
+        synchronized (messages) {
+            messages.add(new SentMessage(method, chatId, messageId, text, replyMarkup));
+            messages.notifyAll();
+        }
+
+        ObjectNode message = objectMapper.createObjectNode();
+        message.put("message_id", messageId);
+        message.put("date", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+        message.putObject("chat").put("id", chatId).put("type", "private");
+        if (text != null)
+            message.put(method.equals("sendmessage") ? "text" : "caption", text);
+        return message;
+    }
+
+    private void handleDownload(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String fileName = path.substring(path.lastIndexOf('/') + 1);
+        byte[] content = files.get(fileName.substring(0, fileName.lastIndexOf('.')));
+        if (content == null) {
+            respond(exchange, 404, "Not Found");
+            return;
+        }
+        exchange.sendResponseHeaders(200, content.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(content);
+        }
+    }
+
+    /**
+     * Query parameters and the body, which is json for methods without files and multipart or url encoded
+     * form otherwise. Nested values like reply_markup are kept as json text.
+     */
+    private Map<String, String> parameters(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null)
+            parameters.putAll(formParameters(query));
+
+        String body = new String(readFully(exchange.getRequestBody()), StandardCharsets.UTF_8);
+        String contentType = Optional.ofNullable(exchange.getRequestHeaders().getFirst("Content-Type")).orElse("");
+        if (body.isEmpty())
+            return parameters;
+        if (contentType.startsWith("application/json")) {
+            Iterator<Map.Entry<String, JsonNode>> fields = objectMapper.readTree(body).fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                parameters.put(field.getKey(), field.getValue().isValueNode() ?
+                        field.getValue().asText() :
+                        objectMapper.writeValueAsString(field.getValue()));
+            }
+        } else if (contentType.startsWith("multipart/form-data")) {
+            String boundary = contentType.substring(contentType.indexOf("boundary=") + 9).split(";")[0];
+            parameters.putAll(multipartParameters(body, boundary));
+        } else {
+            parameters.putAll(formParameters(body));
+        }
+        return parameters;
+    }
+
+    private static Map<String, String> formParameters(String encoded) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        for (String pair : encoded.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0)
+                parameters.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+        }
+        return parameters;
+    }
+
+    private static Map<String, String> multipartParameters(String body, String boundary) {
+        Map<String, String> parameters = new HashMap<>();
+        for (String part : body.split("--" + boundary)) {
+            int headersEnd = part.indexOf("\r\n\r\n");
+            int nameStart = part.indexOf("name=\"");
+            if (headersEnd < 0 || nameStart < 0 || nameStart > headersEnd)
+                continue;
+            String name = part.substring(nameStart + 6, part.indexOf('"', nameStart + 6));
+            String value = part.substring(headersEnd + 4);
+            parameters.put(name, value.endsWith("\r\n") ? value.substring(0, value.length() - 2) : value);
+        }
+        return parameters;
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    /**
+     * Call of the bot to a chat, text is the caption for photos and documents and empty for deletes.
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class SentMessage {
+        private final String method;
+        private final long chatId;
+        private final int messageId;
+        private final String text;
+        private final JsonNode replyMarkup;
+    }
+}
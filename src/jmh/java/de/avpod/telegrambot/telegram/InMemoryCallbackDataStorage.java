@@ -0,0 +1,34 @@
+package de.avpod.telegrambot.telegram;
+
+import de.avpod.telegrambot.FaultInjector;
+import de.avpod.telegrambot.RecognizeDocumentCallbackData;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Callbacks of prompts sent before {@link CallbackDataCodec}, put by the test instead of read from DynamoDB.
+ */
+public class InMemoryCallbackDataStorage extends CallbackDataStorage {
+    private final Map<String, RecognizeDocumentCallbackData> callbacks = new ConcurrentHashMap<>();
+    private final FaultInjector faultInjector;
+
+    public InMemoryCallbackDataStorage(FaultInjector faultInjector) {
+        super(null, 0);
+        this.faultInjector = faultInjector;
+    }
+
+    public void put(String id, RecognizeDocumentCallbackData callbackData) {
+        callbacks.put(id, callbackData);
+    }
+
+    @Override
+    public CallbackLookupResult loadCallbackInfo(String id) {
+        faultInjector.call("loadCallbackInfo");
+        RecognizeDocumentCallbackData callbackData = callbacks.get(id);
+        return callbackData == null ?
+                CallbackLookupResult.expired(Optional.empty()) :
+                CallbackLookupResult.found(callbackData);
+    }
+}
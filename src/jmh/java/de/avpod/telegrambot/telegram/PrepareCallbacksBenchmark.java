@@ -0,0 +1,46 @@
+package de.avpod.telegrambot.telegram;
+
+import org.openjdk.jmh.annotations.*;
+import org.telegram.telegrambots.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keyboard preparation signs one callback per document type and document, a recognition pass of a user
+ * with many uploaded documents is dominated by it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrepareCallbacksBenchmark {
+
+    @Param({"1", "5", "20"})
+    private int documentsCount;
+
+    private CallbackDataCodec callbackDataCodec;
+    private List<UnrecognizedDocumentInfo> documents;
+
+    @Setup
+    public void setUp() {
+        callbackDataCodec = new CallbackDataCodec("benchmark-secret", TimeUnit.HOURS.toSeconds(72));
+        documents = new ArrayList<>();
+        for (int i = 0; i < documentsCount; i++) {
+            documents.add(new UnrecognizedDocumentInfo(UUID.randomUUID().toString(), 1L,
+                    UUID.randomUUID().toString(), "telegram-file-" + i,
+                    Optional.of("telegram-thumbnail-" + i), Optional.empty()));
+        }
+    }
+
+    @Benchmark
+    public Map<UnrecognizedDocumentInfo, List<List<InlineKeyboardButton>>> prepareCallbacks() {
+        return ImageTypeRecognitionJob.prepareCallbacks(callbackDataCodec, "benchmark", documents);
+    }
+}
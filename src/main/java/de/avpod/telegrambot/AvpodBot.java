@@ -1,19 +1,28 @@
 package de.avpod.telegrambot;
 
+import de.avpod.telegrambot.telegram.OutboundMessageScheduler;
+import de.avpod.telegrambot.telegram.UpdateDeduplicator;
 import de.avpod.telegrambot.telegram.UpdateProcessor;
 import lombok.AllArgsConstructor;
 import lombok.extern.log4j.Log4j2;
 import org.telegram.telegrambots.api.methods.BotApiMethod;
 import org.telegram.telegrambots.api.methods.send.SendMessage;
-import org.telegram.telegrambots.api.objects.Message;
 import org.telegram.telegrambots.api.objects.Update;
 import org.telegram.telegrambots.api.objects.User;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
-import org.telegram.telegrambots.exceptions.TelegramApiException;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static de.avpod.telegrambot.telegram.OutboundMessageScheduler.Priority.USER_REPLY;
 
 @Log4j2
 @AllArgsConstructor
@@ -23,95 +32,208 @@ public class AvpodBot extends TelegramLongPollingBot {
     private final List<UpdateProcessor> updateProcessors;
     private final UserAwareExecutor sendResponseExecutor;
     private final PersistentStorageWrapper persistentStorage;
+    private final OutboundMessageScheduler outboundMessageScheduler;
+    private final UpdateDeduplicator updateDeduplicator;
+    private final AtomicInteger inFlightUpdates = new AtomicInteger();
+    private final AtomicBoolean stopped = new AtomicBoolean();
 
     @Override
     public void onUpdateReceived(Update update) {
-        if (!update.hasMessage() && !update.hasCallbackQuery()) {
-            log.info("Got update without message or query {}", update);
+        onUpdatesReceived(Collections.singletonList(update));
+    }
+
+    @Override
+    public void onUpdatesReceived(List<Update> updates) {
+        submitUpdates(updates);
+    }
+
+    /**
+     * Updates of one poll are grouped by user. Updates of a user run as one task in their original order and
+     * share one flow status lookup.
+     *
+     * @return updates which were rejected because the executor is at capacity, they are accepted again when
+     * Telegram delivers them once more
+     */
+    public List<Update> submitUpdates(List<Update> updates) {
+        Map<String, List<Update>> updatesPerUser = new LinkedHashMap<>();
+        for (Update update : updates) {
+            if (!update.hasMessage() && !update.hasCallbackQuery()) {
+                log.info("Got update without message or query {}", update);
+                continue;
+            }
+
+            String username = user(update).getUserName();
+            if (stopped.get()) {
+                log.warn("Dropping update {} of user {}, the bot is stopped", update.getUpdateId(), username);
+                continue;
+            }
+
+            if (updateDeduplicator.accept(update))
+                updatesPerUser.computeIfAbsent(username, (user) -> new ArrayList<>()).add(update);
+        }
+
+        Map<String, Runnable> tasks = new LinkedHashMap<>();
+        updatesPerUser.forEach((username, userUpdates) ->
+                tasks.put(username, () -> processUpdates(username, userUpdates)));
+        List<Update> rejected = new ArrayList<>();
+        for (String username : sendResponseExecutor.submitAll(tasks)) {
+            List<Update> userUpdates = updatesPerUser.get(username);
+            log.warn("Rejecting {} updates of user {}, too many pending updates", userUpdates.size(), username);
+            userUpdates.forEach(updateDeduplicator::release);
+            rejected.addAll(userUpdates);
+        }
+        return rejected;
+    }
+
+    private void processUpdates(String username, List<Update> userUpdates) {
+        inFlightUpdates.addAndGet(userUpdates.size());
+        UserContext context;
+        try {
+            context = new UserContext(determineFlowStatus(username));
+            log.info("Got flow status {} for user {} with {} updates", context.flowStatus, username, userUpdates.size());
+        } catch (RuntimeException e) {
+            log.error("Cannot get flow status of user {}, dropping {} updates", username, userUpdates.size(), e);
+            userUpdates.forEach(this::updateProcessed);
             return;
         }
 
-        User user = update.hasCallbackQuery() ?
-                update.getCallbackQuery().getFrom() :
-                update.getMessage().getFrom();
+        for (Update update : userUpdates) {
+            CompletableFuture<Void> processed;
+            try {
+                processed = processUpdate(update, user(update), context);
+            } catch (RuntimeException e) {
+                log.error("Unexpected exception during processing update {}", update.getUpdateId(), e);
+                processed = CompletableFuture.completedFuture(null);
+            }
+            processed.whenComplete((result, e) -> updateProcessed(update));
+        }
+    }
+
+    private void updateProcessed(Update update) {
+        inFlightUpdates.decrementAndGet();
+        updateDeduplicator.processed(update);
+    }
 
-        sendResponseExecutor.getExecutor(user.getUserName()).execute(() -> {
-            FlowStatus flowStatus = determineFlowStatus(user.getUserName());
-            log.info("Got flow status {} for user {}", flowStatus, user.getUserName());
+    /**
+     * @return future completed once the response is sent and the state update is processed
+     */
+    private CompletableFuture<Void> processUpdate(Update update, User user, UserContext context) {
+        FlowStatus flowStatus = context.flowStatus;
+        if (flowStatus == FlowStatus.FINISHED) {
+            log.info("Got update from user {} with finished flow {}, ignoring", user.getUserName(), update);
+            return CompletableFuture.completedFuture(null);
+        }
 
-            if (flowStatus == FlowStatus.FINISHED) {
-                log.info("Got update from user {} with finished flow {}, ignoring", user.getUserName(), update);
-                sendResponseExecutor.cleanupForUser(user.getUserName());
-                return;
+        if (flowStatus == FlowStatus.NEW) {
+            try {
+                outboundMessageScheduler.send(update.getMessage().getChatId(), USER_REPLY, new SendMessage()
+                        .setChatId(update.getMessage().getChatId())
+                        .setParseMode("html")
+                        .setText(TextContents.GREETINGS_TEXT.getText())
+                ).join();
+                initNewUser(user, update.getMessage().getChatId(), FlowStatus.WAITING_FILES);
+                context.flowStatus = FlowStatus.WAITING_FILES;
+            } catch (Exception e) {
+                log.error("Unexpected exception during submit response", e);
             }
+            return CompletableFuture.completedFuture(null);
+        }
+
+
+        //todo save to dynamodb status of the document to be processed, on process complete update the status of the document
+        //todo response to user "successfully loaded/captured erroed with name"
+        //todo create some scheduleRecognition on last document load to ask for recognition of the image (load thumbnail by id from dynamodb from telegram + file name from dynamodb)
+        //todo scheduleRecognition should be initiated on bot start because of restarts
+        //todo just start the thread which queries users with status (not completed, recognition not started) and initiate dialog
+        //todo should stop if no job find. Should start on any image processed.
+        //todo during recognition prevent sending other messages to user to avoid dissapearing of the keyboard (?)
+        //todo on image recognition move/delete it accordinaly in google drive
+        //todo check in dynamodb if some images are still not recognised and repeat steps
+        //todo check the list of images and show status
+
+        long chatId = chatId(update, user);
+        Executor userExecutor = sendResponseExecutor.getExecutor(user.getUserName());
+        for (UpdateProcessor processor : updateProcessors) {
+            Optional<CompletableFuture<Void>> processed = processor.processUpdate(update).map((future) -> future.thenComposeAsync((processingResult) -> {
+                if (processingResult == null || !processingResult.getMessageAcceptedResponse().isPresent())
+                    return CompletableFuture.completedFuture(processingResult);
+
+                log.info("Sending processing result to user {}", user.getUserName());
+                return outboundMessageScheduler.send(chatId, USER_REPLY,
+                        processingResult.getMessageAcceptedResponse().get()
+                ).thenApply((msg) -> {
+                    log.info("Response successfully submitted", msg);
+                    return processingResult;
+                });
+            }, userExecutor).thenAcceptAsync((processingResult) -> {
+                if (processingResult == null || !processingResult.getStateUpdate().isPresent())
+                    return;
 
-            if (flowStatus == FlowStatus.NEW) {
                 try {
-                    AvpodBot.this.execute(new SendMessage()
-                            .setChatId(update.getMessage().getChatId())
-                            .setParseMode("html")
-                            .setText(TextContents.GREETINGS_TEXT.getText())
-                    );
-                    initNewUser(user, update.getMessage().getChatId(), FlowStatus.WAITING_FILES);
+                    log.info("Processing state update for user {}", user.getUserName());
+                    List<BotApiMethod> reactionMessage = processingResult.getStateUpdate().get().get();
+                    reactionMessage.forEach(method -> outboundMessageScheduler.send(chatId, USER_REPLY, method)
+                            .exceptionally((e) -> {
+                                log.error("Error during sending message", e);
+                                return null;
+                            }));
+                    log.info("State update successfully finished");
                 } catch (Exception e) {
-                    log.error("Unexpected exception during submit response", e);
+                    log.error("Error during processing state update", e);
                 }
-                return;
-            }
+            }, userExecutor).exceptionally((e) -> {
+                log.error("Unexpected api exception", e);
+                return null;
+            }).whenComplete((ignored, e) -> future.thenAccept(AvpodBot::complete)));
 
+            if (processed.isPresent())
+                return processed.get();
+        }
+        return CompletableFuture.completedFuture(null);
+    }
 
-            //todo single-thread executor per user
-            //todo save to dynamodb status of the document to be processed, on process complete update the status of the document
-            //todo response to user "successfully loaded/captured erroed with name"
-            //todo create some scheduleRecognition on last document load to ask for recognition of the image (load thumbnail by id from dynamodb from telegram + file name from dynamodb)
-            //todo scheduleRecognition should be initiated on bot start because of restarts
-            //todo just start the thread which queries users with status (not completed, recognition not started) and initiate dialog
-            //todo should stop if no job find. Should start on any image processed.
-            //todo during recognition prevent sending other messages to user to avoid dissapearing of the keyboard (?)
-            //todo on image recognition move/delete it accordinaly in google drive
-            //todo check in dynamodb if some images are still not recognised and repeat steps
-            //todo check the list of images and show status
-
-            for (UpdateProcessor processor : updateProcessors) {
-                Optional<CompletableFuture<ProcessingResult>> handled = processor.processUpdate(update);
-                handled.map((future) -> future.thenAcceptAsync((processingResult) -> {
-                    if (processingResult == null)
-                        return;
-
-                    if (processingResult.getMessageAcceptedResponse().isPresent()) {
-                        try {
-                            log.info("Sending processing result to user {}", user.getUserName());
-                            Message msg = AvpodBot.this.execute(processingResult.getMessageAcceptedResponse().get());
-                            log.info("Response successfully submitted", msg);
-                        } catch (TelegramApiException e) {
-                            log.error("Unexpected api exception", e);
-                            return;
-                        }
-                    }
-
-                    if (processingResult.getStateUpdate().isPresent()) {
-                        try {
-                            log.info("Processing state update for user {}", user.getUserName());
-                            List<BotApiMethod> reactionMessage = processingResult.getStateUpdate().get().get();
-                            reactionMessage.forEach(method -> {
-                                try {
-                                    AvpodBot.this.execute(method);
-                                } catch (TelegramApiException e) {
-                                    log.error("Error during sending message", e);
-                                }
-                            });
-                            log.info("State update successfully finished");
-                        } catch (Exception e) {
-                            log.error("Error during processing state update", e);
-                        }
-                    }
-
-                }, sendResponseExecutor.getExecutor(user.getUserName())));
-
-                if (handled.isPresent())
-                    break;
-            }
-        });
+    private static void complete(ProcessingResult processingResult) {
+        if (processingResult == null)
+            return;
+        try {
+            processingResult.getCompletion().run();
+        } catch (Exception e) {
+            log.error("Error during completing processing result", e);
+        }
+    }
+
+    /**
+     * Updates received afterwards are dropped, the ones already accepted are still processed.
+     */
+    public void stop() {
+        stopped.set(true);
+    }
+
+    public boolean isStopped() {
+        return stopped.get();
+    }
+
+    /**
+     * Updates from the start of processing until the response and the state update are sent. Updates waiting
+     * in the user executor are not included.
+     */
+    public int getInFlightUpdates() {
+        return inFlightUpdates.get();
+    }
+
+    private static User user(Update update) {
+        return update.hasCallbackQuery() ?
+                update.getCallbackQuery().getFrom() :
+                update.getMessage().getFrom();
+    }
+
+    private static long chatId(Update update, User user) {
+        if (update.hasCallbackQuery() && update.getCallbackQuery().getMessage() != null)
+            return update.getCallbackQuery().getMessage().getChatId();
+        if (update.hasMessage())
+            return update.getMessage().getChatId();
+        // private chats share the id with the user
+        return user.getId();
     }
 
     private void initNewUser(User user, long chatId, FlowStatus flowStatus) {
@@ -122,6 +244,18 @@ public class AvpodBot extends TelegramLongPollingBot {
         return persistentStorage.getFlowStatus(userName);
     }
 
+    /**
+     * State shared by the updates of one user within a batch. Statuses changed by state updates are not
+     * reflected, those are written asynchronously anyway.
+     */
+    private static class UserContext {
+        private FlowStatus flowStatus;
+
+        private UserContext(FlowStatus flowStatus) {
+            this.flowStatus = flowStatus;
+        }
+    }
+
     @Override
     public String getBotUsername() {
         return "AVPod-Bot";
@@ -0,0 +1,229 @@
+package de.avpod.telegrambot;
+
+import de.avpod.telegrambot.aws.UserInfo;
+import de.avpod.telegrambot.telegram.UnrecognizedDocumentInfo;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the flow status per user, so updates do not need a storage read before any work starts.
+ * Status changing operations write the new status through, entries expire after the TTL to pick up
+ * changes made by other instances. Every write stamps its entry with a new generation, a status loaded on a miss
+ * is not cached if a write of the same user finished after the load started.
+ */
+@Log4j2
+public class CachingPersistentStorageWrapper implements PersistentStorageWrapper, MeterBinder {
+    private final PersistentStorageWrapper delegate;
+    private final long ttlNanos;
+    private final Map<String, CachedStatus> statuses;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long generation;
+
+    public CachingPersistentStorageWrapper(PersistentStorageWrapper delegate, long ttlSeconds, int maxSize) {
+        this.delegate = delegate;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.statuses = new LinkedHashMap<String, CachedStatus>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatus> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    @Override
+    public FlowStatus getFlowStatus(String userName) {
+        CachedStatus cached;
+        long loadGeneration;
+        synchronized (statuses) {
+            cached = statuses.get(userName);
+            loadGeneration = generation;
+        }
+        if (cached != null && cached.flowStatus != null && System.nanoTime() - cached.expiresAt < 0) {
+            hits.increment();
+            return cached.flowStatus;
+        }
+
+        misses.increment();
+        FlowStatus flowStatus = delegate.getFlowStatus(userName);
+        synchronized (statuses) {
+            CachedStatus current = statuses.get(userName);
+            if (current == null || current.generation <= loadGeneration)
+                statuses.put(userName, new CachedStatus(flowStatus, System.nanoTime() + ttlNanos, loadGeneration));
+        }
+        return flowStatus;
+    }
+
+    @Override
+    public void updateFlowStatus(String userName, FlowStatus flowStatus) {
+        writeThrough(userName, () -> {
+            delegate.updateFlowStatus(userName, flowStatus);
+            return flowStatus;
+        });
+    }
+
+    @Override
+    public void insertUser(String userName, String firstName, String lastName, long chatId, FlowStatus flowStatus) {
+        writeThrough(userName, () -> {
+            delegate.insertUser(userName, firstName, lastName, chatId, flowStatus);
+            return flowStatus;
+        });
+    }
+
+    @Override
+    public String saveDocumentInfo(String userName,
+                                   String telegramFileId,
+                                   String cloudIdentifier,
+                                   Optional<String> originalFileName,
+                                   String cloudFileName,
+                                   Optional<String> telegramThumbnailId) {
+        return delegate.saveDocumentInfo(userName, telegramFileId, cloudIdentifier,
+                originalFileName, cloudFileName, telegramThumbnailId);
+    }
+
+    @Override
+    public String saveDocumentAndUpdateFlowStatus(String userName,
+                                                  String telegramFileId,
+                                                  String cloudIdentifier,
+                                                  Optional<String> originalFileName,
+                                                  String cloudFileName,
+                                                  Optional<String> telegramThumbnailId,
+                                                  FlowStatus flowStatus) {
+        String[] documentId = new String[1];
+        writeThrough(userName, () -> {
+            documentId[0] = delegate.saveDocumentAndUpdateFlowStatus(userName, telegramFileId, cloudIdentifier,
+                    originalFileName, cloudFileName, telegramThumbnailId, flowStatus);
+            return flowStatus;
+        });
+        return documentId[0];
+    }
+
+    @Override
+    public List<String> saveDocumentsAndUpdateFlowStatus(String userName,
+                                                         List<UploadedDocument> documents,
+                                                         FlowStatus flowStatus) {
+        List<String> documentIds = new ArrayList<>(documents.size());
+        writeThrough(userName, () -> {
+            documentIds.addAll(delegate.saveDocumentsAndUpdateFlowStatus(userName, documents, flowStatus));
+            return flowStatus;
+        });
+        return documentIds;
+    }
+
+    @Override
+    public DocumentHashIndex getDocumentHashIndex(String userName) {
+        return delegate.getDocumentHashIndex(userName);
+    }
+
+    @Override
+    public DocumentUpdateResult deleteDocument(String userName, String documentId) {
+        DocumentUpdateResult[] result = new DocumentUpdateResult[1];
+        writeThrough(userName, () -> {
+            result[0] = delegate.deleteDocument(userName, documentId);
+            return result[0].getFlowStatus();
+        });
+        return result[0];
+    }
+
+    @Override
+    public DocumentUpdateResult updateDocumentType(String userName, String documentId, DocumentType documentType) {
+        DocumentUpdateResult[] result = new DocumentUpdateResult[1];
+        writeThrough(userName, () -> {
+            result[0] = delegate.updateDocumentType(userName, documentId, documentType);
+            return result[0].getFlowStatus();
+        });
+        return result[0];
+    }
+
+    @Override
+    public Collection<UserInfo> queryUsersForImageRecognition() {
+        return delegate.queryUsersForImageRecognition();
+    }
+
+    @Override
+    public List<UnrecognizedDocumentInfo> queryUnrecognizedDocuments(String username) {
+        return delegate.queryUnrecognizedDocuments(username);
+    }
+
+    @Override
+    public void markDocumentAsNotifiedForRecognition(String username, String documentId) {
+        delegate.markDocumentAsNotifiedForRecognition(username, documentId);
+    }
+
+    @Override
+    public UserInfo getFullInfo(String userName) {
+        return delegate.getFullInfo(userName);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public int getSize() {
+        synchronized (statuses) {
+            return statuses.size();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("storage.flowstatus.cache.requests", this, CachingPersistentStorageWrapper::getHitCount)
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("storage.flowstatus.cache.requests", this, CachingPersistentStorageWrapper::getMissCount)
+                .tag("result", "miss")
+                .register(registry);
+        Gauge.builder("storage.flowstatus.cache.size", this, CachingPersistentStorageWrapper::getSize)
+                .register(registry);
+    }
+
+    private FlowStatus writeThrough(String userName, ThrowingSupplier<FlowStatus> update) {
+        try {
+            FlowStatus flowStatus = update.get();
+            cache(userName, flowStatus);
+            return flowStatus;
+        } catch (RuntimeException e) {
+            log.warn("Invalidating cached flow status of user {} after failed update", userName);
+            // kept as an empty entry, so a load which started before the update does not cache its result
+            cache(userName, null);
+            throw e;
+        }
+    }
+
+    private void cache(String userName, FlowStatus flowStatus) {
+        synchronized (statuses) {
+            statuses.put(userName, new CachedStatus(flowStatus, System.nanoTime() + ttlNanos, ++generation));
+        }
+    }
+
+    private static class CachedStatus {
+        /**
+         * Null after a failed update, the status is loaded again then.
+         */
+        private final FlowStatus flowStatus;
+        private final long expiresAt;
+        private final long generation;
+
+        private CachedStatus(FlowStatus flowStatus, long expiresAt, long generation) {
+            this.flowStatus = flowStatus;
+            this.expiresAt = expiresAt;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package de.avpod.telegrambot;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Limits the amount of concurrent calls to an external service, callers wait up to the timeout for a permit.
+ */
+@Log4j2
+public class ConcurrencyLimiter {
+    private final String name;
+    private final Semaphore permits;
+    private final long timeoutMillis;
+
+    public ConcurrencyLimiter(String name, int maxConcurrentCalls, long timeoutMillis) {
+        this.name = name;
+        this.permits = new Semaphore(maxConcurrentCalls, true);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public <T> T call(Supplier<T> call) {
+        acquire();
+        try {
+            return call.get();
+        } finally {
+            permits.release();
+        }
+    }
+
+    public void run(Runnable call) {
+        acquire();
+        try {
+            call.run();
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void acquire() {
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                log.warn("No free permit for {} after {}ms", name, timeoutMillis);
+                throw new IllegalStateException("Concurrency limit reached for " + name);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for " + name, e);
+        }
+    }
+
+    public int availablePermits() {
+        return permits.availablePermits();
+    }
+}
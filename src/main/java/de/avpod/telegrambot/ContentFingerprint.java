@@ -0,0 +1,40 @@
+package de.avpod.telegrambot;
+
+import lombok.Value;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.util.Optional;
+
+/**
+ * SHA-256 of the file content and, for images, a 64 bit difference hash which survives recompression and
+ * resizing, so a resent copy of the same photo is recognized as well.
+ */
+@Value
+public class ContentFingerprint {
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+
+    private final String sha256;
+    private final Optional<Long> perceptualHash;
+
+    /**
+     * The image is scaled down to 9x8 gray pixels, every bit tells whether a pixel is brighter than its right neighbour.
+     */
+    public static long differenceHash(BufferedImage image) {
+        BufferedImage gray = new BufferedImage(HASH_WIDTH, HASH_HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = gray.createGraphics();
+        graphics.drawImage(image.getScaledInstance(HASH_WIDTH, HASH_HEIGHT, Image.SCALE_AREA_AVERAGING), 0, 0, null);
+        graphics.dispose();
+        long hash = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                hash <<= 1;
+                if (gray.getRaster().getSample(x, y, 0) > gray.getRaster().getSample(x + 1, y, 0))
+                    hash |= 1;
+            }
+        }
+        return hash;
+    }
+}
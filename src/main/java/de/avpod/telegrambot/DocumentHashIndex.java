@@ -0,0 +1,43 @@
+package de.avpod.telegrambot;
+
+import lombok.Value;
+
+import java.util.Set;
+
+/**
+ * Content hashes of all documents a user has submitted, see {@link ContentFingerprint}.
+ */
+@Value
+public class DocumentHashIndex {
+    private final Set<String> contentHashes;
+    private final Set<Long> perceptualHashes;
+
+    public enum Match {
+        NONE,
+        /**
+         * Only the perceptual hash is close, the image may still be a different document.
+         */
+        SIMILAR,
+        EXACT
+    }
+
+    /**
+     * @param maxPerceptualDistance amount of differing bits for two images to be considered similar,
+     *                              negative disables the comparison of images
+     */
+    public Match match(ContentFingerprint fingerprint, int maxPerceptualDistance) {
+        if (contentHashes.contains(fingerprint.getSha256()))
+            return Match.EXACT;
+        if (maxPerceptualDistance < 0 || !fingerprint.getPerceptualHash().isPresent())
+            return Match.NONE;
+
+        long perceptualHash = fingerprint.getPerceptualHash().get();
+        boolean similar = perceptualHashes.stream()
+                .anyMatch((other) -> Long.bitCount(perceptualHash ^ other) <= maxPerceptualDistance);
+        return similar ? Match.SIMILAR : Match.NONE;
+    }
+
+    public boolean contains(ContentFingerprint fingerprint, int maxPerceptualDistance) {
+        return match(fingerprint, maxPerceptualDistance) != Match.NONE;
+    }
+}
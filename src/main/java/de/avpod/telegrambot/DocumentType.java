@@ -5,6 +5,8 @@ import lombok.Getter;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.stream.Collectors;
 
 @AllArgsConstructor
@@ -25,20 +27,47 @@ public enum DocumentType {
     private final String subfolderName;
     private final boolean mandatory;
 
+    private static final List<DocumentType> REAL_DOCUMENTS = Collections.unmodifiableList(Arrays.asList(
+            PASSPORT,
+            WORK_BOOK,
+            DIPLOMA,
+            INN,
+            SNILS,
+            FORM_182,
+            CARD_DATA,
+            MILITARY_ID
+    ));
+    private static final List<DocumentType> MANDATORY_DOCUMENTS = Collections.unmodifiableList(
+            Arrays.stream(DocumentType.values()).filter(DocumentType::isMandatory).collect(Collectors.toList())
+    );
+
+    public static final long REAL_DOCUMENTS_MASK = maskOf(REAL_DOCUMENTS);
+    public static final long MANDATORY_DOCUMENTS_MASK = maskOf(MANDATORY_DOCUMENTS);
+
+    /**
+     * Bit of this type in a documents mask, see {@link #REAL_DOCUMENTS_MASK}.
+     */
+    public long mask() {
+        return 1L << ordinal();
+    }
+
+    public boolean isReal() {
+        return (REAL_DOCUMENTS_MASK & mask()) != 0;
+    }
+
     public static Collection<DocumentType> mandatoryDocuments() {
-        return Arrays.stream(DocumentType.values()).filter(DocumentType::isMandatory).collect(Collectors.toList());
+        return MANDATORY_DOCUMENTS;
     }
 
     public static Collection<DocumentType> realDocuments() {
-        return Arrays.asList(
-                PASSPORT,
-                WORK_BOOK,
-                DIPLOMA,
-                INN,
-                SNILS,
-                FORM_182,
-                CARD_DATA,
-                MILITARY_ID
-        );
+        return REAL_DOCUMENTS;
+    }
+
+    private static long maskOf(Collection<DocumentType> documentTypes) {
+        long mask = 0;
+        for (DocumentType documentType : documentTypes) {
+            mask |= documentType.mask();
+        }
+        return mask;
     }
 }
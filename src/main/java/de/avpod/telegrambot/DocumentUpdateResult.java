@@ -0,0 +1,19 @@
+package de.avpod.telegrambot;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Optional;
+
+/**
+ * Flow status after a document change and the cloud identifier of the changed document,
+ * empty if the document was not found.
+ */
+@Getter
+@AllArgsConstructor
+@ToString
+public class DocumentUpdateResult {
+    private final FlowStatus flowStatus;
+    private final Optional<String> cloudIdentifier;
+}
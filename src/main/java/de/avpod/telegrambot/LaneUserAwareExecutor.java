@@ -0,0 +1,195 @@
+package de.avpod.telegrambot;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Runs tasks of one user strictly in submission order. Users are pinned to one of the single-threaded lanes
+ * by the hash of the username. New tasks are limited per user and by the intake capacity of the lane,
+ * follow-up work of accepted tasks always goes to the lane. Users without pending tasks do not occupy any memory.
+ */
+@Log4j2
+public class LaneUserAwareExecutor implements UserAwareExecutor {
+
+    public enum RejectionPolicy {
+        /**
+         * Throw {@link RejectedExecutionException} to the submitter.
+         */
+        ABORT,
+        /**
+         * Log and drop the task, the submitter gets false.
+         */
+        DISCARD,
+        /**
+         * Wait for free intake capacity of the lane up to the configured timeout, then abort. A batch of
+         * {@link #submitAll(Map)} shares one timeout. The per-user limit is never waited for.
+         */
+        BLOCK
+    }
+
+    private final List<ThreadPoolExecutor> lanes;
+    /**
+     * Permits for new tasks waiting in the lane queue, continuations do not take any.
+     */
+    private final List<Semaphore> intakeSlots;
+    private final ConcurrentHashMap<String, Integer> pendingTasks;
+    private final int maxPendingPerUser;
+    private final RejectionPolicy rejectionPolicy;
+    private final long blockTimeoutMillis;
+    private final Timer waitTimer;
+
+    public LaneUserAwareExecutor(int lanesCount,
+                                 int laneQueueCapacity,
+                                 int maxPendingPerUser,
+                                 RejectionPolicy rejectionPolicy,
+                                 long blockTimeoutMillis,
+                                 MeterRegistry meterRegistry) {
+        int effectiveLanesCount = lanesCount > 0 ? lanesCount : Runtime.getRuntime().availableProcessors();
+        log.info("Creating {} user lanes with queue capacity {} and {} rejection policy",
+                effectiveLanesCount, laneQueueCapacity, rejectionPolicy);
+
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("executor-user");
+        lanes = new ArrayList<>();
+        intakeSlots = new ArrayList<>();
+        for (int i = 0; i < effectiveLanesCount; i++) {
+            // unbounded, the intake is limited by the slots and a full queue must not reject continuations
+            ThreadPoolExecutor lane = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), threadFactory);
+            Gauge.builder("telegram.executor.user.queued", lane, (executor) -> executor.getQueue().size())
+                    .tag("lane", String.valueOf(i))
+                    .register(meterRegistry);
+            lanes.add(lane);
+            intakeSlots.add(new Semaphore(laneQueueCapacity));
+        }
+        pendingTasks = new ConcurrentHashMap<>();
+        this.maxPendingPerUser = maxPendingPerUser;
+        this.rejectionPolicy = rejectionPolicy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.waitTimer = meterRegistry.timer("telegram.executor.user.wait");
+        Gauge.builder("telegram.executor.user.pending.users", pendingTasks, ConcurrentHashMap::size)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Executor getExecutor(String username) {
+        return (task) -> laneFor(String.valueOf(username)).execute(task);
+    }
+
+    @Override
+    public boolean submit(String username, Runnable task) {
+        return submit(username, task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis));
+    }
+
+    @Override
+    public List<String> submitAll(Map<String, Runnable> tasks) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        List<String> rejected = new ArrayList<>();
+        tasks.forEach((username, task) -> {
+            try {
+                if (!submit(username, task, deadline))
+                    rejected.add(username);
+            } catch (RejectedExecutionException e) {
+                rejected.add(username);
+            }
+        });
+        return rejected;
+    }
+
+    private boolean submit(String username, Runnable task, long deadline) {
+        String user = String.valueOf(username);
+        boolean[] accepted = new boolean[1];
+        pendingTasks.compute(user, (key, pending) -> {
+            int current = pending == null ? 0 : pending;
+            accepted[0] = current < maxPendingPerUser;
+            return accepted[0] ? current + 1 : pending;
+        });
+        if (!accepted[0])
+            return reject(user, new RejectedExecutionException(
+                    "User " + user + " has already " + maxPendingPerUser + " pending tasks"));
+
+        int laneIndex = laneIndex(user);
+        Semaphore slots = intakeSlots.get(laneIndex);
+        try {
+            if (!acquire(slots, deadline)) {
+                release(user);
+                return reject(user, new RejectedExecutionException("Lane queue is full"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            release(user);
+            throw new RejectedExecutionException("Interrupted while waiting for lane queue", e);
+        }
+
+        long submittedAt = System.nanoTime();
+        try {
+            lanes.get(laneIndex).execute(() -> {
+                slots.release();
+                waitTimer.record(System.nanoTime() - submittedAt, TimeUnit.NANOSECONDS);
+                try {
+                    task.run();
+                } finally {
+                    release(user);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            release(user);
+            return reject(user, e);
+        }
+    }
+
+    private boolean acquire(Semaphore slots, long deadline) throws InterruptedException {
+        if (rejectionPolicy == RejectionPolicy.BLOCK)
+            return slots.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        return slots.tryAcquire();
+    }
+
+    private boolean reject(String username, RejectedExecutionException e) {
+        if (rejectionPolicy == RejectionPolicy.DISCARD) {
+            log.warn("Discarding task of user {}: {}", username, e.getMessage());
+            return false;
+        }
+        log.warn("Rejecting task of user {}: {}", username, e.getMessage());
+        throw e;
+    }
+
+    private void release(String username) {
+        pendingTasks.computeIfPresent(username, (user, pending) -> pending > 1 ? pending - 1 : null);
+    }
+
+    private ThreadPoolExecutor laneFor(String username) {
+        return lanes.get(laneIndex(username));
+    }
+
+    private int laneIndex(String username) {
+        return Math.floorMod(username.hashCode(), lanes.size());
+    }
+
+    int pendingUsersCount() {
+        return pendingTasks.size();
+    }
+
+    @Override
+    public int getPendingTasks() {
+        return pendingTasks.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    @Override
+    public int shutdownNow() {
+        int dropped = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            dropped += lane.shutdownNow().size();
+        }
+        pendingTasks.clear();
+        return dropped;
+    }
+}
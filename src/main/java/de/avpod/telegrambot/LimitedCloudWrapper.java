@@ -0,0 +1,24 @@
+package de.avpod.telegrambot;
+
+import lombok.AllArgsConstructor;
+
+@AllArgsConstructor
+public class LimitedCloudWrapper implements CloudWrapper {
+    private final CloudWrapper delegate;
+    private final ConcurrencyLimiter limiter;
+
+    @Override
+    public String uploadFile(UploadFile uploadFile) {
+        return limiter.call(() -> delegate.uploadFile(uploadFile));
+    }
+
+    @Override
+    public void recognizeDocument(String cloudId, DocumentType documentType) {
+        limiter.run(() -> delegate.recognizeDocument(cloudId, documentType));
+    }
+
+    @Override
+    public void deleteDocument(String cloudId) {
+        limiter.run(() -> delegate.deleteDocument(cloudId));
+    }
+}
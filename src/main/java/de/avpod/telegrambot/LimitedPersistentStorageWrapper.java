@@ -0,0 +1,95 @@
+package de.avpod.telegrambot;
+
+import de.avpod.telegrambot.aws.UserInfo;
+import de.avpod.telegrambot.telegram.UnrecognizedDocumentInfo;
+import lombok.AllArgsConstructor;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@AllArgsConstructor
+public class LimitedPersistentStorageWrapper implements PersistentStorageWrapper {
+    private final PersistentStorageWrapper delegate;
+    private final ConcurrencyLimiter limiter;
+
+    @Override
+    public void updateFlowStatus(String userName, FlowStatus flowStatus) {
+        limiter.run(() -> delegate.updateFlowStatus(userName, flowStatus));
+    }
+
+    @Override
+    public FlowStatus getFlowStatus(String userName) {
+        return limiter.call(() -> delegate.getFlowStatus(userName));
+    }
+
+    @Override
+    public String saveDocumentInfo(String userName,
+                                   String telegramFileId,
+                                   String cloudIdentifier,
+                                   Optional<String> originalFileName,
+                                   String cloudFileName,
+                                   Optional<String> telegramThumbnailId) {
+        return limiter.call(() -> delegate.saveDocumentInfo(userName, telegramFileId, cloudIdentifier,
+                originalFileName, cloudFileName, telegramThumbnailId));
+    }
+
+    @Override
+    public String saveDocumentAndUpdateFlowStatus(String userName,
+                                                  String telegramFileId,
+                                                  String cloudIdentifier,
+                                                  Optional<String> originalFileName,
+                                                  String cloudFileName,
+                                                  Optional<String> telegramThumbnailId,
+                                                  FlowStatus flowStatus) {
+        return limiter.call(() -> delegate.saveDocumentAndUpdateFlowStatus(userName, telegramFileId, cloudIdentifier,
+                originalFileName, cloudFileName, telegramThumbnailId, flowStatus));
+    }
+
+    @Override
+    public List<String> saveDocumentsAndUpdateFlowStatus(String userName,
+                                                         List<UploadedDocument> documents,
+                                                         FlowStatus flowStatus) {
+        return limiter.call(() -> delegate.saveDocumentsAndUpdateFlowStatus(userName, documents, flowStatus));
+    }
+
+    @Override
+    public DocumentHashIndex getDocumentHashIndex(String userName) {
+        return limiter.call(() -> delegate.getDocumentHashIndex(userName));
+    }
+
+    @Override
+    public void insertUser(String userName, String firstName, String lastName, long chatId, FlowStatus flowStatus) {
+        limiter.run(() -> delegate.insertUser(userName, firstName, lastName, chatId, flowStatus));
+    }
+
+    @Override
+    public Collection<UserInfo> queryUsersForImageRecognition() {
+        return limiter.call(delegate::queryUsersForImageRecognition);
+    }
+
+    @Override
+    public List<UnrecognizedDocumentInfo> queryUnrecognizedDocuments(String username) {
+        return limiter.call(() -> delegate.queryUnrecognizedDocuments(username));
+    }
+
+    @Override
+    public void markDocumentAsNotifiedForRecognition(String username, String documentId) {
+        limiter.run(() -> delegate.markDocumentAsNotifiedForRecognition(username, documentId));
+    }
+
+    @Override
+    public UserInfo getFullInfo(String userName) {
+        return limiter.call(() -> delegate.getFullInfo(userName));
+    }
+
+    @Override
+    public DocumentUpdateResult deleteDocument(String userName, String documentId) {
+        return limiter.call(() -> delegate.deleteDocument(userName, documentId));
+    }
+
+    @Override
+    public DocumentUpdateResult updateDocumentType(String userName, String documentId, DocumentType documentType) {
+        return limiter.call(() -> delegate.updateDocumentType(userName, documentId, documentType));
+    }
+}
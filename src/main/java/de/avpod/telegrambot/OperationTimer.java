@@ -0,0 +1,39 @@
+package de.avpod.telegrambot;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.function.Supplier;
+
+/**
+ * Records the latency of the operations of one dependency as timer {@code name}
+ * tagged with the operation and its outcome.
+ */
+public class OperationTimer {
+    private final MeterRegistry meterRegistry;
+    private final String name;
+
+    public OperationTimer(MeterRegistry meterRegistry, String name) {
+        this.meterRegistry = meterRegistry;
+        this.name = name;
+    }
+
+    public <T> T call(String operation, Supplier<T> supplier) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            T result = supplier.get();
+            sample.stop(meterRegistry.timer(name, "operation", operation, "outcome", "success"));
+            return result;
+        } catch (RuntimeException e) {
+            sample.stop(meterRegistry.timer(name, "operation", operation, "outcome", "error"));
+            throw e;
+        }
+    }
+
+    public void run(String operation, Runnable runnable) {
+        call(operation, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+}
@@ -20,6 +20,28 @@ public interface PersistentStorageWrapper {
                           String cloudFileName,
                           Optional<String> telegramThumbnailId);
 
+    /**
+     * Same as {@link #saveDocumentInfo} but also sets the flow status within the same write.
+     */
+    String saveDocumentAndUpdateFlowStatus(String userName,
+                                           String telegramFileId,
+                                           String cloudIdentifier,
+                                           Optional<String> originalFileName,
+                                           String cloudFileName,
+                                           Optional<String> telegramThumbnailId,
+                                           FlowStatus flowStatus);
+
+    /**
+     * Saves all documents, e.g. parts of one album, and sets the flow status within one write.
+     *
+     * @return ids of the saved documents in the order of the given documents
+     */
+    List<String> saveDocumentsAndUpdateFlowStatus(String userName,
+                                                  List<UploadedDocument> documents,
+                                                  FlowStatus flowStatus);
+
+    DocumentHashIndex getDocumentHashIndex(String userName);
+
     void insertUser(String userName, String firstName, String lastName, long chatId, FlowStatus flowStatus);
 
     Collection<UserInfo> queryUsersForImageRecognition();
@@ -30,7 +52,7 @@ public interface PersistentStorageWrapper {
 
     UserInfo getFullInfo(String userName);
 
-    FlowStatus deleteDocument(String userName, String documentId);
+    DocumentUpdateResult deleteDocument(String userName, String documentId);
 
-    FlowStatus updateDocumentType(String userName, String documentId, DocumentType documentType);
+    DocumentUpdateResult updateDocumentType(String userName, String documentId, DocumentType documentType);
 }
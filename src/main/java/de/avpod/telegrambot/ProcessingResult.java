@@ -13,4 +13,15 @@ import java.util.Optional;
 public class ProcessingResult {
     private final Optional<SendMessage> messageAcceptedResponse;
     private final Optional<ThrowingSupplier<List<BotApiMethod>>> stateUpdate;
+    /**
+     * Runs once the response and the state update are processed, also if sending the response failed and the
+     * state update was skipped.
+     */
+    private final Runnable completion;
+
+    public ProcessingResult(Optional<SendMessage> messageAcceptedResponse,
+                            Optional<ThrowingSupplier<List<BotApiMethod>>> stateUpdate) {
+        this(messageAcceptedResponse, stateUpdate, () -> {
+        });
+    }
 }
@@ -2,41 +2,16 @@ package de.avpod.telegrambot;
 
 import lombok.AllArgsConstructor;
 import lombok.Getter;
-import lombok.extern.log4j.Log4j2;
+import lombok.ToString;
 
+/**
+ * Answer of the user to a recognition prompt, either the type of the document or the request to delete it.
+ */
 @AllArgsConstructor
-@Log4j2
 @Getter
+@ToString
 public class RecognizeDocumentCallbackData {
     private final DocumentType documentType;
     private final boolean deleteRequested;
     private final String documentId;
-    private final String cloudDocumentId;
-
-    public String serialize() {
-        if (deleteRequested) {
-            return "delete" + "_" + documentId + "_" + cloudDocumentId;
-        } else {
-            return documentType.name() + "_" + documentId + "_" + cloudDocumentId;
-        }
-    }
-
-    public static RecognizeDocumentCallbackData deserialize(String callback) {
-        try {
-            String[] parts = callback.split("_");
-            String part = parts[0];
-            if (part.equals("delete")) {
-                return new RecognizeDocumentCallbackData(
-                        null, true, parts[1], parts[2]
-                );
-            } else {
-                return new RecognizeDocumentCallbackData(
-                        DocumentType.valueOf(part), false, parts[1], parts[2]
-                );
-            }
-        } catch (Exception e) {
-            log.error("Cannot deserialize callback {}", callback, e);
-            return null;
-        }
-    }
 }
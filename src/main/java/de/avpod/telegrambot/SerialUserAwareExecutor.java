@@ -0,0 +1,154 @@
+package de.avpod.telegrambot;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a queue per user and hands its tasks one by one to the delegate executor, so no thread is bound to a user.
+ * Intended to run on top of a virtual thread per task executor. Only new tasks count towards the per-user limit,
+ * follow-up work of accepted tasks is always queued. Queues are removed as soon as they are drained.
+ */
+@Log4j2
+public class SerialUserAwareExecutor implements UserAwareExecutor {
+    private final ExecutorService delegate;
+    private final int maxPendingPerUser;
+    private final ConcurrentHashMap<String, UserQueue> userQueues;
+    private final Timer waitTimer;
+
+    private volatile boolean shutdown;
+
+    public SerialUserAwareExecutor(ExecutorService delegate, int maxPendingPerUser, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.maxPendingPerUser = maxPendingPerUser;
+        this.userQueues = new ConcurrentHashMap<>();
+        this.waitTimer = meterRegistry.timer("telegram.executor.user.wait");
+        Gauge.builder("telegram.executor.user.pending.users", userQueues, ConcurrentHashMap::size)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Executor getExecutor(String username) {
+        return (task) -> execute(String.valueOf(username), task, false);
+    }
+
+    @Override
+    public boolean submit(String username, Runnable task) {
+        execute(String.valueOf(username), task, true);
+        return true;
+    }
+
+    private void execute(String username, Runnable task, boolean intake) {
+        if (shutdown)
+            throw new RejectedExecutionException("Executor is shut down, rejecting task of user " + username);
+        long submittedAt = System.nanoTime();
+        UserTask userTask = new UserTask(() -> {
+            waitTimer.record(System.nanoTime() - submittedAt, TimeUnit.NANOSECONDS);
+            task.run();
+        }, intake);
+        boolean[] accepted = new boolean[1];
+        boolean[] idle = new boolean[1];
+        userQueues.compute(username, (user, queue) -> {
+            if (queue == null) {
+                queue = new UserQueue();
+                idle[0] = true;
+            }
+            accepted[0] = !intake || queue.intakeTasks < maxPendingPerUser;
+            if (accepted[0]) {
+                queue.tasks.addLast(userTask);
+                if (intake)
+                    queue.intakeTasks++;
+            }
+            return queue;
+        });
+
+        if (!accepted[0])
+            throw new RejectedExecutionException("User " + username + " has already " + maxPendingPerUser + " pending tasks");
+
+        // the head of the queue is the running task, only the submitter which created the queue starts the chain
+        if (idle[0])
+            submitHead(username);
+    }
+
+    private void submitHead(String username) {
+        try {
+            delegate.execute(() -> runHead(username));
+        } catch (RejectedExecutionException e) {
+            log.error("Delegate rejected tasks of user {}, dropping the queue", username, e);
+            userQueues.remove(username);
+        }
+    }
+
+    private void runHead(String username) {
+        UserTask[] head = new UserTask[1];
+        userQueues.computeIfPresent(username, (user, queue) -> {
+            head[0] = queue.tasks.peekFirst();
+            return queue;
+        });
+
+        try {
+            if (head[0] != null)
+                head[0].runnable.run();
+        } catch (Exception e) {
+            log.error("Unexpected exception in task of user {}", username, e);
+        } finally {
+            UserQueue remaining = userQueues.computeIfPresent(username, (user, queue) -> {
+                UserTask finished = queue.tasks.pollFirst();
+                if (finished != null && finished.intake)
+                    queue.intakeTasks--;
+                return queue.tasks.isEmpty() ? null : queue;
+            });
+            if (remaining != null && !shutdown)
+                submitHead(username);
+        }
+    }
+
+    int pendingUsersCount() {
+        return userQueues.size();
+    }
+
+    @Override
+    public int getPendingTasks() {
+        return userQueues.values().stream().mapToInt((queue) -> queue.intakeTasks).sum();
+    }
+
+    /**
+     * The delegate is shut down as well, it is expected to be owned by this executor.
+     */
+    @Override
+    public int shutdownNow() {
+        shutdown = true;
+        // the head of a queue is running, counted before the interrupt lets it leave the queue
+        int dropped = userQueues.values().stream().mapToInt((queue) -> queue.tasks.size() - 1).sum();
+        delegate.shutdownNow();
+        userQueues.clear();
+        return dropped;
+    }
+
+    /**
+     * Guarded by the compute calls of the map.
+     */
+    private static class UserQueue {
+        private final Deque<UserTask> tasks = new ArrayDeque<>();
+        private int intakeTasks;
+    }
+
+    private static class UserTask {
+        private final Runnable runnable;
+        private final boolean intake;
+
+        private UserTask(Runnable runnable, boolean intake) {
+            this.runnable = runnable;
+            this.intake = intake;
+        }
+    }
+}
@@ -12,6 +12,14 @@ public enum TextContents {
             + " Please send them just to this chat."),
     DOCUMENT_UPLOAD_ERROR("Sorry, we got some error during upload the file, could your please repeat once again?"),
     DOCUMENT_UPLOAD_SUCCESS("Document was successfully uploaded, thank you!"),
+    ALBUM_UPLOAD_SUCCESS("All files of the album were successfully uploaded, thank you!"),
+    ALBUM_UPLOAD_PARTIAL_ERROR("Some files of the album could not be uploaded, could you please send them once again?"),
+    DOCUMENT_ALREADY_RECEIVED("We have already received this file, there is no need to send it again."),
+    DOCUMENT_SIMILAR_UPLOADED("Document was uploaded, but it looks very similar to one you have sent before. " +
+            "If it is just a copy, please choose 'None of them, delete it' when we ask for its type."),
+    ALBUM_SIMILAR_UPLOADED("All files of the album were uploaded, but some look very similar to ones you have " +
+            "sent before. If one is just a copy, please choose 'None of them, delete it' when we ask for its type."),
+    DOCUMENT_UPLOAD_IN_PROGRESS("Your file is still being uploaded, please wait a bit."),
     RECOGNISE_DOCUMENT_TEXT("Unfortunately our document recognition system type 'EyeBallsSearch' is pretty busy that time," +
             "could you please helps us to identify which type of document is it:"),
     RECOGNISE_IMAGE_TEXT("Unfortunately our image recognition system type 'EyeBallsSearch' is pretty busy that time," +
@@ -20,7 +28,8 @@ public enum TextContents {
     ANSWER_YES_DOCUMENT_WILL_BE_SUBMITTED_YET("Yes, I have some other too."),
     ANSWER_NO_ALL_DOCUMENTS_ARE_THERE("No, it was it, I don't have anything else"),
     ARE_YOU_FINISHED("Thank you once again for submitting documents! Do you have any of the remaining ones?"),
-    UNKNOWN_DOCUMENT_TYPE_ANSWER("None of them, delete it");
+    UNKNOWN_DOCUMENT_TYPE_ANSWER("None of them, delete it"),
+    CALLBACK_EXPIRED("This question is outdated, please answer the most recent one.");
     private final String text;
 
 
@@ -0,0 +1,24 @@
+package de.avpod.telegrambot;
+
+import lombok.AllArgsConstructor;
+
+@AllArgsConstructor
+public class TimedCloudWrapper implements CloudWrapper {
+    private final CloudWrapper delegate;
+    private final OperationTimer timer;
+
+    @Override
+    public String uploadFile(UploadFile uploadFile) {
+        return timer.call("uploadFile", () -> delegate.uploadFile(uploadFile));
+    }
+
+    @Override
+    public void recognizeDocument(String cloudId, DocumentType documentType) {
+        timer.run("recognizeDocument", () -> delegate.recognizeDocument(cloudId, documentType));
+    }
+
+    @Override
+    public void deleteDocument(String cloudId) {
+        timer.run("deleteDocument", () -> delegate.deleteDocument(cloudId));
+    }
+}
@@ -0,0 +1,98 @@
+package de.avpod.telegrambot;
+
+import de.avpod.telegrambot.aws.UserInfo;
+import de.avpod.telegrambot.telegram.UnrecognizedDocumentInfo;
+import lombok.AllArgsConstructor;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@AllArgsConstructor
+public class TimedPersistentStorageWrapper implements PersistentStorageWrapper {
+    private final PersistentStorageWrapper delegate;
+    private final OperationTimer timer;
+
+    @Override
+    public void updateFlowStatus(String userName, FlowStatus flowStatus) {
+        timer.run("updateFlowStatus", () -> delegate.updateFlowStatus(userName, flowStatus));
+    }
+
+    @Override
+    public FlowStatus getFlowStatus(String userName) {
+        return timer.call("getFlowStatus", () -> delegate.getFlowStatus(userName));
+    }
+
+    @Override
+    public String saveDocumentInfo(String userName,
+                                   String telegramFileId,
+                                   String cloudIdentifier,
+                                   Optional<String> originalFileName,
+                                   String cloudFileName,
+                                   Optional<String> telegramThumbnailId) {
+        return timer.call("saveDocumentInfo", () -> delegate.saveDocumentInfo(userName, telegramFileId, cloudIdentifier,
+                originalFileName, cloudFileName, telegramThumbnailId));
+    }
+
+    @Override
+    public String saveDocumentAndUpdateFlowStatus(String userName,
+                                                  String telegramFileId,
+                                                  String cloudIdentifier,
+                                                  Optional<String> originalFileName,
+                                                  String cloudFileName,
+                                                  Optional<String> telegramThumbnailId,
+                                                  FlowStatus flowStatus) {
+        return timer.call("saveDocumentAndUpdateFlowStatus", () -> delegate.saveDocumentAndUpdateFlowStatus(
+                userName, telegramFileId, cloudIdentifier, originalFileName, cloudFileName, telegramThumbnailId,
+                flowStatus));
+    }
+
+    @Override
+    public List<String> saveDocumentsAndUpdateFlowStatus(String userName,
+                                                         List<UploadedDocument> documents,
+                                                         FlowStatus flowStatus) {
+        return timer.call("saveDocumentsAndUpdateFlowStatus",
+                () -> delegate.saveDocumentsAndUpdateFlowStatus(userName, documents, flowStatus));
+    }
+
+    @Override
+    public DocumentHashIndex getDocumentHashIndex(String userName) {
+        return timer.call("getDocumentHashIndex", () -> delegate.getDocumentHashIndex(userName));
+    }
+
+    @Override
+    public void insertUser(String userName, String firstName, String lastName, long chatId, FlowStatus flowStatus) {
+        timer.run("insertUser", () -> delegate.insertUser(userName, firstName, lastName, chatId, flowStatus));
+    }
+
+    @Override
+    public Collection<UserInfo> queryUsersForImageRecognition() {
+        return timer.call("queryUsersForImageRecognition", delegate::queryUsersForImageRecognition);
+    }
+
+    @Override
+    public List<UnrecognizedDocumentInfo> queryUnrecognizedDocuments(String username) {
+        return timer.call("queryUnrecognizedDocuments", () -> delegate.queryUnrecognizedDocuments(username));
+    }
+
+    @Override
+    public void markDocumentAsNotifiedForRecognition(String username, String documentId) {
+        timer.run("markDocumentAsNotifiedForRecognition",
+                () -> delegate.markDocumentAsNotifiedForRecognition(username, documentId));
+    }
+
+    @Override
+    public UserInfo getFullInfo(String userName) {
+        return timer.call("getFullInfo", () -> delegate.getFullInfo(userName));
+    }
+
+    @Override
+    public DocumentUpdateResult deleteDocument(String userName, String documentId) {
+        return timer.call("deleteDocument", () -> delegate.deleteDocument(userName, documentId));
+    }
+
+    @Override
+    public DocumentUpdateResult updateDocumentType(String userName, String documentId, DocumentType documentType) {
+        return timer.call("updateDocumentType", () -> delegate.updateDocumentType(userName, documentId, documentType));
+    }
+}
@@ -0,0 +1,16 @@
+package de.avpod.telegrambot;
+
+import java.util.Optional;
+
+/**
+ * Persists the update id up to which all updates were processed, so redeliveries after a restart are dropped.
+ */
+public interface UpdateOffsetStore {
+
+    /**
+     * @return the saved update id, empty if nothing was saved within the max age
+     */
+    Optional<Long> load(long maxAgeMillis);
+
+    void save(long updateId);
+}
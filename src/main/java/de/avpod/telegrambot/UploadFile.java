@@ -3,13 +3,23 @@ package de.avpod.telegrambot;
 import lombok.Builder;
 import lombok.Value;
 
-import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Path;
 
 @Value
 @Builder
 public class UploadFile {
     private final String name;
     private final String mimeType;
-    private final File content;
+    private final ThrowingSupplier<InputStream> content;
+    private final long size;
     private final String username;
+    /**
+     * Optional, called by uploads which are able to report progress.
+     */
+    private final UploadProgressListener progressListener;
+    /**
+     * Optional, file with the same content for uploads which read parts of it concurrently.
+     */
+    private final Path localCopy;
 }
@@ -0,0 +1,10 @@
+package de.avpod.telegrambot;
+
+@FunctionalInterface
+public interface UploadProgressListener {
+
+    /**
+     * @param totalBytes negative if the size of the file is not known
+     */
+    void onProgress(long uploadedBytes, long totalBytes);
+}
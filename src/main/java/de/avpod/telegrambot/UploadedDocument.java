@@ -0,0 +1,23 @@
+package de.avpod.telegrambot;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.util.Optional;
+
+/**
+ * Document which is already uploaded to the cloud and has to be saved to the persistent storage.
+ */
+@Value
+@Builder
+public class UploadedDocument {
+    private final String telegramFileId;
+    private final String cloudIdentifier;
+    private final Optional<String> originalFileName;
+    private final String cloudFileName;
+    private final Optional<String> telegramThumbnailId;
+    /**
+     * Optional, documents with a fingerprint are added to the {@link DocumentHashIndex} of the user.
+     */
+    private final ContentFingerprint fingerprint;
+}
@@ -1,46 +1,65 @@
 package de.avpod.telegrambot;
 
-import lombok.extern.log4j.Log4j2;
-import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
-
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Provides executors which run the tasks of one user strictly in submission order.
+ */
+public interface UserAwareExecutor {
 
-@Log4j2
-public class UserAwareExecutor {
-    private final List<Executor> availableExecutors;
-    private final AtomicInteger roundRobinCounter;
-    private final ConcurrentHashMap<String, Executor> assignedExecutors;
+    /**
+     * Executor for follow-up work of tasks which were already accepted, e.g. continuations of their futures.
+     * It is not limited, so accepted work is never dropped halfway, and rejects tasks only after the shutdown.
+     */
+    Executor getExecutor(String username);
 
-    public UserAwareExecutor(int threadsCount) {
-        availableExecutors = new ArrayList<>();
-        for (int i = 0; i < threadsCount; i++) {
-            availableExecutors.add(Executors.newSingleThreadExecutor(new CustomizableThreadFactory("executor-user")));
-        }
-        assignedExecutors = new ConcurrentHashMap<>();
-        roundRobinCounter = new AtomicInteger();
+    /**
+     * Queues a new task of the user. The per-user limit and the queue bound apply only here.
+     *
+     * @return false if the task was discarded
+     * @throws java.util.concurrent.RejectedExecutionException if the task was rejected
+     */
+    default boolean submit(String username, Runnable task) {
+        getExecutor(username).execute(task);
+        return true;
     }
 
-    public Executor getExecutor(String username) {
-        return this.assignedExecutors.computeIfAbsent(username, (u) -> {
-            log.info("Calculating executor index for username {}", u);
-            int index = roundRobinCounter.getAndIncrement();
-            if (index >= availableExecutors.size()) {
-                index = 0;
-                roundRobinCounter.set(index);
+    /**
+     * Queues new tasks of several users, e.g. of one batch of updates. Policies which wait for capacity wait
+     * at most their timeout for the whole batch, not for every task of it.
+     *
+     * @return users whose tasks were rejected or discarded, in submission order
+     */
+    default List<String> submitAll(Map<String, Runnable> tasks) {
+        List<String> rejected = new ArrayList<>();
+        tasks.forEach((username, task) -> {
+            try {
+                if (!submit(username, task))
+                    rejected.add(username);
+            } catch (RejectedExecutionException e) {
+                rejected.add(username);
             }
-            log.info("Target index is {}", index);
-            return availableExecutors.get(index);
         });
+        return rejected;
     }
 
-    void cleanupForUser(String username) {
-        log.info("Cleanup executor assignment for user {}", username);
-        assignedExecutors.remove(username);
+    /**
+     * New tasks of all users which are queued or running, follow-up work is not included.
+     */
+    default int getPendingTasks() {
+        return 0;
     }
 
+    /**
+     * Rejects new tasks, interrupts running ones and drops the queued ones.
+     *
+     * @return count of dropped tasks
+     */
+    default int shutdownNow() {
+        return 0;
+    }
 }
@@ -0,0 +1,31 @@
+package de.avpod.telegrambot;
+
+import lombok.extern.log4j.Log4j2;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The project is compiled for Java 8, so virtual threads are looked up reflectively when running on Java 21+.
+ */
+@Log4j2
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    public static ExecutorService newPerTaskExecutor(String fallbackThreadNamePrefix) {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            log.info("Using virtual threads for {}", fallbackThreadNamePrefix);
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads are not available on Java {}, using cached thread pool for {}",
+                    System.getProperty("java.version"), fallbackThreadNamePrefix);
+            return Executors.newCachedThreadPool(new CustomizableThreadFactory(fallbackThreadNamePrefix));
+        }
+    }
+}
@@ -8,20 +8,41 @@ import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
 import de.avpod.telegrambot.PersistentStorageWrapper;
+import de.avpod.telegrambot.UpdateOffsetStore;
 import de.avpod.telegrambot.telegram.CallbackDataStorage;
 import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
+@ConditionalOnProperty(value = "storage.backend", havingValue = "dynamodb", matchIfMissing = true)
 @Log4j2
 public class DynamoDBConfguration {
 
     @Value("${aws.dynamodb.tablename:'TelegramBot'}")
     private String tableName;
 
+    @Value("${aws.dynamodb.backfillRecognitionIndex:false}")
+    private boolean backfillRecognitionIndex;
+
+    @Value("${aws.dynamodb.documentsLayout:embedded}")
+    private String documentsLayout;
+
+    @Value("${aws.dynamodb.documentsTablename:TelegramBotDocuments}")
+    private String documentsTableName;
+
+    @Value("${aws.dynamodb.migrateEmbeddedDocuments:false}")
+    private boolean migrateEmbeddedDocuments;
+
+    @Value("${aws.dynamodb.callbackData.cacheSize:1000}")
+    private int callbackDataCacheSize;
+
+    @Value("${aws.dynamodb.updateOffset.key:AVPod-Bot}")
+    private String updateOffsetKey;
+
     @Value("${aws.s3.region:'eu-central-1'}")
     private String region;
 
@@ -33,11 +54,25 @@ public class DynamoDBConfguration {
 
     @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
     @Bean
-    public PersistentStorageWrapper amazonDynamobDbWrapper(DynamoDBMapper dynamoDBMapper,
+    @Qualifier("storageBackend")
+    public PersistentStorageWrapper amazonDynamobDbWrapper(AmazonDynamoDB dynamoDB,
+                                                           DynamoDBMapper dynamoDBMapper,
                                                            DynamoDBMapperConfig mapperConfig) {
-        log.info("Creating wrapper for DynamoDB table");
+        log.info("Creating wrapper for DynamoDB table with {} documents layout", documentsLayout);
 
-        return new DynamoDBWrapper(dynamoDBMapper, mapperConfig);
+        DynamoDBWrapper dynamoDBWrapper;
+        if ("items".equals(documentsLayout)) {
+            DynamoDBDocumentItemsWrapper itemsWrapper = new DynamoDBDocumentItemsWrapper(dynamoDB, dynamoDBMapper,
+                    mapperConfig, new DynamoDBMapperConfig(new DynamoDBMapperConfig.TableNameOverride(documentsTableName)));
+            if (migrateEmbeddedDocuments)
+                itemsWrapper.migrateAllUsers();
+            dynamoDBWrapper = itemsWrapper;
+        } else {
+            dynamoDBWrapper = new DynamoDBWrapper(dynamoDB, dynamoDBMapper, mapperConfig);
+        }
+        if (backfillRecognitionIndex)
+            dynamoDBWrapper.backfillPendingRecognition();
+        return dynamoDBWrapper;
     }
 
     @Bean
@@ -73,8 +108,18 @@ public class DynamoDBConfguration {
         return new DynamoDBMapper(dynamoDB);
     }
 
+    @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
     @Bean
     public CallbackDataStorage callbackDataStorage(DynamoDBMapper dynamoDBMapper) {
-        return new CallbackDataStorage(dynamoDBMapper);
+        return new CallbackDataStorage(dynamoDBMapper, callbackDataCacheSize);
+    }
+
+    /**
+     * Requires the {@link TelegramUpdateOffset#TABLE_NAME} table with the string hash key "bot".
+     */
+    @Bean
+    @ConditionalOnProperty(value = "telegram.dedup.persistOffset", havingValue = "true")
+    public UpdateOffsetStore updateOffsetStore(DynamoDBMapper dynamoDBMapper) {
+        return new DynamoDBUpdateOffsetStore(dynamoDBMapper, updateOffsetKey);
     }
 }
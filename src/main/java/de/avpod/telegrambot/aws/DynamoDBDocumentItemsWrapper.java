@@ -0,0 +1,519 @@
+package de.avpod.telegrambot.aws;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBQueryExpression;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBScanExpression;
+import com.amazonaws.services.dynamodbv2.model.*;
+import de.avpod.telegrambot.DocumentType;
+import de.avpod.telegrambot.DocumentUpdateResult;
+import de.avpod.telegrambot.FlowStatus;
+import de.avpod.telegrambot.UploadedDocument;
+import de.avpod.telegrambot.telegram.UnrecognizedDocumentInfo;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Storage layout where every document is a separate item of the documents table
+ * (hash key username, range key document id) instead of an entry of the {@link UserInfo#getDocuments()} list.
+ * The user item keeps the amount of documents per type, so single document operations touch only their own item
+ * and one read and one conditional write of the user, whatever the number of documents. Embedded documents and
+ * the counts of users written before are migrated on the first write or by {@link #migrateAllUsers()}.
+ */
+@Log4j2
+public class DynamoDBDocumentItemsWrapper extends DynamoDBWrapper {
+    private static final int MAX_CONDITIONAL_UPDATE_ATTEMPTS = 5;
+
+    private final AmazonDynamoDB dynamoDB;
+    private final DynamoDBMapper mapper;
+    private final DynamoDBMapperConfig mapperConfig;
+    private final DynamoDBMapperConfig documentsMapperConfig;
+
+    public DynamoDBDocumentItemsWrapper(AmazonDynamoDB dynamoDB,
+                                        DynamoDBMapper mapper,
+                                        DynamoDBMapperConfig mapperConfig,
+                                        DynamoDBMapperConfig documentsMapperConfig) {
+        super(dynamoDB, mapper, mapperConfig);
+        this.dynamoDB = dynamoDB;
+        this.mapper = mapper;
+        this.mapperConfig = mapperConfig;
+        this.documentsMapperConfig = documentsMapperConfig;
+    }
+
+    @Override
+    UserInfo newUserInfo(String userName, String firstName, String lastName, long chatId, FlowStatus flowStatus) {
+        UserInfo userInfo = super.newUserInfo(userName, firstName, lastName, chatId, flowStatus);
+        userInfo.setDocumentCounts(new HashMap<>());
+        return userInfo;
+    }
+
+    @Override
+    public String saveDocumentInfo(String userName,
+                                   String telegramFileId,
+                                   String cloudIdentifier,
+                                   Optional<String> originalFileName,
+                                   String cloudFileName,
+                                   Optional<String> telegramThumbnailId) {
+        return saveDocumentItems(userName, Collections.singletonList(uploadedDocument(telegramFileId, cloudIdentifier,
+                originalFileName, cloudFileName, telegramThumbnailId)), Optional.empty()).get(0);
+    }
+
+    @Override
+    public String saveDocumentAndUpdateFlowStatus(String userName,
+                                                  String telegramFileId,
+                                                  String cloudIdentifier,
+                                                  Optional<String> originalFileName,
+                                                  String cloudFileName,
+                                                  Optional<String> telegramThumbnailId,
+                                                  FlowStatus flowStatus) {
+        return saveDocumentItems(userName, Collections.singletonList(uploadedDocument(telegramFileId, cloudIdentifier,
+                originalFileName, cloudFileName, telegramThumbnailId)), Optional.of(flowStatus)).get(0);
+    }
+
+    /**
+     * The user item is updated once for all documents, the document items are written with one batch request.
+     */
+    @Override
+    public List<String> saveDocumentsAndUpdateFlowStatus(String userName,
+                                                         List<UploadedDocument> documents,
+                                                         FlowStatus flowStatus) {
+        return saveDocumentItems(userName, documents, Optional.of(flowStatus));
+    }
+
+    private List<String> saveDocumentItems(String userName,
+                                           List<UploadedDocument> documents,
+                                           Optional<FlowStatus> flowStatus) {
+        List<String> ids = new ArrayList<>(documents.size());
+        List<StoredDocumentItem> items = new ArrayList<>(documents.size());
+        for (UploadedDocument document : documents) {
+            String id = UUID.randomUUID().toString();
+            log.info("Saving document item with cloudId {} and UUID {} for user {}",
+                    document.getCloudIdentifier(), id, userName);
+            ids.add(id);
+            items.add(StoredDocumentItem.of(userName, toStoredDocument(id, document)));
+        }
+
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":pending", new AttributeValue(UserInfo.PENDING_RECOGNITION));
+        values.put(":count", new AttributeValue().withN(String.valueOf(documents.size())));
+        values.put(":zero", new AttributeValue().withN("0"));
+        values.put(":one", new AttributeValue().withN("1"));
+        String updateExpression = "SET recognition_pending = :pending, " +
+                "document_counts.#unknown = if_not_exists(document_counts.#unknown, :zero) + :count";
+        if (flowStatus.isPresent()) {
+            updateExpression += ", user_status = :status";
+            values.put(":status", new AttributeValue(flowStatus.get().name()));
+        }
+        updateExpression += " ADD unrecognized_count :count, documents_version :one" +
+                addContentHashes(documents, values);
+
+        // counted before the items are written, so the counts initialized for a user never miss an item
+        for (int attempt = 1; ; attempt++) {
+            try {
+                dynamoDB.updateItem(new UpdateItemRequest()
+                        .withTableName(mapperConfig.getTableNameOverride().getTableName())
+                        .withKey(userKey(userName))
+                        .withUpdateExpression(updateExpression)
+                        .withConditionExpression("attribute_exists(document_counts)")
+                        .withExpressionAttributeNames(Collections.singletonMap("#unknown", DocumentType.UNKNOWN.name()))
+                        .withExpressionAttributeValues(values));
+                break;
+            } catch (ConditionalCheckFailedException e) {
+                if (loadWithDocumentCounts(userName) == null)
+                    throw new IllegalStateException("Cannot insert document for non-existing user:" + userName, e);
+                if (attempt >= MAX_CONDITIONAL_UPDATE_ATTEMPTS)
+                    throw new IllegalStateException("Cannot save documents of user:" + userName, e);
+            }
+        }
+
+        try {
+            writeDocumentItems(userName, items);
+        } catch (RuntimeException e) {
+            log.error("Cannot write document items of user {}, reverting their counts", userName);
+            mapper.batchWrite(Collections.emptyList(), items, documentsMapperConfig);
+            updateDocumentCounts(loadWithDocumentCounts(userName),
+                    Collections.singletonMap(DocumentType.UNKNOWN, -documents.size()),
+                    items.stream().map(StoredDocumentItem::toStoredDocument).collect(Collectors.toList()));
+            throw e;
+        }
+        return ids;
+    }
+
+    private void writeDocumentItems(String userName, List<StoredDocumentItem> items) {
+        if (items.size() == 1) {
+            mapper.save(items.get(0), documentsMapperConfig);
+            return;
+        }
+        List<DynamoDBMapper.FailedBatch> failedBatches =
+                mapper.batchWrite(items, Collections.emptyList(), documentsMapperConfig);
+        if (!failedBatches.isEmpty())
+            throw new IllegalStateException("Cannot save documents of user:" + userName,
+                    failedBatches.get(0).getException());
+    }
+
+    @Override
+    public Collection<UserInfo> queryUsersForImageRecognition() {
+        // documents are not part of the user item anymore, the index flag is kept in sync with the unknown count
+        return queryPendingRecognitionIndex();
+    }
+
+    @Override
+    public List<UnrecognizedDocumentInfo> queryUnrecognizedDocuments(String username) {
+        log.info("Getting unrecognized document items for user {}", username);
+        return unrecognizedDocuments(getFullInfo(username));
+    }
+
+    @Override
+    public void markDocumentAsNotifiedForRecognition(String username, String documentId) {
+        log.info("Marking document item with id {} as requested for user {}", documentId, username);
+        UserInfo userInfo = loadWithDocumentCounts(username);
+        if (userInfo == null)
+            return;
+        updateDocumentItemType(username, documentId, DocumentType.UNKNOWN_REQUESTED).ifPresent((previousItem) ->
+                updateDocumentCounts(userInfo,
+                        typeChange(documentType(previousItem), Optional.of(DocumentType.UNKNOWN_REQUESTED)),
+                        Collections.emptyList()));
+    }
+
+    /**
+     * Embedded documents which are not migrated yet are returned as they are, reads never write.
+     */
+    @Override
+    public UserInfo getFullInfo(String userName) {
+        UserInfo userInfo = super.getFullInfo(userName);
+        if (userInfo == null)
+            return null;
+
+        Map<String, StoredDocument> documents = new LinkedHashMap<>();
+        if (userInfo.getDocuments() != null)
+            userInfo.getDocuments().forEach((document) -> documents.put(document.getId(), document));
+        // an interrupted migration leaves both copies, the item is the current one
+        loadDocuments(userName).forEach((document) -> documents.put(document.getId(), document));
+        userInfo.setDocuments(new ArrayList<>(documents.values()));
+        return userInfo;
+    }
+
+    @Override
+    public DocumentUpdateResult deleteDocument(String userName, String documentId) {
+        log.info("Deleting document item {} for user {}", documentId, userName);
+        UserInfo userInfo = loadWithDocumentCounts(userName);
+        if (userInfo == null)
+            return new DocumentUpdateResult(FlowStatus.NEW, Optional.empty());
+        Optional<Map<String, AttributeValue>> deletedItem = deleteDocumentItem(userName, documentId);
+        if (!deletedItem.isPresent()) {
+            log.warn("Cannot delete document with id {} not found for user {}", documentId, userName);
+            return new DocumentUpdateResult(FlowStatus.valueOf(userInfo.getStatus()), Optional.empty());
+        }
+        StoredDocument deletedDocument = mapper.getTableModel(StoredDocumentItem.class, documentsMapperConfig)
+                .unconvert(deletedItem.get())
+                .toStoredDocument();
+        FlowStatus flowStatus = updateDocumentCounts(userInfo,
+                typeChange(documentType(deletedItem.get()), Optional.empty()),
+                Collections.singletonList(deletedDocument));
+        return new DocumentUpdateResult(flowStatus, cloudIdentifier(deletedItem.get()));
+    }
+
+    @Override
+    public DocumentUpdateResult updateDocumentType(String userName, String documentId, DocumentType documentType) {
+        log.info("Updating document item with id {} with type {} for user {}", documentId, documentType, userName);
+        UserInfo userInfo = loadWithDocumentCounts(userName);
+        if (userInfo == null)
+            return new DocumentUpdateResult(FlowStatus.NEW, Optional.empty());
+        Optional<Map<String, AttributeValue>> previousItem = updateDocumentItemType(userName, documentId, documentType);
+        if (!previousItem.isPresent())
+            return new DocumentUpdateResult(FlowStatus.valueOf(userInfo.getStatus()), Optional.empty());
+        FlowStatus flowStatus = updateDocumentCounts(userInfo,
+                typeChange(documentType(previousItem.get()), Optional.of(documentType)),
+                Collections.emptyList());
+        return new DocumentUpdateResult(flowStatus, cloudIdentifier(previousItem.get()));
+    }
+
+    /**
+     * Moves embedded documents of all users into separate items and initializes the missing document counts,
+     * normally users are migrated lazily on their first write.
+     */
+    void migrateAllUsers() {
+        log.info("Migrating embedded documents of all users into separate items");
+        List<UserInfo> users = mapper.scan(UserInfo.class, new DynamoDBScanExpression(), mapperConfig);
+        for (UserInfo userInfo : users) {
+            if (userInfo.getDocumentCounts() == null)
+                initializeDocumentCounts(userInfo);
+        }
+        log.info("Migration of {} users finished", users.size());
+    }
+
+    private Optional<Map<String, AttributeValue>> updateDocumentItemType(String username,
+                                                                         String documentId,
+                                                                         DocumentType documentType) {
+        try {
+            UpdateItemResult result = dynamoDB.updateItem(new UpdateItemRequest()
+                    .withTableName(documentsMapperConfig.getTableNameOverride().getTableName())
+                    .withKey(documentKey(username, documentId))
+                    .withUpdateExpression("SET document_type = :document_type")
+                    .withConditionExpression("attribute_exists(id)")
+                    .withExpressionAttributeValues(Collections.singletonMap(
+                            ":document_type", new AttributeValue(documentType.name())
+                    ))
+                    .withReturnValues(ReturnValue.ALL_OLD));
+            return Optional.ofNullable(result.getAttributes());
+        } catch (ConditionalCheckFailedException e) {
+            log.warn("Cannot update document with id {} not found for user {}", documentId, username);
+            return Optional.empty();
+        }
+    }
+
+    private Optional<Map<String, AttributeValue>> deleteDocumentItem(String username, String documentId) {
+        DeleteItemResult result = dynamoDB.deleteItem(new DeleteItemRequest()
+                .withTableName(documentsMapperConfig.getTableNameOverride().getTableName())
+                .withKey(documentKey(username, documentId))
+                .withReturnValues(ReturnValue.ALL_OLD));
+        if (result.getAttributes() == null || result.getAttributes().isEmpty())
+            return Optional.empty();
+        return Optional.of(result.getAttributes());
+    }
+
+    private Optional<String> cloudIdentifier(Map<String, AttributeValue> item) {
+        return Optional.ofNullable(item.get("drive_id")).map(AttributeValue::getS);
+    }
+
+    private static DocumentType documentType(Map<String, AttributeValue> item) {
+        return DocumentType.valueOf(item.get("document_type").getS());
+    }
+
+    private static Map<DocumentType, Integer> typeChange(DocumentType previousType, Optional<DocumentType> nextType) {
+        Map<DocumentType, Integer> countChanges = new EnumMap<>(DocumentType.class);
+        countChanges.put(previousType, -1);
+        nextType.ifPresent((documentType) -> countChanges.merge(documentType, 1, Integer::sum));
+        return countChanges;
+    }
+
+    /**
+     * Loads the user with a consistent read, the document counts are initialized first if they are missing.
+     * Document items are changed only after this, so the initialization cannot count a change twice.
+     *
+     * @return null if the user does not exist
+     */
+    private UserInfo loadWithDocumentCounts(String username) {
+        UserInfo userInfo = mapper.load(UserInfo.class, username, consistentReadConfig());
+        if (userInfo == null || userInfo.getDocumentCounts() != null)
+            return userInfo;
+        initializeDocumentCounts(userInfo);
+        return mapper.load(UserInfo.class, username, consistentReadConfig());
+    }
+
+    /**
+     * Applies the count changes to the loaded user and derives the documents mask, the unrecognized count,
+     * the pending recognition flag and the status from the counts. The write is conditional on the documents
+     * version, on a concurrent change the user is loaded again and the changes are applied anew.
+     * The hashes of the removed documents are removed with the same write.
+     */
+    private FlowStatus updateDocumentCounts(UserInfo loadedUserInfo,
+                                            Map<DocumentType, Integer> countChanges,
+                                            List<StoredDocument> removedDocuments) {
+        UserInfo userInfo = loadedUserInfo;
+        for (int attempt = 1; ; attempt++) {
+            Map<String, Integer> documentCounts = new HashMap<>(userInfo.getDocumentCounts());
+            countChanges.forEach((documentType, change) -> {
+                int count = documentCounts.getOrDefault(documentType.name(), 0) + change;
+                if (count > 0)
+                    documentCounts.put(documentType.name(), count);
+                else
+                    documentCounts.remove(documentType.name());
+            });
+            long documentsMask = documentsMask(documentCounts);
+            int unrecognizedCount = unrecognizedCount(documentCounts);
+            FlowStatus flowStatus = calculateUserStatus(documentsMask, unrecognizedCount);
+
+            Map<String, AttributeValue> values = documentCountValues(documentCounts);
+            values.put(":status", new AttributeValue(flowStatus.name()));
+            values.put(":one", new AttributeValue().withN("1"));
+            String updateExpression = "SET document_counts = :counts, documents_mask = :mask, " +
+                    "unrecognized_count = :count, user_status = :status";
+            updateExpression += recognitionPending(documentCounts, flowStatus.name(), values);
+            updateExpression += " ADD documents_version :one" + deleteContentHashes(removedDocuments, values);
+            try {
+                dynamoDB.updateItem(new UpdateItemRequest()
+                        .withTableName(mapperConfig.getTableNameOverride().getTableName())
+                        .withKey(userKey(userInfo.getUsername()))
+                        .withUpdateExpression(updateExpression)
+                        .withConditionExpression(expectedDocumentsVersion(userInfo, values))
+                        .withExpressionAttributeValues(values));
+                return flowStatus;
+            } catch (ConditionalCheckFailedException e) {
+                if (attempt >= MAX_CONDITIONAL_UPDATE_ATTEMPTS)
+                    throw new IllegalStateException("Cannot update status of user:" + userInfo.getUsername(), e);
+                log.info("Documents of user {} were changed concurrently, retrying status update",
+                        userInfo.getUsername());
+                userInfo = loadWithDocumentCounts(userInfo.getUsername());
+                if (userInfo == null)
+                    throw new IllegalStateException("Cannot update status of non-existing user", e);
+            }
+        }
+    }
+
+    /**
+     * Migrates the embedded documents and counts the document items once. Saves increment the counts only
+     * after they exist, so no item can be written between the count and the write of the counts.
+     */
+    private void initializeDocumentCounts(UserInfo userInfo) {
+        migrateEmbeddedDocuments(userInfo);
+        Map<String, Integer> documentCounts = new HashMap<>();
+        for (StoredDocument document : loadDocuments(userInfo.getUsername())) {
+            documentCounts.merge(document.getDocumentType(), 1, Integer::sum);
+        }
+        log.info("Initializing document counts {} of user {}", documentCounts, userInfo.getUsername());
+
+        Map<String, AttributeValue> values = documentCountValues(documentCounts);
+        values.put(":one", new AttributeValue().withN("1"));
+        String updateExpression = "SET document_counts = :counts, documents_mask = :mask, unrecognized_count = :count";
+        updateExpression += recognitionPending(documentCounts, userInfo.getStatus(), values);
+        updateExpression += " ADD documents_version :one";
+        try {
+            dynamoDB.updateItem(new UpdateItemRequest()
+                    .withTableName(mapperConfig.getTableNameOverride().getTableName())
+                    .withKey(userKey(userInfo.getUsername()))
+                    .withUpdateExpression(updateExpression)
+                    .withConditionExpression("attribute_exists(username) AND attribute_not_exists(document_counts)")
+                    .withExpressionAttributeValues(values));
+        } catch (ConditionalCheckFailedException e) {
+            log.info("Document counts of user {} were initialized concurrently", userInfo.getUsername());
+        }
+    }
+
+    private static Map<String, AttributeValue> documentCountValues(Map<String, Integer> documentCounts) {
+        Map<String, AttributeValue> counts = new HashMap<>();
+        documentCounts.forEach((documentType, count) ->
+                counts.put(documentType, new AttributeValue().withN(String.valueOf(count))));
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":counts", new AttributeValue().withM(counts));
+        values.put(":mask", new AttributeValue().withN(String.valueOf(documentsMask(documentCounts))));
+        values.put(":count", new AttributeValue().withN(String.valueOf(unrecognizedCount(documentCounts))));
+        return values;
+    }
+
+    /**
+     * Sets the pending recognition flag while a document of type UNKNOWN exists and the user is not finished,
+     * as in the embedded layout.
+     *
+     * @return the action to append to the SET actions
+     */
+    private static String recognitionPending(Map<String, Integer> documentCounts,
+                                             String flowStatus,
+                                             Map<String, AttributeValue> values) {
+        if (!documentCounts.containsKey(DocumentType.UNKNOWN.name()) || FlowStatus.FINISHED.name().equals(flowStatus))
+            return " REMOVE recognition_pending";
+        values.put(":pending", new AttributeValue(UserInfo.PENDING_RECOGNITION));
+        return ", recognition_pending = :pending";
+    }
+
+    private static long documentsMask(Map<String, Integer> documentCounts) {
+        long documentsMask = 0;
+        for (String documentType : documentCounts.keySet()) {
+            if (DocumentType.valueOf(documentType).isReal())
+                documentsMask |= DocumentType.valueOf(documentType).mask();
+        }
+        return documentsMask;
+    }
+
+    private static int unrecognizedCount(Map<String, Integer> documentCounts) {
+        return documentCounts.getOrDefault(DocumentType.UNKNOWN.name(), 0) +
+                documentCounts.getOrDefault(DocumentType.UNKNOWN_REQUESTED.name(), 0);
+    }
+
+    private static String expectedDocumentsVersion(UserInfo userInfo, Map<String, AttributeValue> values) {
+        if (userInfo.getDocumentsVersion() == null)
+            return "attribute_not_exists(documents_version)";
+        values.put(":expected_version", new AttributeValue().withN(String.valueOf(userInfo.getDocumentsVersion())));
+        return "documents_version = :expected_version";
+    }
+
+    /**
+     * @return DELETE action for the hash sets of the user, empty if no document has a fingerprint
+     */
+    private static String deleteContentHashes(List<StoredDocument> documents, Map<String, AttributeValue> values) {
+        List<String> contentHashes = new ArrayList<>();
+        List<String> perceptualHashes = new ArrayList<>();
+        for (StoredDocument document : documents) {
+            if (document.getContentSha256() != null)
+                contentHashes.add(document.getContentSha256());
+            if (document.getPerceptualHash() != null)
+                perceptualHashes.add(String.valueOf(document.getPerceptualHash()));
+        }
+        List<String> deleteActions = new ArrayList<>();
+        if (!contentHashes.isEmpty()) {
+            deleteActions.add("content_hashes :removed_content_hashes");
+            values.put(":removed_content_hashes", new AttributeValue().withSS(contentHashes));
+        }
+        if (!perceptualHashes.isEmpty()) {
+            deleteActions.add("perceptual_hashes :removed_perceptual_hashes");
+            values.put(":removed_perceptual_hashes", new AttributeValue().withNS(perceptualHashes));
+        }
+        return deleteActions.isEmpty() ? "" : " DELETE " + String.join(", ", deleteActions);
+    }
+
+    private List<StoredDocument> loadDocuments(String username) {
+        DynamoDBQueryExpression<StoredDocumentItem> queryExpression = new DynamoDBQueryExpression<StoredDocumentItem>()
+                .withHashKeyValues(StoredDocumentItem.builder().username(username).build())
+                .withConsistentRead(true);
+        return mapper.query(StoredDocumentItem.class, queryExpression, documentsMapperConfig)
+                .stream()
+                .map(StoredDocumentItem::toStoredDocument)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * The embedded documents are removed only if none was appended meanwhile, otherwise they are loaded
+     * and migrated again. Writing the same items twice is harmless, their keys do not change.
+     */
+    private void migrateEmbeddedDocuments(UserInfo userInfo) {
+        for (int attempt = 1; ; attempt++) {
+            if (userInfo.getDocuments() == null || userInfo.getDocuments().isEmpty())
+                return;
+
+            log.info("Migrating {} embedded documents of user {} into separate items",
+                    userInfo.getDocuments().size(), userInfo.getUsername());
+            List<StoredDocumentItem> items = userInfo.getDocuments()
+                    .stream()
+                    .map((document) -> StoredDocumentItem.of(userInfo.getUsername(), document))
+                    .collect(Collectors.toList());
+            List<DynamoDBMapper.FailedBatch> failedBatches =
+                    mapper.batchWrite(items, Collections.emptyList(), documentsMapperConfig);
+            if (!failedBatches.isEmpty())
+                throw new IllegalStateException("Cannot migrate documents of user:" + userInfo.getUsername(),
+                        failedBatches.get(0).getException());
+
+            try {
+                dynamoDB.updateItem(new UpdateItemRequest()
+                        .withTableName(mapperConfig.getTableNameOverride().getTableName())
+                        .withKey(userKey(userInfo.getUsername()))
+                        .withUpdateExpression("REMOVE documents")
+                        .withConditionExpression("size(documents) = :migrated_count")
+                        .withExpressionAttributeValues(Collections.singletonMap(":migrated_count",
+                                new AttributeValue().withN(String.valueOf(items.size())))));
+                userInfo.setDocuments(new ArrayList<>());
+                return;
+            } catch (ConditionalCheckFailedException e) {
+                if (attempt >= MAX_CONDITIONAL_UPDATE_ATTEMPTS)
+                    throw new IllegalStateException("Cannot migrate documents of user:" + userInfo.getUsername(), e);
+                log.info("Embedded documents of user {} were changed during migration, migrating again",
+                        userInfo.getUsername());
+                UserInfo reloaded = mapper.load(UserInfo.class, userInfo.getUsername(), consistentReadConfig());
+                userInfo.setDocuments(reloaded == null ? null : reloaded.getDocuments());
+            }
+        }
+    }
+
+    private static Map<String, AttributeValue> userKey(String username) {
+        return Collections.singletonMap("username", new AttributeValue(username));
+    }
+
+    private static Map<String, AttributeValue> documentKey(String username, String documentId) {
+        Map<String, AttributeValue> key = new HashMap<>();
+        key.put("username", new AttributeValue(username));
+        key.put("id", new AttributeValue(documentId));
+        return key;
+    }
+}
@@ -0,0 +1,43 @@
+package de.avpod.telegrambot.aws;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import de.avpod.telegrambot.UpdateOffsetStore;
+import lombok.AllArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.Optional;
+
+/**
+ * One row per bot in the {@link TelegramUpdateOffset#TABLE_NAME} table.
+ */
+@AllArgsConstructor
+@Log4j2
+public class DynamoDBUpdateOffsetStore implements UpdateOffsetStore {
+    private static final DynamoDBMapperConfig CONSISTENT_READS = DynamoDBMapperConfig.builder()
+            .withConsistentReads(DynamoDBMapperConfig.ConsistentReads.CONSISTENT)
+            .build();
+
+    private final DynamoDBMapper mapper;
+    private final String botName;
+
+    @Override
+    public Optional<Long> load(long maxAgeMillis) {
+        TelegramUpdateOffset offset = mapper.load(TelegramUpdateOffset.class, botName, CONSISTENT_READS);
+        if (offset == null || offset.getSavedAt() < System.currentTimeMillis() - maxAgeMillis) {
+            log.info("No recent update offset for bot {}: {}", botName, offset);
+            return Optional.empty();
+        }
+        log.info("Loaded update offset {} of bot {}", offset.getUpdateId(), botName);
+        return Optional.of(offset.getUpdateId());
+    }
+
+    @Override
+    public void save(long updateId) {
+        mapper.save(TelegramUpdateOffset.builder()
+                .bot(botName)
+                .updateId(updateId)
+                .savedAt(System.currentTimeMillis())
+                .build());
+    }
+}
@@ -1,22 +1,36 @@
 package de.avpod.telegrambot.aws;
 
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBQueryExpression;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBSaveExpression;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBScanExpression;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import de.avpod.telegrambot.DocumentHashIndex;
 import de.avpod.telegrambot.DocumentType;
+import de.avpod.telegrambot.DocumentUpdateResult;
 import de.avpod.telegrambot.FlowStatus;
 import de.avpod.telegrambot.PersistentStorageWrapper;
+import de.avpod.telegrambot.UploadedDocument;
 import de.avpod.telegrambot.telegram.UnrecognizedDocumentInfo;
 import lombok.AllArgsConstructor;
 import lombok.extern.log4j.Log4j2;
 
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 @AllArgsConstructor
 @Log4j2
 public class DynamoDBWrapper implements PersistentStorageWrapper {
+    private static final int MAX_DOCUMENTS_SAVE_ATTEMPTS = 5;
+
+    private final AmazonDynamoDB dynamoDB;
     private final DynamoDBMapper mapper;
     private final DynamoDBMapperConfig mapperConfig;
 
@@ -38,83 +52,217 @@ public class DynamoDBWrapper implements PersistentStorageWrapper {
                                    Optional<String> originalFileName,
                                    String cloudFileName,
                                    Optional<String> telegramThumbnailId) {
-        String id = UUID.randomUUID().toString();
-        log.info("Saving document with cloudId {} and UUID {} for user {}", cloudIdentifier, id, userName);
-        UserInfo userInfo = mapper.load(UserInfo.class, userName, mapperConfig);
-        if (userInfo == null)
-            throw new IllegalStateException("Cannot insert document for non-existing user:" + userName);
+        return appendDocuments(userName, Collections.singletonList(uploadedDocument(telegramFileId, cloudIdentifier,
+                originalFileName, cloudFileName, telegramThumbnailId)), Optional.empty()).get(0);
+    }
 
-        StoredDocument document = StoredDocument.builder()
-                .id(id)
-                .telegramThumbnailId(telegramThumbnailId.orElse(null))
+    @Override
+    public String saveDocumentAndUpdateFlowStatus(String userName,
+                                                  String telegramFileId,
+                                                  String cloudIdentifier,
+                                                  Optional<String> originalFileName,
+                                                  String cloudFileName,
+                                                  Optional<String> telegramThumbnailId,
+                                                  FlowStatus flowStatus) {
+        return appendDocuments(userName, Collections.singletonList(uploadedDocument(telegramFileId, cloudIdentifier,
+                originalFileName, cloudFileName, telegramThumbnailId)), Optional.of(flowStatus)).get(0);
+    }
+
+    @Override
+    public List<String> saveDocumentsAndUpdateFlowStatus(String userName,
+                                                         List<UploadedDocument> documents,
+                                                         FlowStatus flowStatus) {
+        return appendDocuments(userName, documents, Optional.of(flowStatus));
+    }
+
+    private List<String> appendDocuments(String userName,
+                                         List<UploadedDocument> documents,
+                                         Optional<FlowStatus> flowStatus) {
+        List<String> ids = new ArrayList<>(documents.size());
+        List<AttributeValue> storedDocuments = new ArrayList<>(documents.size());
+        for (UploadedDocument document : documents) {
+            String id = UUID.randomUUID().toString();
+            log.info("Saving document with cloudId {} and UUID {} for user {}", document.getCloudIdentifier(), id, userName);
+            ids.add(id);
+            storedDocuments.add(toAttributeValue(toStoredDocument(id, document)));
+        }
+
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":document", new AttributeValue().withL(storedDocuments));
+        values.put(":empty", new AttributeValue().withL(Collections.emptyList()));
+        values.put(":pending", new AttributeValue(UserInfo.PENDING_RECOGNITION));
+        values.put(":count", new AttributeValue().withN(String.valueOf(documents.size())));
+        values.put(":one", new AttributeValue().withN("1"));
+        String updateExpression = "SET documents = list_append(if_not_exists(documents, :empty), :document), " +
+                "recognition_pending = :pending";
+        if (flowStatus.isPresent()) {
+            updateExpression += ", user_status = :status";
+            values.put(":status", new AttributeValue(flowStatus.get().name()));
+        }
+        updateExpression += " ADD unrecognized_count :count, documents_version :one" + addContentHashes(documents, values);
+
+        try {
+            dynamoDB.updateItem(new UpdateItemRequest()
+                    .withTableName(mapperConfig.getTableNameOverride().getTableName())
+                    .withKey(Collections.singletonMap("username", new AttributeValue(userName)))
+                    .withUpdateExpression(updateExpression)
+                    .withConditionExpression("attribute_exists(username)")
+                    .withExpressionAttributeValues(values));
+        } catch (ConditionalCheckFailedException e) {
+            throw new IllegalStateException("Cannot insert document for non-existing user:" + userName, e);
+        }
+        return ids;
+    }
+
+    /**
+     * @return additional ADD actions for the hash sets of the user, empty if no document has a fingerprint
+     */
+    static String addContentHashes(List<UploadedDocument> documents, Map<String, AttributeValue> values) {
+        List<String> contentHashes = new ArrayList<>();
+        List<String> perceptualHashes = new ArrayList<>();
+        for (UploadedDocument document : documents) {
+            if (document.getFingerprint() == null)
+                continue;
+            contentHashes.add(document.getFingerprint().getSha256());
+            document.getFingerprint().getPerceptualHash().ifPresent((hash) -> perceptualHashes.add(String.valueOf(hash)));
+        }
+        String addActions = "";
+        if (!contentHashes.isEmpty()) {
+            addActions += ", content_hashes :content_hashes";
+            values.put(":content_hashes", new AttributeValue().withSS(contentHashes));
+        }
+        if (!perceptualHashes.isEmpty()) {
+            addActions += ", perceptual_hashes :perceptual_hashes";
+            values.put(":perceptual_hashes", new AttributeValue().withNS(perceptualHashes));
+        }
+        return addActions;
+    }
+
+    static UploadedDocument uploadedDocument(String telegramFileId,
+                                             String cloudIdentifier,
+                                             Optional<String> originalFileName,
+                                             String cloudFileName,
+                                             Optional<String> telegramThumbnailId) {
+        return UploadedDocument.builder()
                 .telegramFileId(telegramFileId)
                 .cloudIdentifier(cloudIdentifier)
+                .originalFileName(originalFileName)
+                .cloudFileName(cloudFileName)
+                .telegramThumbnailId(telegramThumbnailId)
+                .build();
+    }
+
+    static StoredDocument toStoredDocument(String id, UploadedDocument document) {
+        return StoredDocument.builder()
+                .id(id)
+                .telegramThumbnailId(document.getTelegramThumbnailId().orElse(null))
+                .telegramFileId(document.getTelegramFileId())
+                .cloudIdentifier(document.getCloudIdentifier())
+                .originalFilename(document.getOriginalFileName().orElse(null))
                 .documentType(DocumentType.UNKNOWN.name())
-                .savedFilename(cloudFileName)
+                .savedFilename(document.getCloudFileName())
+                .contentSha256(document.getFingerprint() == null ? null : document.getFingerprint().getSha256())
+                .perceptualHash(document.getFingerprint() == null ?
+                        null :
+                        document.getFingerprint().getPerceptualHash().orElse(null))
                 .build();
-        userInfo.getDocuments().add(document);
-        log.info("Amount of documents for user: {}", userInfo.getDocuments().size());
-        mapper.save(userInfo, new DynamoDBMapperConfig(
-                DynamoDBMapperConfig.SaveBehavior.APPEND_SET,
-                mapperConfig.getConsistentReads(),
-                mapperConfig.getTableNameOverride()
-        ));
-        return id;
+    }
+
+    private static AttributeValue toAttributeValue(StoredDocument document) {
+        Map<String, AttributeValue> attributes = new HashMap<>();
+        putIfPresent(attributes, "id", document.getId());
+        putIfPresent(attributes, "document_type", document.getDocumentType());
+        putIfPresent(attributes, "drive_id", document.getCloudIdentifier());
+        putIfPresent(attributes, "original_filename", document.getOriginalFilename());
+        putIfPresent(attributes, "saved_filename", document.getSavedFilename());
+        putIfPresent(attributes, "telegram_file_id", document.getTelegramFileId());
+        putIfPresent(attributes, "telegram_thumbnail_id", document.getTelegramThumbnailId());
+        putIfPresent(attributes, "content_sha256", document.getContentSha256());
+        if (document.getPerceptualHash() != null)
+            attributes.put("perceptual_hash", new AttributeValue().withN(String.valueOf(document.getPerceptualHash())));
+        return new AttributeValue().withM(attributes);
+    }
+
+    private static void putIfPresent(Map<String, AttributeValue> attributes, String name, String value) {
+        if (value != null)
+            attributes.put(name, new AttributeValue(value));
     }
 
     @Override
     public void insertUser(String userName, String firstName, String lastName, long chatId, FlowStatus flowStatus) {
         log.info("Inserting new user {}", userName);
-        UserInfo userInfo = UserInfo.builder()
+        mapper.save(newUserInfo(userName, firstName, lastName, chatId, flowStatus), new DynamoDBMapperConfig(
+                DynamoDBMapperConfig.SaveBehavior.UPDATE_SKIP_NULL_ATTRIBUTES,
+                mapperConfig.getConsistentReads(),
+                mapperConfig.getTableNameOverride()
+        ));
+    }
+
+    UserInfo newUserInfo(String userName, String firstName, String lastName, long chatId, FlowStatus flowStatus) {
+        return UserInfo.builder()
                 .username(userName)
                 .firstName(firstName)
                 .lastName(lastName)
                 .chatId(chatId)
                 .status(flowStatus.name())
                 .documents(Collections.emptyList())
+                .documentsMask(0L)
+                .unrecognizedCount(0)
                 .build();
-        mapper.save(userInfo, new DynamoDBMapperConfig(
-                DynamoDBMapperConfig.SaveBehavior.UPDATE_SKIP_NULL_ATTRIBUTES,
-                mapperConfig.getConsistentReads(),
-                mapperConfig.getTableNameOverride()
-        ));
     }
 
     @Override
     public void updateFlowStatus(String userName, FlowStatus flowStatus) {
         log.info("Updating flow status for user {}", userName);
-        UserInfo userInfo = UserInfo.builder().username(userName).status(flowStatus.name()).build();
-        mapper.save(userInfo, new DynamoDBMapperConfig(
-                DynamoDBMapperConfig.SaveBehavior.UPDATE_SKIP_NULL_ATTRIBUTES,
-                mapperConfig.getConsistentReads(),
-                mapperConfig.getTableNameOverride()
-        ));
+        String updateExpression = "SET user_status = :status";
+        // finished users are never prompted, so they leave the pending recognition index
+        if (flowStatus == FlowStatus.FINISHED)
+            updateExpression += " REMOVE recognition_pending";
+        dynamoDB.updateItem(new UpdateItemRequest()
+                .withTableName(mapperConfig.getTableNameOverride().getTableName())
+                .withKey(Collections.singletonMap("username", new AttributeValue(userName)))
+                .withUpdateExpression(updateExpression)
+                .withExpressionAttributeValues(Collections.singletonMap(":status",
+                        new AttributeValue(flowStatus.name()))));
     }
 
     @Override
     public Collection<UserInfo> queryUsersForImageRecognition() {
+        return queryPendingRecognitionIndex()
+                .stream()
+                .filter((userInfo) ->
+                        userInfo.getDocuments().stream().anyMatch((document) ->
+                                document.getDocumentType().equals(DocumentType.UNKNOWN.name())
+                        )).collect(Collectors.toList());
+    }
+
+    List<UserInfo> queryPendingRecognitionIndex() {
         log.info("Querying users with unrecognized documents");
         Map<String, AttributeValue> eav = new HashMap<>();
         eav.put(":finished_status", new AttributeValue().withS("FINISHED"));
         eav.put(":new_status", new AttributeValue().withS(FlowStatus.NEW.name()));
 
-        DynamoDBScanExpression scanExpression = new DynamoDBScanExpression()
+        DynamoDBQueryExpression<UserInfo> queryExpression = new DynamoDBQueryExpression<UserInfo>()
+                .withIndexName(UserInfo.PENDING_RECOGNITION_INDEX)
+                .withConsistentRead(false)
+                .withHashKeyValues(UserInfo.builder().recognitionPending(UserInfo.PENDING_RECOGNITION).build())
                 .withFilterExpression("user_status <> :finished_status and user_status <> :new_status")
                 .withExpressionAttributeValues(eav);
 
-        List<UserInfo> scanResult = mapper.scan(UserInfo.class, scanExpression, mapperConfig);
-        log.info("Found {} users with not new and not finished state", scanResult.size());
-        return scanResult.stream()
-                .filter((userInfo) ->
-                        userInfo.getDocuments().stream().anyMatch((document) ->
-                                document.getDocumentType().equals(DocumentType.UNKNOWN.name())
-                        )).collect(Collectors.toList());
+        List<UserInfo> queryResult = mapper.query(UserInfo.class, queryExpression, mapperConfig);
+        log.info("Found {} users with pending recognition and not new and not finished state", queryResult.size());
+        return queryResult;
     }
 
     @Override
     public List<UnrecognizedDocumentInfo> queryUnrecognizedDocuments(String username) {
         log.info("Getting unrecognized documents status for user {}", username);
-        UserInfo userInfo = mapper.load(UserInfo.class, username, mapperConfig);
+        // consistent read, recognition is triggered right after the document was saved
+        UserInfo userInfo = mapper.load(UserInfo.class, username, consistentReadConfig());
+        return unrecognizedDocuments(userInfo);
+    }
+
+    static List<UnrecognizedDocumentInfo> unrecognizedDocuments(UserInfo userInfo) {
         return userInfo.getDocuments()
                 .stream()
                 .filter((document) -> document.getDocumentType().equals(DocumentType.UNKNOWN.name()))
@@ -142,75 +290,236 @@ public class DynamoDBWrapper implements PersistentStorageWrapper {
     }
 
     @Override
-    public FlowStatus deleteDocument(String userName, String documentId) {
+    public DocumentUpdateResult deleteDocument(String userName, String documentId) {
         log.info("Deleting document {} for user {}", documentId, userName);
-        UserInfo userInfo = getFullInfo(userName);
-        if (!userInfo.getDocuments().removeIf((document) -> document.getId().equals(documentId))) {
-            log.warn("Cannot delete document with id {} not found for user data {}", documentId, userInfo);
-            return FlowStatus.valueOf(userInfo.getStatus());
+        return changeDocument(userName, documentId, (userInfo, deletedDocument) -> {
+            userInfo.getDocuments().remove(deletedDocument);
+            removeContentHashes(userInfo, deletedDocument);
+            applyDocumentTypeChange(userInfo, Optional.of(DocumentType.valueOf(deletedDocument.getDocumentType())),
+                    Optional.empty(), hasDocumentOfType(userInfo));
+        });
+    }
+
+    /**
+     * Empty sets cannot be stored, they are removed instead.
+     */
+    static void removeContentHashes(UserInfo userInfo, StoredDocument document) {
+        if (userInfo.getContentHashes() != null) {
+            userInfo.getContentHashes().remove(document.getContentSha256());
+            if (userInfo.getContentHashes().isEmpty())
+                userInfo.setContentHashes(null);
+        }
+        if (userInfo.getPerceptualHashes() != null) {
+            userInfo.getPerceptualHashes().remove(document.getPerceptualHash());
+            if (userInfo.getPerceptualHashes().isEmpty())
+                userInfo.setPerceptualHashes(null);
         }
-        FlowStatus flowStatus = calculateUserStatus(userInfo);
-        userInfo.setStatus(flowStatus.name());
-        mapper.save(userInfo, mapperConfig);
-        return flowStatus;
     }
 
     @Override
-    public FlowStatus updateDocumentType(String userName, String documentId, DocumentType documentType) {
+    public DocumentHashIndex getDocumentHashIndex(String userName) {
+        log.info("Getting document hashes for user {}", userName);
+        UserInfo userInfo = mapper.load(UserInfo.class, userName, mapperConfig);
+        if (userInfo == null)
+            return new DocumentHashIndex(Collections.emptySet(), Collections.emptySet());
+        return new DocumentHashIndex(
+                userInfo.getContentHashes() == null ? Collections.emptySet() : userInfo.getContentHashes(),
+                userInfo.getPerceptualHashes() == null ? Collections.emptySet() : userInfo.getPerceptualHashes()
+        );
+    }
+
+    @Override
+    public DocumentUpdateResult updateDocumentType(String userName, String documentId, DocumentType documentType) {
         return doUpdateDocumentType(userName, documentId, documentType);
     }
 
-    private FlowStatus calculateUserStatus(UserInfo userInfo) {
-        log.info("Checking if user {} has finished the flow", userInfo.getUsername());
-        boolean allDocumentsFound;
-        Map<DocumentType, Boolean> documentsPresent = new HashMap<>();
-        for (DocumentType documentType : DocumentType.realDocuments()) {
-            documentsPresent.put(documentType, false);
-        }
+    static Optional<StoredDocument> findDocument(UserInfo userInfo, String documentId) {
+        return userInfo.getDocuments()
+                .stream()
+                .filter((document) -> document.getId().equals(documentId))
+                .findFirst();
+    }
+
+    static FlowStatus calculateUserStatus(UserInfo userInfo) {
+        ensureDocumentsCoverage(userInfo);
+        FlowStatus newStatus = calculateUserStatus(userInfo.getDocumentsMask(), userInfo.getUnrecognizedCount());
+        log.info("Calculated status {} for user {}", newStatus, userInfo.getUsername());
+        return newStatus;
+    }
+
+    static FlowStatus calculateUserStatus(long documentsMask, int unrecognizedCount) {
+        if ((documentsMask & DocumentType.REAL_DOCUMENTS_MASK) == DocumentType.REAL_DOCUMENTS_MASK)
+            return FlowStatus.FINISHED;
+        if (unrecognizedCount > 0)
+            return FlowStatus.WAITING_DOCUMENT_RECOGNITION;
+        if ((documentsMask & DocumentType.MANDATORY_DOCUMENTS_MASK) == DocumentType.MANDATORY_DOCUMENTS_MASK)
+            return FlowStatus.MANDATORY_DOCUMENTS_SUBMITTED;
+        return FlowStatus.WAITING_FILES;
+    }
+
+    /**
+     * Calculates the documents mask and the unrecognized count from the documents for users written before
+     * they were persisted.
+     */
+    static void ensureDocumentsCoverage(UserInfo userInfo) {
+        if (userInfo.getDocumentsMask() != null && userInfo.getUnrecognizedCount() != null)
+            return;
+
+        log.info("Calculating documents mask of user {}", userInfo.getUsername());
+        long documentsMask = 0;
+        int unrecognizedCount = 0;
         for (StoredDocument document : userInfo.getDocuments()) {
-            documentsPresent.computeIfPresent(DocumentType.valueOf(document.getDocumentType()), (type, found) -> true);
+            DocumentType documentType = DocumentType.valueOf(document.getDocumentType());
+            if (documentType.isReal())
+                documentsMask |= documentType.mask();
+            else
+                unrecognizedCount++;
+        }
+        userInfo.setDocumentsMask(documentsMask);
+        userInfo.setUnrecognizedCount(unrecognizedCount);
+    }
+
+    /**
+     * Applies the type change of one document to the documents mask and the unrecognized count.
+     * Absent previous type stands for a new document, absent next type for a deleted one.
+     * The bit of the previous type is kept while the user has other documents of that type.
+     */
+    static void applyDocumentTypeChange(UserInfo userInfo,
+                                        Optional<DocumentType> previousType,
+                                        Optional<DocumentType> nextType,
+                                        Predicate<DocumentType> hasOtherDocumentOfType) {
+        long documentsMask = userInfo.getDocumentsMask();
+        int unrecognizedCount = userInfo.getUnrecognizedCount();
+        if (previousType.isPresent()) {
+            if (!previousType.get().isReal())
+                unrecognizedCount = Math.max(0, unrecognizedCount - 1);
+            else if (!hasOtherDocumentOfType.test(previousType.get()))
+                documentsMask &= ~previousType.get().mask();
         }
-        allDocumentsFound = documentsPresent.values().stream().reduce(true, (previous, next) -> previous && next);
+        if (nextType.isPresent()) {
+            if (nextType.get().isReal())
+                documentsMask |= nextType.get().mask();
+            else
+                unrecognizedCount++;
+        }
+        userInfo.setDocumentsMask(documentsMask);
+        userInfo.setUnrecognizedCount(unrecognizedCount);
+    }
 
-        FlowStatus newStatus;
-        if (allDocumentsFound) {
-            log.info("All documents found for user {}", userInfo.getUsername());
-            newStatus = FlowStatus.FINISHED;
-        } else if (userInfo.getDocuments()
+    static Predicate<DocumentType> hasDocumentOfType(UserInfo userInfo) {
+        return (documentType) -> userInfo.getDocuments()
                 .stream()
-                .map(StoredDocument::getDocumentType)
-                .map(DocumentType::valueOf)
-                .noneMatch((documentType ->
-                        documentType == DocumentType.UNKNOWN || documentType == DocumentType.UNKNOWN_REQUESTED))) {
-            boolean allMandatorySubmitted = true;
-            for (DocumentType documentType : DocumentType.mandatoryDocuments()) {
-                allMandatorySubmitted &= documentsPresent.get(documentType);
-            }
+                .anyMatch((document) -> document.getDocumentType().equals(documentType.name()));
+    }
 
-            if (allMandatorySubmitted)
-                newStatus = FlowStatus.MANDATORY_DOCUMENTS_SUBMITTED;
-            else
-                newStatus = FlowStatus.WAITING_FILES;
+    /**
+     * Set while the user has documents of type UNKNOWN and is not finished yet.
+     */
+    static String calculateRecognitionPending(UserInfo userInfo) {
+        if (FlowStatus.FINISHED.name().equals(userInfo.getStatus()))
+            return null;
+        boolean pending = userInfo.getDocuments()
+                .stream()
+                .anyMatch((document) -> document.getDocumentType().equals(DocumentType.UNKNOWN.name()));
+        return pending ? UserInfo.PENDING_RECOGNITION : null;
+    }
 
-            log.info("There is no more unrecognized documents for user {}  updating status to {}",
-                    userInfo.getUsername(), newStatus);
-        } else {
-            log.info("Still some documents for user {} waiting for recognition", userInfo.getUsername());
-            newStatus = FlowStatus.WAITING_DOCUMENT_RECOGNITION;
+    /**
+     * One-off migration for items written before the pending recognition index existed. Flags users with
+     * unrecognized documents and removes the flag of finished users, which were kept in the index before.
+     */
+    void backfillPendingRecognition() {
+        log.info("Backfilling pending recognition flag for users with unrecognized documents");
+        List<UserInfo> scanResult = mapper.scan(UserInfo.class, new DynamoDBScanExpression(), mapperConfig);
+        int updated = 0;
+        int removed = 0;
+        for (UserInfo userInfo : scanResult) {
+            if (userInfo.getRecognitionPending() != null) {
+                if (FlowStatus.FINISHED.name().equals(userInfo.getStatus())) {
+                    dynamoDB.updateItem(new UpdateItemRequest()
+                            .withTableName(mapperConfig.getTableNameOverride().getTableName())
+                            .withKey(Collections.singletonMap("username", new AttributeValue(userInfo.getUsername())))
+                            .withUpdateExpression("REMOVE recognition_pending"));
+                    removed++;
+                }
+                continue;
+            }
+            if (userInfo.getDocuments() == null)
+                continue;
+            String recognitionPending = calculateRecognitionPending(userInfo);
+            if (recognitionPending == null)
+                continue;
+            mapper.save(UserInfo.builder()
+                            .username(userInfo.getUsername())
+                            .recognitionPending(recognitionPending)
+                            .build(),
+                    new DynamoDBMapperConfig(
+                            DynamoDBMapperConfig.SaveBehavior.UPDATE_SKIP_NULL_ATTRIBUTES,
+                            mapperConfig.getConsistentReads(),
+                            mapperConfig.getTableNameOverride()
+                    ));
+            updated++;
         }
-        return newStatus;
+        log.info("Pending recognition flag was set for {} and removed for {} finished of {} users",
+                updated, removed, scanResult.size());
     }
 
-    private FlowStatus doUpdateDocumentType(String username, String documentId, DocumentType documentType) {
+    private DocumentUpdateResult doUpdateDocumentType(String username, String documentId, DocumentType documentType) {
         log.info("Updating document with id {} with type {} for user {}", documentId, documentType, username);
-        UserInfo userInfo = getFullInfo(username);
-        userInfo.getDocuments()
-                .stream()
-                .filter((document) -> document.getId().equals(documentId))
-                .forEach((documentToModify) -> documentToModify.setDocumentType(documentType.name()));
-        FlowStatus newFlowStatus = calculateUserStatus(userInfo);
-        userInfo.setStatus(newFlowStatus.name());
-        mapper.save(userInfo, mapperConfig);
-        return newFlowStatus;
+        return changeDocument(username, documentId, (userInfo, documentToModify) -> {
+            DocumentType previousType = DocumentType.valueOf(documentToModify.getDocumentType());
+            documentToModify.setDocumentType(documentType.name());
+            applyDocumentTypeChange(userInfo, Optional.of(previousType), Optional.of(documentType),
+                    hasDocumentOfType(userInfo));
+        });
+    }
+
+    /**
+     * Applies the change to the document of the freshly loaded user and saves the whole item, on condition that
+     * no other write changed the documents in between. Otherwise the user is loaded again and the change retried.
+     */
+    private DocumentUpdateResult changeDocument(String userName,
+                                                String documentId,
+                                                BiConsumer<UserInfo, StoredDocument> change) {
+        for (int attempt = 1; ; attempt++) {
+            UserInfo userInfo = mapper.load(UserInfo.class, userName, consistentReadConfig());
+            ensureDocumentsCoverage(userInfo);
+            Optional<StoredDocument> document = findDocument(userInfo, documentId);
+            if (!document.isPresent()) {
+                log.warn("Document with id {} not found for user data {}", documentId, userInfo);
+                return new DocumentUpdateResult(FlowStatus.valueOf(userInfo.getStatus()), Optional.empty());
+            }
+            change.accept(userInfo, document.get());
+            FlowStatus flowStatus = calculateUserStatus(userInfo);
+            userInfo.setStatus(flowStatus.name());
+            userInfo.setRecognitionPending(calculateRecognitionPending(userInfo));
+            try {
+                saveIfDocumentsUnchanged(userInfo);
+                return new DocumentUpdateResult(flowStatus, Optional.ofNullable(document.get().getCloudIdentifier()));
+            } catch (ConditionalCheckFailedException e) {
+                if (attempt >= MAX_DOCUMENTS_SAVE_ATTEMPTS)
+                    throw new IllegalStateException("Cannot update documents of user:" + userName, e);
+                log.info("Documents of user {} were changed concurrently, retrying document update", userName);
+            }
+        }
+    }
+
+    private void saveIfDocumentsUnchanged(UserInfo userInfo) {
+        Long loadedVersion = userInfo.getDocumentsVersion();
+        ExpectedAttributeValue expectedVersion = loadedVersion == null ?
+                new ExpectedAttributeValue(false) :
+                new ExpectedAttributeValue(new AttributeValue().withN(String.valueOf(loadedVersion)));
+        userInfo.setDocumentsVersion(loadedVersion == null ? 1 : loadedVersion + 1);
+        mapper.save(userInfo,
+                new DynamoDBSaveExpression().withExpectedEntry("documents_version", expectedVersion),
+                mapperConfig);
+    }
+
+    DynamoDBMapperConfig consistentReadConfig() {
+        return new DynamoDBMapperConfig(
+                mapperConfig.getSaveBehavior(),
+                DynamoDBMapperConfig.ConsistentReads.CONSISTENT,
+                mapperConfig.getTableNameOverride()
+        );
     }
 }
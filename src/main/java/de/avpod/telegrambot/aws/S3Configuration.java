@@ -4,13 +4,22 @@ import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import de.avpod.telegrambot.CloudWrapper;
 import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.Executors;
 
 @Configuration
+@ConditionalOnProperty(value = "cloud.backend", havingValue = "s3")
 @Log4j2
 public class S3Configuration {
 
@@ -26,6 +35,15 @@ public class S3Configuration {
     @Value("${aws.s3.region}")
     private String region;
 
+    @Value("${aws.s3.multipartThresholdBytes:16777216}")
+    private long multipartThresholdBytes;
+
+    @Value("${aws.s3.partSizeBytes:8388608}")
+    private long partSizeBytes;
+
+    @Value("${aws.s3.uploadThreads:8}")
+    private int uploadThreads;
+
     @Bean
     @ConditionalOnProperty(value = "aws.s3.localStart", havingValue = "true",matchIfMissing = false)
     public AmazonS3 amazonCredentialsS3() {
@@ -52,9 +70,32 @@ public class S3Configuration {
                 .build();
     }
 
+    @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
+    @Bean(destroyMethod = "")
+    public TransferManager s3TransferManager(AmazonS3 amazonS3) {
+        log.info("Creating S3 transfer manager with multipart threshold {} bytes, part size {} bytes and {} threads",
+                multipartThresholdBytes, partSizeBytes, uploadThreads);
+        return TransferManagerBuilder.standard()
+                .withS3Client(amazonS3)
+                .withMultipartUploadThreshold(multipartThresholdBytes)
+                .withMinimumUploadPartSize(partSizeBytes)
+                .withExecutorFactory(() -> Executors.newFixedThreadPool(uploadThreads,
+                        new CustomizableThreadFactory("executor-s3-upload")))
+                .build();
+    }
+
+    /**
+     * Stops only the upload threads, shutdownNow() without arguments would shut down the shared S3 client too.
+     */
+    @Bean
+    public DisposableBean s3TransferManagerShutdown(TransferManager s3TransferManager) {
+        return () -> s3TransferManager.shutdownNow(false);
+    }
+
     @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
     @Bean
-    public S3Wrapper s3Wrapper(AmazonS3 amazonS3) {
-        return new S3Wrapper(bucketName, amazonS3);
+    @Qualifier("cloudBackend")
+    public CloudWrapper s3Wrapper(AmazonS3 amazonS3, TransferManager s3TransferManager) {
+        return new S3Wrapper(bucketName, amazonS3, s3TransferManager);
     }
 }
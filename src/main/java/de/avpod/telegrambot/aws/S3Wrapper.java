@@ -1,38 +1,200 @@
 package de.avpod.telegrambot.aws;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.event.ProgressEventType;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
 import de.avpod.telegrambot.CloudWrapper;
 import de.avpod.telegrambot.DocumentType;
 import de.avpod.telegrambot.UploadFile;
+import de.avpod.telegrambot.UploadProgressListener;
 import lombok.AllArgsConstructor;
 import lombok.extern.log4j.Log4j2;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps files under TelegramBot/&lt;username&gt;/ and recognized ones under the subfolder of their type, same as
+ * the Google Drive layout. The cloud id is &lt;username&gt;/&lt;uuid&gt;_&lt;file name&gt;, it stays the same when
+ * the file is moved. File names are chosen by users, the uuid keeps two files with the same name apart.
+ */
 @AllArgsConstructor
 @Log4j2
 public class S3Wrapper implements CloudWrapper {
     private static final String ROOT_FOLDER_NAME = "TelegramBot";
+    private static final int NOT_FOUND = 404;
+    /**
+     * Limit of keys in one DeleteObjects request.
+     */
+    private static final int MAX_DELETE_KEYS = 1000;
+
     private final String bucketName;
     private final AmazonS3 s3;
+    /**
+     * Uploads files above its multipart threshold in parallel parts.
+     */
+    private final TransferManager transferManager;
 
     @Override
     public String uploadFile(UploadFile uploadFile) {
-        log.info("Upload file to s3 for bucket {} with name {}", bucketName, uploadFile.getName());
-        PutObjectResult result = s3.putObject(
-                bucketName, ROOT_FOLDER_NAME + "/" + uploadFile.getUsername() + "/" +uploadFile.getName(), uploadFile.getContent()
-        );
-        log.info("File was uploaded with eTag: {} md5: {}",
-                result.getMetadata().getETag(), result.getContentMd5());
-        return result.getContentMd5();
+        String cloudId = uploadFile.getUsername() + "/" + UUID.randomUUID() + "_" + uploadFile.getName();
+        String key = unrecognizedKey(cloudId);
+        log.info("Upload file to s3 for bucket {} with key {}", bucketName, key);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(uploadFile.getMimeType());
+        if (uploadFile.getSize() >= 0)
+            metadata.setContentLength(uploadFile.getSize());
+
+        InputStream content = null;
+        try {
+            PutObjectRequest request;
+            if (uploadFile.getLocalCopy() != null) {
+                // parts of a file can be read and sent concurrently, parts of a stream only one after another
+                request = new PutObjectRequest(bucketName, key, uploadFile.getLocalCopy().toFile())
+                        .withMetadata(metadata);
+            } else {
+                content = uploadFile.getContent().getThrows();
+                request = new PutObjectRequest(bucketName, key, content, metadata);
+            }
+            UploadProgressListener progressListener = uploadFile.getProgressListener();
+            if (progressListener != null) {
+                AtomicLong uploadedBytes = new AtomicLong();
+                request.setGeneralProgressListener((event) -> {
+                    if (event.getEventType() == ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT)
+                        progressListener.onProgress(uploadedBytes.addAndGet(event.getBytesTransferred()),
+                                uploadFile.getSize());
+                });
+            }
+            UploadResult result = transferManager.upload(request).waitForUploadResult();
+            log.info("File was uploaded with key {} and eTag {}", result.getKey(), result.getETag());
+            return cloudId;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted during upload of file " + uploadFile.getName(), e);
+        } catch (AmazonClientException e) {
+            log.error("Cannot upload file {} to s3", uploadFile.getName(), e);
+            throw e;
+        } catch (Exception e) {
+            log.error("Cannot read content of file {}", uploadFile.getName(), e);
+            throw new RuntimeException(e);
+        } finally {
+            closeQuietly(content);
+        }
     }
 
+    /**
+     * Server side copy into the folder of the type followed by delete of the source.
+     */
     @Override
     public void recognizeDocument(String cloudId, DocumentType documentType) {
-        //todo
+        String targetKey = recognizedKey(cloudId, documentType);
+        String sourceKey = unrecognizedKey(cloudId);
+        log.info("Moving object {} to {}", sourceKey, targetKey);
+        try {
+            s3.copyObject(bucketName, sourceKey, bucketName, targetKey);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != NOT_FOUND)
+                throw e;
+            Optional<String> currentKey = findKey(cloudId);
+            if (!currentKey.isPresent())
+                throw new IllegalStateException("Cannot find object for cloud id:" + cloudId, e);
+            if (currentKey.get().equals(targetKey)) {
+                log.info("Object {} is already in the folder of type {}", targetKey, documentType);
+                return;
+            }
+            sourceKey = currentKey.get();
+            log.info("Object was moved before, moving {} to {}", sourceKey, targetKey);
+            s3.copyObject(bucketName, sourceKey, bucketName, targetKey);
+        }
+        s3.deleteObject(bucketName, sourceKey);
+        log.info("Object {} successfully moved to {}", sourceKey, targetKey);
     }
 
     @Override
     public void deleteDocument(String cloudId) {
-        //todo
+        deleteDocuments(Collections.singletonList(cloudId));
+    }
+
+    /**
+     * Deletes objects with DeleteObjects requests of up to 1000 keys. The folder of a file is not known from its
+     * cloud id, so every folder it could have been moved to is included, deleting missing keys is a no-op.
+     */
+    public void deleteDocuments(Collection<String> cloudIds) {
+        List<String> keys = new ArrayList<>();
+        for (String cloudId : cloudIds) {
+            keys.add(unrecognizedKey(cloudId));
+            for (DocumentType documentType : DocumentType.values()) {
+                keys.add(recognizedKey(cloudId, documentType));
+            }
+        }
+        log.info("Deleting {} documents from s3", cloudIds.size());
+        for (int from = 0; from < keys.size(); from += MAX_DELETE_KEYS) {
+            List<String> batch = keys.subList(from, Math.min(keys.size(), from + MAX_DELETE_KEYS));
+            try {
+                s3.deleteObjects(new DeleteObjectsRequest(bucketName)
+                        .withKeys(batch.toArray(new String[0]))
+                        .withQuiet(true));
+            } catch (MultiObjectDeleteException e) {
+                log.error("Cannot delete {} objects from s3, first error: {}", e.getErrors().size(),
+                        e.getErrors().get(0).getMessage());
+                throw e;
+            }
+        }
+    }
+
+    private Optional<String> findKey(String cloudId) {
+        String userPrefix = ROOT_FOLDER_NAME + "/" + username(cloudId) + "/";
+        String suffix = "/" + fileName(cloudId);
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucketName)
+                .withPrefix(userPrefix);
+        ListObjectsV2Result result;
+        do {
+            result = s3.listObjectsV2(request);
+            for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                if (summary.getKey().endsWith(suffix))
+                    return Optional.of(summary.getKey());
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+        return Optional.empty();
+    }
+
+    private static String unrecognizedKey(String cloudId) {
+        return ROOT_FOLDER_NAME + "/" + cloudId;
+    }
+
+    private static String recognizedKey(String cloudId, DocumentType documentType) {
+        return ROOT_FOLDER_NAME + "/" + username(cloudId) + "/" + documentType.getSubfolderName() + "/" + fileName(cloudId);
+    }
+
+    private static String username(String cloudId) {
+        return cloudId.substring(0, cloudId.indexOf('/'));
+    }
+
+    private static String fileName(String cloudId) {
+        return cloudId.substring(cloudId.indexOf('/') + 1);
+    }
+
+    private static void closeQuietly(InputStream content) {
+        if (content == null)
+            return;
+        try {
+            content.close();
+        } catch (IOException e) {
+            log.warn("Cannot close content stream", e);
+        }
     }
 }
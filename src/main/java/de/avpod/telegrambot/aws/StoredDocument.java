@@ -26,4 +26,8 @@ public class StoredDocument {
     private String telegramFileId;
     @DynamoDBAttribute(attributeName = "telegram_thumbnail_id")
     private String telegramThumbnailId;
+    @DynamoDBAttribute(attributeName = "content_sha256")
+    private String contentSha256;
+    @DynamoDBAttribute(attributeName = "perceptual_hash")
+    private Long perceptualHash;
 }
@@ -0,0 +1,69 @@
+package de.avpod.telegrambot.aws;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBRangeKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
+import lombok.*;
+
+/**
+ * {@link StoredDocument} kept as a separate item under the username partition, see {@link DynamoDBDocumentItemsWrapper}.
+ */
+@DynamoDBTable(tableName = "TelegramBotDocuments")
+@Getter
+@Setter
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+public class StoredDocumentItem {
+    @DynamoDBHashKey(attributeName = "username")
+    private String username;
+    @DynamoDBRangeKey(attributeName = "id")
+    private String id;
+    @DynamoDBAttribute(attributeName = "document_type")
+    private String documentType;
+    @DynamoDBAttribute(attributeName = "drive_id")
+    private String cloudIdentifier;
+    @DynamoDBAttribute(attributeName = "original_filename")
+    private String originalFilename;
+    @DynamoDBAttribute(attributeName = "saved_filename")
+    private String savedFilename;
+    @DynamoDBAttribute(attributeName = "telegram_file_id")
+    private String telegramFileId;
+    @DynamoDBAttribute(attributeName = "telegram_thumbnail_id")
+    private String telegramThumbnailId;
+    @DynamoDBAttribute(attributeName = "content_sha256")
+    private String contentSha256;
+    @DynamoDBAttribute(attributeName = "perceptual_hash")
+    private Long perceptualHash;
+
+    static StoredDocumentItem of(String username, StoredDocument document) {
+        return StoredDocumentItem.builder()
+                .username(username)
+                .id(document.getId())
+                .documentType(document.getDocumentType())
+                .cloudIdentifier(document.getCloudIdentifier())
+                .originalFilename(document.getOriginalFilename())
+                .savedFilename(document.getSavedFilename())
+                .telegramFileId(document.getTelegramFileId())
+                .telegramThumbnailId(document.getTelegramThumbnailId())
+                .contentSha256(document.getContentSha256())
+                .perceptualHash(document.getPerceptualHash())
+                .build();
+    }
+
+    StoredDocument toStoredDocument() {
+        return StoredDocument.builder()
+                .id(id)
+                .documentType(documentType)
+                .cloudIdentifier(cloudIdentifier)
+                .originalFilename(originalFilename)
+                .savedFilename(savedFilename)
+                .telegramFileId(telegramFileId)
+                .telegramThumbnailId(telegramThumbnailId)
+                .contentSha256(contentSha256)
+                .perceptualHash(perceptualHash)
+                .build();
+    }
+}
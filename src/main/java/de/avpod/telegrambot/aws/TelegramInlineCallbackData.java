@@ -4,7 +4,7 @@ import com.amazonaws.services.dynamodbv2.datamodeling.*;
 import de.avpod.telegrambot.DocumentType;
 import lombok.*;
 
-@DynamoDBTable(tableName = "CallbackData")
+@DynamoDBTable(tableName = TelegramInlineCallbackData.TABLE_NAME)
 @Getter
 @Setter
 @Builder
@@ -12,6 +12,7 @@ import lombok.*;
 @AllArgsConstructor
 @ToString
 public class TelegramInlineCallbackData {
+    public static final String TABLE_NAME = "CallbackData";
 
     @DynamoDBHashKey(attributeName = "id")
     private String id;
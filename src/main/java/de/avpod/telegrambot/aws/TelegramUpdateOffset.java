@@ -0,0 +1,29 @@
+package de.avpod.telegrambot.aws;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
+import lombok.*;
+
+@DynamoDBTable(tableName = TelegramUpdateOffset.TABLE_NAME)
+@Getter
+@Setter
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+public class TelegramUpdateOffset {
+    public static final String TABLE_NAME = "UpdateOffset";
+
+    @DynamoDBHashKey(attributeName = "bot")
+    private String bot;
+
+    @DynamoDBAttribute(attributeName = "update_id")
+    private Long updateId;
+
+    /**
+     * Epoch millis.
+     */
+    @DynamoDBAttribute(attributeName = "saved_at")
+    private Long savedAt;
+}
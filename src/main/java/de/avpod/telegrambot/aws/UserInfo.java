@@ -2,10 +2,13 @@ package de.avpod.telegrambot.aws;
 
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBIndexHashKey;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
 import lombok.*;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 @DynamoDBTable(tableName = "TelegramBot")
 @Getter
@@ -15,6 +18,13 @@ import java.util.List;
 @AllArgsConstructor
 @ToString
 public class UserInfo {
+    public static final String PENDING_RECOGNITION_INDEX = "PendingRecognitionIndex";
+    /**
+     * The only value of the index hash key, so the whole index is one partition and its throughput is limited
+     * to a single partition. This holds as long as only users waiting for recognition are flagged. If that set
+     * grows beyond a few thousand items, shard the key, e.g. PENDING#0..N, and query every shard.
+     */
+    public static final String PENDING_RECOGNITION = "PENDING";
 
     @DynamoDBHashKey(attributeName = "username")
     private String username;
@@ -28,6 +38,44 @@ public class UserInfo {
     private Long chatId;
     @DynamoDBAttribute
     private List<StoredDocument> documents;
+    /**
+     * Set only while the user has documents of type UNKNOWN and is not finished, so the index over it stays sparse.
+     */
+    @DynamoDBIndexHashKey(globalSecondaryIndexName = PENDING_RECOGNITION_INDEX, attributeName = "recognition_pending")
+    private String recognitionPending;
+    /**
+     * Bits of the real document types the user has submitted, see {@link de.avpod.telegrambot.DocumentType#mask()}.
+     * Missing for users written before it was introduced, then it is calculated from the documents.
+     */
+    @DynamoDBAttribute(attributeName = "documents_mask")
+    private Long documentsMask;
+    /**
+     * Amount of documents with type UNKNOWN or UNKNOWN_REQUESTED.
+     */
+    @DynamoDBAttribute(attributeName = "unrecognized_count")
+    private Integer unrecognizedCount;
+    /**
+     * SHA-256 of the content of every document, missing if there are none.
+     */
+    @DynamoDBAttribute(attributeName = "content_hashes")
+    private Set<String> contentHashes;
+    /**
+     * Perceptual hashes of the images, missing if there are none.
+     */
+    @DynamoDBAttribute(attributeName = "perceptual_hashes")
+    private Set<Long> perceptualHashes;
+    /**
+     * Incremented by every write of the documents, saves of the whole item are conditional on it.
+     * Missing for users whose documents were not written since it was introduced.
+     */
+    @DynamoDBAttribute(attributeName = "documents_version")
+    private Long documentsVersion;
+    /**
+     * Amount of document items per {@link de.avpod.telegrambot.DocumentType} name, types without documents are
+     * left out. Kept only by the items layout, missing until the counts of the user are initialized.
+     */
+    @DynamoDBAttribute(attributeName = "document_counts")
+    private Map<String, Integer> documentCounts;
 
 
 
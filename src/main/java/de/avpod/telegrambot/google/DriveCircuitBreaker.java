@@ -0,0 +1,142 @@
+package de.avpod.telegrambot.google;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opens after the configured amount of consecutive failures which look like Drive being degraded.
+ * While open, up to maxQueuedCalls callers wait for Drive to come back, the rest fail fast. After the open
+ * period a single probe call is let through, its outcome closes the circuit or opens it again.
+ */
+@Log4j2
+class DriveCircuitBreaker implements MeterBinder {
+
+    enum State {
+        CLOSED,
+        HALF_OPEN,
+        OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final int maxQueuedCalls;
+    private final long maxQueueWaitNanos;
+    private final LongAdder rejectedCount = new LongAdder();
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openUntil;
+    private boolean probeInFlight;
+    private int queuedCalls;
+
+    DriveCircuitBreaker(int failureThreshold, long openMillis, int maxQueuedCalls, long maxQueueWaitMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.maxQueuedCalls = maxQueuedCalls;
+        this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+    }
+
+    /**
+     * Every successful acquire has to be followed by either {@link #onAvailable()}, {@link #onDegraded()} or
+     * {@link #onAbandoned()}.
+     */
+    synchronized void acquire() {
+        long deadline = System.nanoTime() + maxQueueWaitNanos;
+        boolean queued = false;
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (state == State.OPEN && now - openUntil >= 0) {
+                    log.info("Google Drive circuit is half open, letting a probe call through");
+                    state = State.HALF_OPEN;
+                }
+                if (state == State.CLOSED)
+                    return;
+                if (state == State.HALF_OPEN && !probeInFlight) {
+                    probeInFlight = true;
+                    return;
+                }
+
+                long waitNanos = deadline - now;
+                boolean opensTooLate = state == State.OPEN && openUntil - deadline > 0;
+                if (waitNanos <= 0 || opensTooLate || (!queued && queuedCalls >= maxQueuedCalls)) {
+                    rejectedCount.increment();
+                    throw new IllegalStateException("Google Drive is unavailable, circuit is " + state);
+                }
+                if (!queued) {
+                    queued = true;
+                    queuedCalls++;
+                }
+                if (state == State.OPEN)
+                    waitNanos = Math.min(waitNanos, openUntil - now);
+                TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for Google Drive circuit", e);
+        } finally {
+            if (queued)
+                queuedCalls--;
+        }
+    }
+
+    /**
+     * Drive answered, even if with an error which is not related to its health.
+     */
+    synchronized void onAvailable() {
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        if (state != State.CLOSED) {
+            log.info("Google Drive is available again, closing circuit");
+            state = State.CLOSED;
+            notifyAll();
+        }
+    }
+
+    synchronized void onDegraded() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            log.warn("Google Drive looks degraded after {} failures, opening circuit for {}ms",
+                    consecutiveFailures, TimeUnit.NANOSECONDS.toMillis(openNanos));
+            state = State.OPEN;
+            openUntil = System.nanoTime() + openNanos;
+            probeInFlight = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * The call ended without telling anything about Drive, e.g. by an Error. Frees the probe slot so the next
+     * caller can probe.
+     */
+    synchronized void onAbandoned() {
+        if (probeInFlight) {
+            probeInFlight = false;
+            notifyAll();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized int getQueuedCalls() {
+        return queuedCalls;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("cloud.circuit.open", this, (breaker) -> breaker.getState() == State.CLOSED ? 0 : 1)
+                .register(registry);
+        Gauge.builder("cloud.circuit.queued", this, DriveCircuitBreaker::getQueuedCalls)
+                .register(registry);
+        FunctionCounter.builder("cloud.circuit.rejected", rejectedCount, LongAdder::sum)
+                .register(registry);
+    }
+}
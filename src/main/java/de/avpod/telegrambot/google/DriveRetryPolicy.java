@@ -0,0 +1,87 @@
+package de.avpod.telegrambot.google;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which Google Drive errors are worth another attempt and how long to wait before it:
+ * exponential backoff with full jitter, but never less than the Retry-After returned by Drive.
+ */
+@AllArgsConstructor
+class DriveRetryPolicy {
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int FORBIDDEN = 403;
+
+    @Getter
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    /**
+     * @return metric tag describing the failure or empty if the operation should not be retried
+     */
+    Optional<String> retryReason(Exception e) {
+        if (e instanceof SocketException || e instanceof SocketTimeoutException)
+            return Optional.of("socket");
+        if (!(e instanceof HttpResponseException))
+            return Optional.empty();
+
+        int statusCode = ((HttpResponseException) e).getStatusCode();
+        if (statusCode == TOO_MANY_REQUESTS || (statusCode == FORBIDDEN && isRateLimitReason(e)))
+            return Optional.of("rate_limit");
+        if (statusCode >= 500)
+            return Optional.of("server_error");
+        return Optional.empty();
+    }
+
+    long delayMillis(int attempt, Exception e) {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 30));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        return Math.max(delay, retryAfterMillis(e));
+    }
+
+    private static boolean isRateLimitReason(Exception e) {
+        if (!(e instanceof GoogleJsonResponseException))
+            return false;
+        GoogleJsonError details = ((GoogleJsonResponseException) e).getDetails();
+        if (details == null || details.getErrors() == null)
+            return false;
+        return details.getErrors().stream()
+                .anyMatch((error) -> "rateLimitExceeded".equals(error.getReason())
+                        || "userRateLimitExceeded".equals(error.getReason()));
+    }
+
+    /**
+     * Retry-After is either delay in seconds or an HTTP date.
+     */
+    private static long retryAfterMillis(Exception e) {
+        if (!(e instanceof HttpResponseException) || ((HttpResponseException) e).getHeaders() == null)
+            return 0;
+        String retryAfter = ((HttpResponseException) e).getHeaders().getRetryAfter();
+        if (retryAfter == null)
+            return 0;
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException ignored) {
+        }
+        try {
+            Instant retryAt = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            return Math.max(0, retryAt.toEpochMilli() - System.currentTimeMillis());
+        } catch (DateTimeParseException ignored) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package de.avpod.telegrambot.google;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of Google Drive folder ids keyed by (parent id, folder name).
+ * Folder creation is guarded by striped locks, so concurrent requests for the same folder
+ * create it only once while requests for other folders are not blocked.
+ */
+@Log4j2
+class FolderIdCache {
+    private static final int LOCK_STRIPES = 64;
+    private final Map<String, String> folderIds;
+    private final Object[] locks;
+
+    FolderIdCache(int maxSize) {
+        this.folderIds = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxSize;
+            }
+        });
+        this.locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    String get(String parentId, String name) {
+        return folderIds.get(key(parentId, name));
+    }
+
+    void put(String parentId, String name, String folderId) {
+        folderIds.put(key(parentId, name), folderId);
+    }
+
+    void invalidateFolder(String folderId) {
+        String childPrefix = folderId + "/";
+        synchronized (folderIds) {
+            int sizeBefore = folderIds.size();
+            folderIds.entrySet().removeIf((entry) ->
+                    entry.getValue().equals(folderId) || entry.getKey().startsWith(childPrefix)
+            );
+            log.info("Invalidated {} cached folder ids for folder {}", sizeBefore - folderIds.size(), folderId);
+        }
+    }
+
+    Object lockFor(String parentId, String name) {
+        return locks[(key(parentId, name).hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    private static String key(String parentId, String name) {
+        return (parentId == null ? "" : parentId) + "/" + name;
+    }
+}
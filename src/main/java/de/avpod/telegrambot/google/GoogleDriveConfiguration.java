@@ -6,15 +6,22 @@ import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.HttpBackOffIOExceptionHandler;
+import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.ExponentialBackOff;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveScopes;
 import de.avpod.telegrambot.CloudWrapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.log4j.Log4j2;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -29,6 +36,7 @@ import static com.google.api.services.drive.DriveScopes.DRIVE_APPDATA;
 import static com.google.api.services.drive.DriveScopes.DRIVE_METADATA;
 
 @Configuration
+@ConditionalOnProperty(value = "cloud.backend", havingValue = "drive", matchIfMissing = true)
 @Log4j2
 public class GoogleDriveConfiguration {
     private static final String APPLICATION_NAME = "Avpod TelegramBot Google Drive";
@@ -41,11 +49,42 @@ public class GoogleDriveConfiguration {
      */
     private static final List<String> SCOPES = Arrays.asList(DriveScopes.DRIVE_FILE, DRIVE_APPDATA, DRIVE_METADATA);
     private static final String CREDENTIALS_FILE_PATH = "/drive_credentials.json";
+    /**
+     * Upper bound of the back-off inside one request, well below the time the breaker needs to see an outage.
+     */
+    private static final long MAX_REQUEST_BACK_OFF_MILLIS = 10_000;
 
     @Value("${google.oauth.host:localhost}")
     private String oauthVerifierHost;
     @Value("${google.oauth.port:8090}")
     private int oauthVerifierPort;
+    @Value("${google.drive.folderCacheSize:1024}")
+    private int folderCacheSize;
+    @Value("${google.drive.upload.resumableThresholdBytes:5242880}")
+    private long resumableThresholdBytes;
+    @Value("${google.drive.upload.chunkSizeBytes:8388608}")
+    private int chunkSizeBytes;
+    /**
+     * Failures retried inside a single request are not seen by the circuit breaker, so this back-off only
+     * bridges short hiccups of resumable uploads. Longer outages are left to the retries around the request,
+     * which the breaker counts.
+     */
+    @Value("${google.drive.upload.maxBackOffMillis:5000}")
+    private int maxBackOffMillis;
+    @Value("${google.drive.retry.maxRetries:5}")
+    private int maxRetries;
+    @Value("${google.drive.retry.baseDelayMillis:500}")
+    private long retryBaseDelayMillis;
+    @Value("${google.drive.retry.maxDelayMillis:30000}")
+    private long retryMaxDelayMillis;
+    @Value("${google.drive.circuit.failureThreshold:5}")
+    private int circuitFailureThreshold;
+    @Value("${google.drive.circuit.openMillis:30000}")
+    private long circuitOpenMillis;
+    @Value("${google.drive.circuit.maxQueuedCalls:64}")
+    private int circuitMaxQueuedCalls;
+    @Value("${google.drive.circuit.maxQueueWaitMillis:60000}")
+    private long circuitMaxQueueWaitMillis;
 
     /**
      * Creates an authorized Credential object.
@@ -75,7 +114,8 @@ public class GoogleDriveConfiguration {
     }
 
     @Bean
-    public CloudWrapper drive() throws IOException, GeneralSecurityException {
+    @Qualifier("cloudBackend")
+    public CloudWrapper drive(MeterRegistry meterRegistry) throws IOException, GeneralSecurityException {
         log.info("Creating Google Drive instance");
         // Build a new authorized API client service.
         final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
@@ -85,10 +125,38 @@ public class GoogleDriveConfiguration {
                     credential.initialize(request);
                     request.setConnectTimeout(30 * 1000); // 0.5 minute
                     request.setReadTimeout(30 * 1000); // 0.5 minute
+                    // transient failures of a resumable upload are retried from the last committed chunk
+                    request.setIOExceptionHandler(new HttpBackOffIOExceptionHandler(backOff()));
+                    HttpBackOffUnsuccessfulResponseHandler backOffHandler =
+                            new HttpBackOffUnsuccessfulResponseHandler(backOff());
+                    request.setUnsuccessfulResponseHandler((httpRequest, response, supportsRetry) ->
+                            credential.handleResponse(httpRequest, response, supportsRetry)
+                                    || backOffHandler.handleResponse(httpRequest, response, supportsRetry)
+                    );
                 })
                 .setApplicationName(APPLICATION_NAME)
                 .build();
-        return new GoogleDriveWrapper(drive);
+        DriveCircuitBreaker circuitBreaker = new DriveCircuitBreaker(circuitFailureThreshold, circuitOpenMillis,
+                circuitMaxQueuedCalls, circuitMaxQueueWaitMillis);
+        circuitBreaker.bindTo(meterRegistry);
+        return new GoogleDriveWrapper(drive, new FolderIdCache(folderCacheSize), meterRegistry,
+                resumableThresholdBytes, chunkSize(),
+                new DriveRetryPolicy(maxRetries, retryBaseDelayMillis, retryMaxDelayMillis),
+                circuitBreaker);
+    }
+
+    private ExponentialBackOff backOff() {
+        return new ExponentialBackOff.Builder()
+                .setMaxElapsedTimeMillis((int) Math.min(maxBackOffMillis, MAX_REQUEST_BACK_OFF_MILLIS))
+                .build();
+    }
+
+    /**
+     * Drive accepts only chunks which are multiples of 256KB.
+     */
+    private int chunkSize() {
+        int minimum = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+        return Math.max(minimum, chunkSizeBytes / minimum * minimum);
     }
 
 }
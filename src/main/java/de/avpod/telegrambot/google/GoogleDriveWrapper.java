@@ -1,24 +1,40 @@
 package de.avpod.telegrambot.google;
 
-import com.google.api.client.http.FileContent;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.InputStreamContent;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 import de.avpod.telegrambot.*;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.AllArgsConstructor;
 import lombok.extern.log4j.Log4j2;
 
 import java.io.IOException;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.io.InputStream;
 import java.util.Collections;
+import java.util.Optional;
 
 @AllArgsConstructor
 @Log4j2
 public class GoogleDriveWrapper implements CloudWrapper {
     private static final String ROOT_FOLDER_NAME = "TelegramBot";
-    private static final int MAX_RETRIES = 5;
+    private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
     private final Drive drive;
+    private final FolderIdCache folderIdCache;
+    private final MeterRegistry meterRegistry;
+    /**
+     * Files bigger than this or of unknown size are sent with the resumable protocol, smaller ones in one request.
+     */
+    private final long resumableThresholdBytes;
+    /**
+     * Multiple of {@link MediaHttpUploader#MINIMUM_CHUNK_SIZE}.
+     */
+    private final int chunkSizeBytes;
+    private final DriveRetryPolicy retryPolicy;
+    private final DriveCircuitBreaker circuitBreaker;
 
     @Override
     public String uploadFile(UploadFile uploadFile) {
@@ -27,22 +43,51 @@ public class GoogleDriveWrapper implements CloudWrapper {
                     uploadFile.getName(), uploadFile.getUsername()
             );
 
-            String rootFolderId = getRootFolderId();
-            String userFolderId = getUserFolderId(rootFolderId, uploadFile.getUsername());
+            String rootFolderId = getFolderId(null, ROOT_FOLDER_NAME);
+            String userFolderId = getFolderId(rootFolderId, uploadFile.getUsername());
 
             File driveFile = new File();
             driveFile.setName(uploadFile.getName());
             driveFile.setMimeType(uploadFile.getMimeType());
             driveFile.setParents(Collections.singletonList(userFolderId));
-            FileContent mediaContent = new FileContent(uploadFile.getMimeType(), uploadFile.getContent());
-            File file = drive.files().create(driveFile, mediaContent)
-                    .setFields("id, parents")
-                    .execute();
-            log.info("Uploaded file with ID: {}", file.getId());
-            return file.getId();
+            try (InputStream content = uploadFile.getContent().getThrows()) {
+                InputStreamContent mediaContent = new InputStreamContent(uploadFile.getMimeType(), content);
+                if (uploadFile.getSize() >= 0)
+                    mediaContent.setLength(uploadFile.getSize());
+                Drive.Files.Create create = drive.files().create(driveFile, mediaContent)
+                        .setFields("id, parents");
+                configureUploader(create.getMediaHttpUploader(), uploadFile);
+                File file;
+                try {
+                    file = create.execute();
+                } catch (GoogleJsonResponseException e) {
+                    throw invalidateIfNotFound(e, userFolderId, rootFolderId);
+                }
+                log.info("Uploaded file with ID: {}", file.getId());
+                return file.getId();
+            }
         });
     }
 
+    private void configureUploader(MediaHttpUploader uploader, UploadFile uploadFile) {
+        long size = uploadFile.getSize();
+        if (size >= 0 && size <= resumableThresholdBytes) {
+            uploader.setDirectUploadEnabled(true);
+            return;
+        }
+        log.info("Using resumable upload for file {} with size {} and chunk size {}",
+                uploadFile.getName(), size, chunkSizeBytes);
+        uploader.setDirectUploadEnabled(false);
+        uploader.setChunkSize(chunkSizeBytes);
+        UploadProgressListener progressListener = uploadFile.getProgressListener();
+        if (progressListener != null) {
+            uploader.setProgressListener((mediaUploader) -> {
+                if (mediaUploader.getUploadState() == MediaHttpUploader.UploadState.MEDIA_IN_PROGRESS)
+                    progressListener.onProgress(mediaUploader.getNumBytesUploaded(), size);
+            });
+        }
+    }
+
     @Override
     public void recognizeDocument(String cloudId, DocumentType documentType) {
         doRetryable(() -> {
@@ -58,15 +103,19 @@ public class GoogleDriveWrapper implements CloudWrapper {
             previousParents.deleteCharAt(previousParents.length() - 1);
             log.info("Previous parent folders for file {} were {}", cloudId, previousParents);
 
-            String documentTypeFolderId = getDocumentFolderId(previousParents.toString(), documentType);
+            String documentTypeFolderId = getFolderId(file.getParents().get(0), documentType.getSubfolderName());
 
 
             log.info("Moving file {} to parents {}", cloudId, documentTypeFolderId);
-            file = drive.files().update(cloudId, null)
-                    .setAddParents(documentTypeFolderId)
-                    .setRemoveParents(previousParents.toString())
-                    .setFields("id, parents")
-                    .execute();
+            try {
+                drive.files().update(cloudId, null)
+                        .setAddParents(documentTypeFolderId)
+                        .setRemoveParents(previousParents.toString())
+                        .setFields("id, parents")
+                        .execute();
+            } catch (GoogleJsonResponseException e) {
+                throw invalidateIfNotFound(e, documentTypeFolderId);
+            }
             log.info("File {} successfully moved to new directory", cloudId);
         });
     }
@@ -88,134 +137,116 @@ public class GoogleDriveWrapper implements CloudWrapper {
     }
 
     private <T> T doRetryable(ThrowingSupplier<T> runnable) {
-        for (int retries = 0; retries < MAX_RETRIES; retries++) {
+        for (int attempt = 0; attempt < retryPolicy.getMaxRetries(); attempt++) {
+            circuitBreaker.acquire();
+            long delayMillis = 0;
+            boolean reported = false;
             try {
-                return runnable.getThrows();
-            } catch (SocketException | SocketTimeoutException e) {
-                log.warn("Cannot process operation in Google Drive due to socket error, retrying");
+                T result = runnable.getThrows();
+                reported = true;
+                circuitBreaker.onAvailable();
+                return result;
+            } catch (StaleFolderException e) {
+                reported = true;
+                circuitBreaker.onAvailable();
+                log.warn("Cached Google Drive folder is gone, retrying with fresh folder lookup");
+                meterRegistry.counter("cloud.retries", "reason", "stale_folder").increment();
             } catch (Exception e) {
-                log.error("Cannot process operation in Google Drive due to unknown error", e);
-                throw new RuntimeException(e);
+                Optional<String> retryReason = retryPolicy.retryReason(e);
+                reported = true;
+                if (!retryReason.isPresent()) {
+                    circuitBreaker.onAvailable();
+                    log.error("Cannot process operation in Google Drive due to unknown error", e);
+                    throw new RuntimeException(e);
+                }
+                circuitBreaker.onDegraded();
+                delayMillis = retryPolicy.delayMillis(attempt, e);
+                log.warn("Cannot process operation in Google Drive due to {}, retrying in {}ms",
+                        retryReason.get(), delayMillis);
+                meterRegistry.counter("cloud.retries", "reason", retryReason.get()).increment();
+            } finally {
+                // an Error must not keep the half open circuit waiting for the outcome of its probe forever
+                if (!reported)
+                    circuitBreaker.onAbandoned();
             }
+            if (attempt + 1 < retryPolicy.getMaxRetries())
+                sleep(delayMillis);
         }
         log.error("Retries exceeded, giving up");
+        meterRegistry.counter("cloud.retries.exhausted").increment();
         throw new RuntimeException("Retries exceeded, giving up");
     }
 
-    private String getRootFolderId() throws IOException {
-        String rootFolderId;
-        FileList rootFolderSearch = drive.files()
-                .list()
-                .setQ("trashed=false and mimeType='application/vnd.google-apps.folder' and name='" + ROOT_FOLDER_NAME + "'")
-                .execute();
-
-        if (rootFolderSearch.getFiles().isEmpty()) {
-            synchronized (GoogleDriveWrapper.this) {
-                rootFolderSearch = drive.files()
-                        .list()
-                        .setQ("trashed=false and mimeType='application/vnd.google-apps.folder' and name='" + ROOT_FOLDER_NAME + "'")
-                        .execute();
-                if (rootFolderSearch.getFiles().isEmpty()) {
-                    File driveRootFolder = new File();
-                    driveRootFolder.setName(ROOT_FOLDER_NAME);
-                    driveRootFolder.setMimeType("application/vnd.google-apps.folder");
-                    driveRootFolder = drive.files().create(driveRootFolder)
-                            .setFields("id, parents")
-                            .execute();
-                    rootFolderId = driveRootFolder.getId();
-                    log.info("Root folder was created with id {}", rootFolderId);
-                } else {
-                    rootFolderId = rootFolderSearch.getFiles().get(0).getId();
-                    log.info("Root folder was found with id {}", rootFolderId);
-                }
-            }
-        } else {
-            rootFolderId = rootFolderSearch.getFiles().get(0).getId();
-            log.info("Root folder was found with id {}", rootFolderId);
+    private static void sleep(long millis) {
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to retry Google Drive operation", e);
         }
-        return rootFolderId;
     }
 
-    private String getUserFolderId(String rootFolderId, String username) throws IOException {
-        String userFolderId;
-        FileList userFolderSearch = drive.files()
-                .list()
-                .setQ("trashed=false and mimeType='application/vnd.google-apps.folder' and name='" +
-                        username + "'")
-                .execute();
-
-        if (userFolderSearch.getFiles().isEmpty()) {
-            synchronized (GoogleDriveWrapper.this) {
-                userFolderSearch = drive.files()
-                        .list()
-                        .setQ("trashed=false and mimeType='application/vnd.google-apps.folder' and name='" +
-                                username + "'")
-                        .execute();
-                //TODO concurrency issues. lock on username here?
-                if (userFolderSearch.getFiles().isEmpty()) {
-                    File driveUserFolder = new File();
-                    driveUserFolder.setName(username);
-                    driveUserFolder.setMimeType("application/vnd.google-apps.folder");
-                    driveUserFolder.setParents(Collections.singletonList(rootFolderId));
-                    driveUserFolder = drive.files().create(driveUserFolder)
+    private String getFolderId(String parentId, String name) throws IOException {
+        String folderId = folderIdCache.get(parentId, name);
+        if (folderId != null)
+            return folderId;
+
+        folderId = findFolderId(parentId, name);
+        if (folderId == null) {
+            synchronized (folderIdCache.lockFor(parentId, name)) {
+                folderId = folderIdCache.get(parentId, name);
+                if (folderId == null)
+                    folderId = findFolderId(parentId, name);
+
+                if (folderId == null) {
+                    log.info("There is no folder {} yet, creating new", name);
+                    File driveFolder = new File();
+                    driveFolder.setName(name);
+                    driveFolder.setMimeType(FOLDER_MIME_TYPE);
+                    if (parentId != null)
+                        driveFolder.setParents(Collections.singletonList(parentId));
+                    driveFolder = drive.files().create(driveFolder)
                             .setFields("id, parents")
                             .execute();
-                    userFolderId = driveUserFolder.getId();
-                    log.info("User folder was created with id {}", userFolderId);
-                } else {
-                    userFolderId = userFolderSearch.getFiles().get(0).getId();
-                    log.info("User folder was found with id {}", userFolderId);
+                    folderId = driveFolder.getId();
+                    log.info("Folder {} was created with id {}", name, folderId);
                 }
+                folderIdCache.put(parentId, name, folderId);
             }
         } else {
-            userFolderId = userFolderSearch.getFiles().get(0).getId();
-            log.info("User folder was found with id {}", userFolderId);
+            folderIdCache.put(parentId, name, folderId);
         }
-        return userFolderId;
+        return folderId;
     }
 
-    private String getDocumentFolderId(String parents, DocumentType documentType) throws IOException {
-        String documentTypeFolderId;
+    private String findFolderId(String parentId, String name) throws IOException {
+        String query = "trashed=false and mimeType='" + FOLDER_MIME_TYPE + "' and name='" + name + "'";
+        if (parentId != null)
+            query += " and '" + parentId + "' in parents";
 
-        FileList givenDocumentTypeFolderSearch = drive.files()
+        FileList folderSearch = drive.files()
                 .list()
-                .setQ("trashed=false and " +
-                        "mimeType='application/vnd.google-apps.folder' and " +
-                        "parents in '" + parents + "' and " +
-                        "name='" + documentType.getSubfolderName() + "'")
+                .setQ(query)
+                .setFields("files(id)")
                 .execute();
 
-        if (givenDocumentTypeFolderSearch.getFiles().isEmpty()) {
-            synchronized (GoogleDriveWrapper.this) {
-                //todo lock on username
-                givenDocumentTypeFolderSearch = drive.files()
-                        .list()
-                        .setQ("trashed=false and " +
-                                "mimeType='application/vnd.google-apps.folder' and " +
-                                "parents in '" + parents + "' and " +
-                                "name='" + documentType.getSubfolderName() + "'")
-                        .execute();
+        if (folderSearch.getFiles().isEmpty())
+            return null;
 
-                if (givenDocumentTypeFolderSearch.getFiles().isEmpty()) {
-                    log.info("There is no folder for document type {} yet, creating new", documentType);
-                    File driveUserFolder = new File();
-                    driveUserFolder.setName(documentType.getSubfolderName());
-                    driveUserFolder.setMimeType("application/vnd.google-apps.folder");
-                    driveUserFolder.setParents(Collections.singletonList(parents));
-                    driveUserFolder = drive.files().create(driveUserFolder)
-                            .setFields("id, parents")
-                            .execute();
-                    documentTypeFolderId = driveUserFolder.getId();
-                    log.info("Document type {} folder was created with id {}", documentType, documentTypeFolderId);
-                } else {
-                    documentTypeFolderId = givenDocumentTypeFolderSearch.getFiles().get(0).getId();
-                    log.info("Document type {} folder was found with id {}", documentTypeFolderId);
-                }
-            }
-        } else {
-            documentTypeFolderId = givenDocumentTypeFolderSearch.getFiles().get(0).getId();
-            log.info("Document type {} folder was found with id {}", documentTypeFolderId);
+        String folderId = folderSearch.getFiles().get(0).getId();
+        log.info("Folder {} was found with id {}", name, folderId);
+        return folderId;
+    }
+
+    private IOException invalidateIfNotFound(GoogleJsonResponseException e, String... folderIds) {
+        if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND)
+            return e;
+
+        for (String folderId : folderIds) {
+            folderIdCache.invalidateFolder(folderId);
         }
-        return documentTypeFolderId;
+        return new StaleFolderException("Cached folder was not found in Google Drive", e);
     }
 }
@@ -0,0 +1,10 @@
+package de.avpod.telegrambot.google;
+
+import java.io.IOException;
+
+class StaleFolderException extends IOException {
+
+    StaleFolderException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,148 @@
+package de.avpod.telegrambot.telegram;
+
+import de.avpod.telegrambot.DocumentType;
+import de.avpod.telegrambot.RecognizeDocumentCallbackData;
+import lombok.extern.log4j.Log4j2;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes recognition answers into callback_data, so button presses are resolved without storage.
+ * Layout before base64url: action byte (document type ordinal, -1 for delete), key format byte,
+ * issue time in epoch seconds (4 bytes), document id (16 bytes for UUIDs, UTF-8 otherwise) and
+ * the first 8 bytes of HMAC-SHA256 over username and payload. Telegram limits callback_data to 64 bytes.
+ */
+@Log4j2
+public class CallbackDataCodec {
+    static final int MAX_CALLBACK_DATA_LENGTH = 64;
+    private static final int HEADER_LENGTH = 6;
+    private static final int TAG_LENGTH = 8;
+    private static final byte DELETE_ACTION = -1;
+    private static final byte UUID_KEY = 0;
+    private static final byte UTF8_KEY = 1;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private final ThreadLocal<Mac> mac;
+    private final long ttlSeconds;
+
+    public CallbackDataCodec(String secret, long ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Cannot initialize " + HMAC_ALGORITHM, e);
+            }
+        });
+    }
+
+    public String encode(String username, String documentId, Optional<DocumentType> documentType) {
+        byte[] key = encodeKey(documentId);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + key.length + TAG_LENGTH);
+        buffer.put(documentType.map((type) -> (byte) type.ordinal()).orElse(DELETE_ACTION));
+        buffer.put(isUuid(documentId) ? UUID_KEY : UTF8_KEY);
+        buffer.putInt((int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+        buffer.put(key);
+        buffer.put(tag(username, buffer.array(), HEADER_LENGTH + key.length));
+
+        String encoded = Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+        if (encoded.length() > MAX_CALLBACK_DATA_LENGTH)
+            throw new IllegalArgumentException("Document id is too long for callback data: " + documentId);
+        return encoded;
+    }
+
+    /**
+     * @return {@link CallbackLookupResult.Status#NOT_FOUND} if the data was not produced by this codec for the user
+     */
+    public CallbackLookupResult decode(String username, String callbackData) {
+        Optional<RecognizeDocumentCallbackData> decoded = doDecode(username, callbackData);
+        if (!decoded.isPresent())
+            return CallbackLookupResult.notFound();
+
+        long issuedAt = Integer.toUnsignedLong(ByteBuffer.wrap(Base64.getUrlDecoder().decode(callbackData)).getInt(2));
+        long ageSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - issuedAt;
+        if (ageSeconds > ttlSeconds) {
+            log.info("Callback data for document {} of user {} expired {}s ago",
+                    decoded.get().getDocumentId(), username, ageSeconds - ttlSeconds);
+            return CallbackLookupResult.expired(decoded);
+        }
+        return CallbackLookupResult.found(decoded.get());
+    }
+
+    private Optional<RecognizeDocumentCallbackData> doDecode(String username, String callbackData) {
+        byte[] data;
+        try {
+            data = Base64.getUrlDecoder().decode(callbackData);
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+        if (data.length <= HEADER_LENGTH + TAG_LENGTH)
+            return Optional.empty();
+
+        int payloadLength = data.length - TAG_LENGTH;
+        byte[] expectedTag = tag(username, data, payloadLength);
+        if (!MessageDigest.isEqual(expectedTag, Arrays.copyOfRange(data, payloadLength, data.length))) {
+            log.warn("Callback data {} has invalid tag for user {}", callbackData, username);
+            return Optional.empty();
+        }
+
+        byte action = data[0];
+        byte keyFormat = data[1];
+        byte[] key = Arrays.copyOfRange(data, HEADER_LENGTH, payloadLength);
+        String documentId;
+        if (keyFormat == UUID_KEY && key.length == 16) {
+            ByteBuffer uuid = ByteBuffer.wrap(key);
+            documentId = new UUID(uuid.getLong(), uuid.getLong()).toString();
+        } else if (keyFormat == UTF8_KEY) {
+            documentId = new String(key, StandardCharsets.UTF_8);
+        } else {
+            return Optional.empty();
+        }
+
+        if (action == DELETE_ACTION)
+            return Optional.of(new RecognizeDocumentCallbackData(null, true, documentId));
+        if (action < 0 || action >= DocumentType.values().length)
+            return Optional.empty();
+        return Optional.of(new RecognizeDocumentCallbackData(DocumentType.values()[action], false, documentId));
+    }
+
+    private byte[] tag(String username, byte[] payload, int payloadLength) {
+        Mac mac = this.mac.get();
+        mac.update(String.valueOf(username).getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        mac.update(payload, 0, payloadLength);
+        return Arrays.copyOf(mac.doFinal(), TAG_LENGTH);
+    }
+
+    private static byte[] encodeKey(String documentId) {
+        if (isUuid(documentId)) {
+            UUID uuid = UUID.fromString(documentId);
+            return ByteBuffer.allocate(16)
+                    .putLong(uuid.getMostSignificantBits())
+                    .putLong(uuid.getLeastSignificantBits())
+                    .array();
+        }
+        return documentId.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean isUuid(String documentId) {
+        try {
+            return UUID.fromString(documentId).toString().equals(documentId);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
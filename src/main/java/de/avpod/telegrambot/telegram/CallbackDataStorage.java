@@ -1,25 +1,63 @@
 package de.avpod.telegrambot.telegram;
 
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import de.avpod.telegrambot.RecognizeDocumentCallbackData;
 import de.avpod.telegrambot.aws.TelegramInlineCallbackData;
-import lombok.AllArgsConstructor;
 import lombok.extern.log4j.Log4j2;
 
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
 
-@AllArgsConstructor
+/**
+ * Read-only access to callbacks of prompts sent before {@link CallbackDataCodec} was introduced.
+ * Lookups are cached, missing rows resolve to {@link CallbackLookupResult.Status#EXPIRED}. The rows carry no
+ * issue time, so they cannot expire by age; the table can be dropped once the old prompts do not matter anymore.
+ */
 @Log4j2
 public class CallbackDataStorage {
     private final DynamoDBMapper mapper;
+    private final DynamoDBMapperConfig mapperConfig;
+    private final Map<String, Optional<TelegramInlineCallbackData>> cache;
 
-    public void persistCallbacks(List<TelegramInlineCallbackData> callbacks) {
-        log.info("Persisting callbacks count: {}", callbacks.size());
-        mapper.batchSave(callbacks);
-        log.info("Callbacks persisted");
+    public CallbackDataStorage(DynamoDBMapper mapper, int cacheSize) {
+        this.mapper = mapper;
+        // the rows are never updated, eventually consistent reads are enough
+        this.mapperConfig = DynamoDBMapperConfig.builder()
+                .withConsistentReads(DynamoDBMapperConfig.ConsistentReads.EVENTUAL)
+                .build();
+        this.cache = new LinkedHashMap<String, Optional<TelegramInlineCallbackData>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Optional<TelegramInlineCallbackData>> eldest) {
+                return size() > cacheSize;
+            }
+        };
     }
 
-    public TelegramInlineCallbackData loadCallbackInfo(String id) {
-        log.info("Loading callback data for id {}", id);
-        return mapper.load(TelegramInlineCallbackData.class, id );
+    public CallbackLookupResult loadCallbackInfo(String id) {
+        Optional<TelegramInlineCallbackData> callbackData;
+        synchronized (cache) {
+            callbackData = cache.get(id);
+        }
+        if (callbackData == null) {
+            log.info("Loading callback data for id {}", id);
+            callbackData = Optional.ofNullable(mapper.load(TelegramInlineCallbackData.class, id, mapperConfig));
+            synchronized (cache) {
+                cache.put(id, callbackData);
+            }
+        }
+
+        if (!callbackData.isPresent()) {
+            log.info("Callback data for id {} is expired", id);
+            return CallbackLookupResult.expired(Optional.empty());
+        }
+        return CallbackLookupResult.found(toRecognizeData(callbackData.get()));
+    }
+
+    private static RecognizeDocumentCallbackData toRecognizeData(TelegramInlineCallbackData callbackData) {
+        return new RecognizeDocumentCallbackData(
+                callbackData.getDocumentType(), callbackData.isDelete(), callbackData.getDocumentId()
+        );
     }
 }
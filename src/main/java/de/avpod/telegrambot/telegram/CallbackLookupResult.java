@@ -0,0 +1,39 @@
+package de.avpod.telegrambot.telegram;
+
+import de.avpod.telegrambot.RecognizeDocumentCallbackData;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Optional;
+
+/**
+ * Outcome of resolving a button press. Expired results still carry the answer if it could be authenticated.
+ */
+@Getter
+@ToString
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class CallbackLookupResult {
+
+    public enum Status {
+        FOUND,
+        EXPIRED,
+        NOT_FOUND
+    }
+
+    private final Status status;
+    private final Optional<RecognizeDocumentCallbackData> callbackData;
+
+    static CallbackLookupResult found(RecognizeDocumentCallbackData callbackData) {
+        return new CallbackLookupResult(Status.FOUND, Optional.of(callbackData));
+    }
+
+    static CallbackLookupResult expired(Optional<RecognizeDocumentCallbackData> callbackData) {
+        return new CallbackLookupResult(Status.EXPIRED, callbackData);
+    }
+
+    static CallbackLookupResult notFound() {
+        return new CallbackLookupResult(Status.NOT_FOUND, Optional.empty());
+    }
+}
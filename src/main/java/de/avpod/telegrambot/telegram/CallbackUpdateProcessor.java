@@ -1,7 +1,7 @@
 package de.avpod.telegrambot.telegram;
 
 import de.avpod.telegrambot.*;
-import de.avpod.telegrambot.aws.TelegramInlineCallbackData;
+import de.avpod.telegrambot.aws.UserInfo;
 import lombok.AllArgsConstructor;
 import lombok.extern.log4j.Log4j2;
 import org.telegram.telegrambots.api.methods.send.SendMessage;
@@ -22,7 +22,9 @@ import java.util.concurrent.Executor;
 public class CallbackUpdateProcessor implements UpdateProcessor {
     private final CloudWrapper cloudWrapper;
     private final PersistentStorageWrapper persistentStorage;
+    private final CallbackDataCodec callbackDataCodec;
     private final CallbackDataStorage callbackDataStorage;
+    private final ImageTypeRecognitionJobTrigger imageTypeRecognitionJobTrigger;
     private final Executor handlerExecutor;
 
     @Override
@@ -32,33 +34,46 @@ public class CallbackUpdateProcessor implements UpdateProcessor {
 
         CallbackQuery callback = update.getCallbackQuery();
         log.info("Processing callback query {}", callback.getData());
-        TelegramInlineCallbackData callbackData = callbackDataStorage.loadCallbackInfo(callback.getData());
-        if (callbackData == null) {
+        String username = callback.getFrom().getUserName();
+        CallbackLookupResult lookupResult = callbackDataCodec.decode(username, callback.getData());
+        if (lookupResult.getStatus() == CallbackLookupResult.Status.NOT_FOUND)
+            lookupResult = callbackDataStorage.loadCallbackInfo(callback.getData());
+        if (lookupResult.getStatus() == CallbackLookupResult.Status.NOT_FOUND) {
             log.warn("Cannot deserialize callback {}", callback);
             return Optional.empty();
         }
+
         CompletableFuture<ProcessingResult> responseFuture = new CompletableFuture<>();
         long chatId = callback.getMessage().getChatId();
+        if (lookupResult.getStatus() == CallbackLookupResult.Status.EXPIRED) {
+            processExpiredCallback(callback, username, lookupResult.getCallbackData(), responseFuture);
+            return Optional.of(responseFuture);
+        }
+
+        RecognizeDocumentCallbackData callbackData = lookupResult.getCallbackData().get();
         handlerExecutor.execute(() -> {
             ProcessingResult result = new ProcessingResult(
                     Optional.empty(),
                     Optional.of(() -> {
                         FlowStatus newFlowStatus;
-                        if (callbackData.isDelete()) {
+                        if (callbackData.isDeleteRequested()) {
                             log.info("Requested deleting of document with id {}", callbackData.getDocumentId());
-                            cloudWrapper.deleteDocument(callbackData.getCloudId());
-                            newFlowStatus = persistentStorage.deleteDocument(
-                                    callback.getFrom().getUserName(),
+                            DocumentUpdateResult updateResult = persistentStorage.deleteDocument(
+                                    username,
                                     callbackData.getDocumentId()
                             );
+                            updateResult.getCloudIdentifier().ifPresent(cloudWrapper::deleteDocument);
+                            newFlowStatus = updateResult.getFlowStatus();
                         } else {
                             log.info("Processing recognized document type {}", callbackData.getDocumentType());
-                            cloudWrapper.recognizeDocument(callbackData.getCloudId(), callbackData.getDocumentType());
-                            newFlowStatus = persistentStorage.updateDocumentType(
-                                    callback.getFrom().getUserName(),
+                            DocumentUpdateResult updateResult = persistentStorage.updateDocumentType(
+                                    username,
                                     callbackData.getDocumentId(),
                                     callbackData.getDocumentType()
                             );
+                            updateResult.getCloudIdentifier().ifPresent((cloudId) ->
+                                    cloudWrapper.recognizeDocument(cloudId, callbackData.getDocumentType()));
+                            newFlowStatus = updateResult.getFlowStatus();
                         }
 
                         Integer messageToDelete = callback.getMessage().getMessageId();
@@ -103,4 +118,39 @@ public class CallbackUpdateProcessor implements UpdateProcessor {
 
         return Optional.of(responseFuture);
     }
+
+    /**
+     * Removes the outdated prompt. If the document is still waiting for the answer it is reset to unknown,
+     * so the recognition job asks again with fresh buttons.
+     */
+    private void processExpiredCallback(CallbackQuery callback,
+                                        String username,
+                                        Optional<RecognizeDocumentCallbackData> callbackData,
+                                        CompletableFuture<ProcessingResult> responseFuture) {
+        long chatId = callback.getMessage().getChatId();
+        handlerExecutor.execute(() -> responseFuture.complete(new ProcessingResult(
+                Optional.empty(),
+                Optional.of(() -> {
+                    callbackData.ifPresent((expiredCallback) -> {
+                        String documentId = expiredCallback.getDocumentId();
+                        UserInfo userInfo = persistentStorage.getFullInfo(username);
+                        boolean waitingForAnswer = userInfo != null && userInfo.getDocuments()
+                                .stream()
+                                .anyMatch((document) -> document.getId().equals(documentId) &&
+                                        DocumentType.UNKNOWN_REQUESTED.name().equals(document.getDocumentType()));
+                        if (waitingForAnswer) {
+                            log.info("Asking again for expired document {} of user {}", documentId, username);
+                            persistentStorage.updateDocumentType(username, documentId, DocumentType.UNKNOWN);
+                            imageTypeRecognitionJobTrigger.scheduleRecognition(username, documentId);
+                        }
+                    });
+                    return Arrays.asList(
+                            new DeleteMessage(chatId, callback.getMessage().getMessageId()),
+                            new SendMessage()
+                                    .setChatId(chatId)
+                                    .setText(TextContents.CALLBACK_EXPIRED.getText())
+                    );
+                })
+        )));
+    }
 }
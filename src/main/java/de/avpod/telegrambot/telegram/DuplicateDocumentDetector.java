@@ -0,0 +1,75 @@
+package de.avpod.telegrambot.telegram;
+
+import de.avpod.telegrambot.ContentFingerprint;
+import de.avpod.telegrambot.DocumentHashIndex;
+import de.avpod.telegrambot.PersistentStorageWrapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Checks a downloaded file against the hashes of the documents the user has already submitted. The index
+ * of the user is extended only when the documents are saved, so files which passed the check are kept as
+ * pending until {@link #release} is called and a copy sent meanwhile is caught as well.
+ */
+@Log4j2
+@AllArgsConstructor
+public class DuplicateDocumentDetector {
+    private final PersistentStorageWrapper persistentStorage;
+    private final int maxPerceptualDistance;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, List<ContentFingerprint>> pendingFingerprints = new HashMap<>();
+
+    /**
+     * Unless the match is exact, the fingerprint is pending afterwards and has to be released.
+     */
+    public DocumentHashIndex.Match check(String username, ContentFingerprint fingerprint) {
+        DocumentHashIndex.Match storedMatch =
+                persistentStorage.getDocumentHashIndex(username).match(fingerprint, maxPerceptualDistance);
+        DocumentHashIndex.Match match;
+        synchronized (pendingFingerprints) {
+            List<ContentFingerprint> pending = pendingFingerprints.getOrDefault(username, Collections.emptyList());
+            DocumentHashIndex.Match pendingMatch = pendingIndex(pending).match(fingerprint, maxPerceptualDistance);
+            match = storedMatch.compareTo(pendingMatch) >= 0 ? storedMatch : pendingMatch;
+            if (match != DocumentHashIndex.Match.EXACT)
+                pendingFingerprints.computeIfAbsent(username, (key) -> new ArrayList<>()).add(fingerprint);
+        }
+        if (match == DocumentHashIndex.Match.EXACT) {
+            log.info("File with hash {} of user {} was already received", fingerprint.getSha256(), username);
+            meterRegistry.counter("telegram.upload.duplicates").increment();
+        } else if (match == DocumentHashIndex.Match.SIMILAR) {
+            log.info("File with hash {} of user {} is similar to a received image", fingerprint.getSha256(), username);
+            meterRegistry.counter("telegram.upload.similar").increment();
+        }
+        return match;
+    }
+
+    /**
+     * Called once the upload failed or the processing of the update is complete, whether the document was
+     * saved or not.
+     */
+    public void release(String username, ContentFingerprint fingerprint) {
+        synchronized (pendingFingerprints) {
+            List<ContentFingerprint> pending = pendingFingerprints.get(username);
+            if (pending == null)
+                return;
+            pending.remove(fingerprint);
+            if (pending.isEmpty())
+                pendingFingerprints.remove(username);
+        }
+    }
+
+    private static DocumentHashIndex pendingIndex(List<ContentFingerprint> pending) {
+        return new DocumentHashIndex(
+                pending.stream().map(ContentFingerprint::getSha256).collect(Collectors.toSet()),
+                pending.stream()
+                        .map(ContentFingerprint::getPerceptualHash)
+                        .filter(Optional::isPresent)
+                        .map(Optional::get)
+                        .collect(Collectors.toSet())
+        );
+    }
+}
@@ -0,0 +1,131 @@
+package de.avpod.telegrambot.telegram;
+
+import de.avpod.telegrambot.AvpodBot;
+import de.avpod.telegrambot.UserAwareExecutor;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.context.SmartLifecycle;
+import org.telegram.telegrambots.generics.BotSession;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops the bot before any other bean is destroyed: the polling session first, then it waits for the updates
+ * already accepted and shuts the executors down in the order tasks flow between them. All steps share one
+ * deadline, whatever is left after it is dropped and reported.
+ */
+@Log4j2
+public class GracefulShutdown implements SmartLifecycle {
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final Optional<BotSession> botSession;
+    private final AvpodBot bot;
+    private final UserAwareExecutor userExecutor;
+    private final ExecutorService handlerExecutor;
+    private final MediaGroupCollector mediaGroupCollector;
+    private final ImageTypeRecognitionJob imageTypeRecognitionJob;
+    private final OutboundMessageScheduler outboundMessageScheduler;
+    private final UpdateDeduplicator updateDeduplicator;
+    private final long timeoutMillis;
+    private volatile boolean running;
+
+    public GracefulShutdown(Optional<BotSession> botSession,
+                            AvpodBot bot,
+                            UserAwareExecutor userExecutor,
+                            ExecutorService handlerExecutor,
+                            MediaGroupCollector mediaGroupCollector,
+                            ImageTypeRecognitionJob imageTypeRecognitionJob,
+                            OutboundMessageScheduler outboundMessageScheduler,
+                            UpdateDeduplicator updateDeduplicator,
+                            long timeoutMillis) {
+        this.botSession = botSession;
+        this.bot = bot;
+        this.userExecutor = userExecutor;
+        this.handlerExecutor = handlerExecutor;
+        this.mediaGroupCollector = mediaGroupCollector;
+        this.imageTypeRecognitionJob = imageTypeRecognitionJob;
+        this.outboundMessageScheduler = outboundMessageScheduler;
+        this.updateDeduplicator = updateDeduplicator;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        log.info("Shutting down the bot, waiting up to {}ms for accepted updates", timeoutMillis);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        botSession.filter(BotSession::isRunning).ifPresent(BotSession::stop);
+        bot.stop();
+        try {
+            drain(deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted during shutdown, dropping all remaining tasks");
+            userExecutor.shutdownNow();
+            handlerExecutor.shutdownNow();
+            mediaGroupCollector.shutdown();
+        }
+        updateDeduplicator.shutdown();
+    }
+
+    private void drain(long deadline) throws InterruptedException {
+        // responses and state updates run on the user executor, so it is drained together with the updates
+        while (bot.getInFlightUpdates() + userExecutor.getPendingTasks() > 0 && remainingMillis(deadline) > 0) {
+            Thread.sleep(POLL_INTERVAL_MILLIS);
+        }
+        int abandonedUpdates = bot.getInFlightUpdates();
+        int droppedUpdates = userExecutor.shutdownNow();
+
+        handlerExecutor.shutdown();
+        boolean transfersFinished = handlerExecutor.awaitTermination(remainingMillis(deadline), TimeUnit.MILLISECONDS);
+        int droppedTransfers = transfersFinished ? 0 : handlerExecutor.shutdownNow().size();
+
+        mediaGroupCollector.shutdown();
+        int abandonedRecognitions = imageTypeRecognitionJob.shutdown(remainingMillis(deadline));
+        long unsentMessages = outboundMessageScheduler.shutdown(remainingMillis(deadline));
+
+        if (abandonedUpdates + droppedUpdates + abandonedRecognitions + unsentMessages == 0 && transfersFinished) {
+            log.info("Bot is shut down, all accepted updates were processed");
+            return;
+        }
+        log.warn("Bot is shut down after {}ms with unfinished work: {} updates in processing, {} queued updates, " +
+                        "transfers finished: {}, {} queued transfers, {} users waiting for recognition, " +
+                        "{} unsent messages",
+                timeoutMillis, abandonedUpdates, droppedUpdates, transfersFinished, droppedTransfers,
+                abandonedRecognitions, unsentMessages);
+    }
+
+    private static long remainingMillis(long deadline) {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stopped first, while the storage and cloud beans are still available.
+     */
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        stop();
+        callback.run();
+    }
+}
@@ -3,102 +3,153 @@ package de.avpod.telegrambot.telegram;
 import de.avpod.telegrambot.DocumentType;
 import de.avpod.telegrambot.PersistentStorageWrapper;
 import de.avpod.telegrambot.TextContents;
-import de.avpod.telegrambot.aws.TelegramInlineCallbackData;
 import de.avpod.telegrambot.aws.UserInfo;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.log4j.Log4j2;
 import org.telegram.telegrambots.api.methods.send.SendDocument;
 import org.telegram.telegrambots.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.api.objects.Message;
 import org.telegram.telegrambots.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.api.objects.replykeyboard.buttons.InlineKeyboardButton;
-import org.telegram.telegrambots.bots.AbsSender;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import java.util.concurrent.*;
+
+import static de.avpod.telegrambot.telegram.OutboundMessageScheduler.Priority.RECOGNITION_PROMPT;
 
 @Log4j2
 public class ImageTypeRecognitionJob {
-    private final AtomicBoolean active = new AtomicBoolean(true);
-    private final PersistentStorageWrapper persistentStorage;
-    private final CallbackDataStorage callbackDataStorage;
-    private final AbsSender bot;
+    /**
+     * Covers the per chat rate limit and a retry_after of a 429 response.
+     */
+    private static final long PROMPT_SEND_TIMEOUT_SECONDS = 120;
 
-    ImageTypeRecognitionJob(AbsSender bot,
+    private final ConcurrentHashMap<String, Boolean> dispatchedUsers = new ConcurrentHashMap<>();
+    private final PersistentStorageWrapper persistentStorage;
+    private final CallbackDataCodec callbackDataCodec;
+    private final OutboundMessageScheduler outboundMessageScheduler;
+    private final ExecutorService recognitionExecutor;
+    private final ScheduledExecutorService sweepScheduler;
+    private final MeterRegistry meterRegistry;
+    private final DistributionSummary sweepUsersSummary;
+
+    ImageTypeRecognitionJob(OutboundMessageScheduler outboundMessageScheduler,
                             ImageTypeRecognitionJobTrigger recognitionJobTrigger,
                             PersistentStorageWrapper persistentStorage,
-                            CallbackDataStorage callbackDataStorage) {
-        this.bot = bot;
+                            CallbackDataCodec callbackDataCodec,
+                            int workersCount,
+                            int queueCapacity,
+                            long sweepPeriodSeconds,
+                            MeterRegistry meterRegistry) {
+        this.outboundMessageScheduler = outboundMessageScheduler;
+        this.meterRegistry = meterRegistry;
+        this.sweepUsersSummary = DistributionSummary.builder("telegram.recognition.sweep.users")
+                .register(meterRegistry);
         this.persistentStorage = persistentStorage;
-        this.callbackDataStorage = callbackDataStorage;
-        Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> {
-            if (!active.get())
-                return;
-
-            log.info("Querying users with yet unrecognised images");
-            try {
-                Collection<UserInfo> userInfos = persistentStorage.queryUsersForImageRecognition();
-                log.info("Found {} users with not recognised images", userInfos.size());
-                if (userInfos.isEmpty()) {
-                    active.set(false);
-                } else {
-                    active.set(true);
-                    for (UserInfo userInfo : userInfos) {
-                        processUserWithUnrecognizedImages(userInfo);
-                    }
+        this.callbackDataCodec = callbackDataCodec;
+        this.recognitionExecutor = new ThreadPoolExecutor(workersCount, workersCount,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new CustomizableThreadFactory("executor-recognition"));
+        this.sweepScheduler = Executors.newSingleThreadScheduledExecutor(
+                new CustomizableThreadFactory("executor-recognition-sweep"));
+        sweepScheduler.scheduleAtFixedRate(this::sweep, 60, sweepPeriodSeconds, TimeUnit.SECONDS);
+        recognitionJobTrigger.addListener(this::scheduleRecognition);
+    }
 
-                }
-            } catch (Exception e) {
-                log.error("Exceptin during processing image recognition job", e);
+    /**
+     * Stops the sweep and lets the dispatched users finish within the timeout. Documents of abandoned users
+     * stay pending and are picked up by the first sweep after the restart.
+     *
+     * @return count of users whose recognition was abandoned
+     */
+    public int shutdown(long timeoutMillis) throws InterruptedException {
+        sweepScheduler.shutdownNow();
+        recognitionExecutor.shutdown();
+        if (recognitionExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS))
+            return 0;
+        int abandoned = dispatchedUsers.size();
+        recognitionExecutor.shutdownNow();
+        return abandoned;
+    }
 
+    private void sweep() {
+        log.info("Querying users with yet unrecognised images");
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "success";
+        try {
+            Collection<UserInfo> userInfos = persistentStorage.queryUsersForImageRecognition();
+            log.info("Found {} users with not recognised images", userInfos.size());
+            sweepUsersSummary.record(userInfos.size());
+            for (UserInfo userInfo : userInfos) {
+                dispatch(userInfo.getUsername());
             }
+        } catch (Exception e) {
+            outcome = "error";
+            log.error("Exceptin during processing image recognition job", e);
+        } finally {
+            sample.stop(meterRegistry.timer("telegram.recognition.sweep", "outcome", outcome));
+        }
+    }
 
+    private void scheduleRecognition(String username, String documentId) {
+        log.info("Triggered image recognition for document {} of user {}", documentId, username);
+        dispatch(username);
+    }
 
-        }, 60, 30, TimeUnit.SECONDS);
-        recognitionJobTrigger.addListener(this::scheduleRecognition);
+    /**
+     * Runs recognition for the user on the worker pool. Triggers arriving while the user is queued or
+     * processed are coalesced into one more pass, so every saved document is seen without parallel
+     * prompts for the same user.
+     */
+    private void dispatch(String username) {
+        if (dispatchedUsers.put(username, Boolean.TRUE) != null) {
+            log.info("Recognition for user {} is already dispatched", username);
+            return;
+        }
+
+        try {
+            recognitionExecutor.execute(() -> {
+                do {
+                    dispatchedUsers.put(username, Boolean.FALSE);
+                    processUserWithUnrecognizedImages(username);
+                } while (!dispatchedUsers.remove(username, Boolean.FALSE));
+            });
+        } catch (RejectedExecutionException e) {
+            dispatchedUsers.remove(username);
+            log.warn("Recognition queue is full, user {} will be picked up by the next sweep", username);
+        }
     }
 
-    private void processUserWithUnrecognizedImages(UserInfo userInfo) {
-        String username = userInfo.getUsername();
+    private void processUserWithUnrecognizedImages(String username) {
         try {
             List<UnrecognizedDocumentInfo> unrecognizedDocumentInfoList =
-                    userInfo.getDocuments()
-                            .stream()
-                            .filter((document) -> document.getDocumentType().equals(DocumentType.UNKNOWN.name()))
-                            .map((document) -> new UnrecognizedDocumentInfo(
-                                    document.getId(), userInfo.getChatId(), document.getCloudIdentifier(),
-                                    document.getTelegramFileId(), Optional.ofNullable(document.getTelegramThumbnailId()),
-                                    Optional.ofNullable(document.getOriginalFilename())
-                            )).collect(Collectors.toList());
+                    persistentStorage.queryUnrecognizedDocuments(username);
             log.info("Got {} images with unrecognized types for user {}", unrecognizedDocumentInfoList.size(), username);
-            Map<UnrecognizedDocumentInfo, List<TelegramInlineCallbackData>> callbacks =
-                    prepareCallbacks(unrecognizedDocumentInfoList);
-
-            for (Map.Entry<UnrecognizedDocumentInfo, List<TelegramInlineCallbackData>> entry : callbacks.entrySet()) {
-                List<List<InlineKeyboardButton>> buttons = new ArrayList<>();
-                for (TelegramInlineCallbackData callbackData : entry.getValue()) {
-                    buttons.add(Collections.singletonList(
-                            new InlineKeyboardButton(callbackData.getText())
-                                    .setCallbackData(callbackData.getId())
-                            )
-                    );
-                }
+            Map<UnrecognizedDocumentInfo, List<List<InlineKeyboardButton>>> callbacks =
+                    prepareCallbacks(callbackDataCodec, username, unrecognizedDocumentInfoList);
+
+            Map<String, CompletableFuture<Message>> sentPrompts = new LinkedHashMap<>();
+            for (Map.Entry<UnrecognizedDocumentInfo, List<List<InlineKeyboardButton>>> entry : callbacks.entrySet()) {
+                List<List<InlineKeyboardButton>> buttons = entry.getValue();
 
                 UnrecognizedDocumentInfo unrecognizedDocumentInfo = entry.getKey();
+                CompletableFuture<Message> sentPrompt;
                 if (unrecognizedDocumentInfo.getTelegramThumbnailId().isPresent()) {
-                    bot.sendPhoto(new SendPhoto()
+                    SendPhoto sendPhoto = new SendPhoto()
                             .setChatId(unrecognizedDocumentInfo.getChatId())
                             .setReplyMarkup(new InlineKeyboardMarkup()
                                     .setKeyboard(buttons)
                             )
                             .setPhoto(unrecognizedDocumentInfo.getTelegramThumbnailId().get())
-                            .setCaption(TextContents.RECOGNISE_IMAGE_TEXT.getText())
-                    );
-
-
+                            .setCaption(TextContents.RECOGNISE_IMAGE_TEXT.getText());
+                    sentPrompt = outboundMessageScheduler.send(unrecognizedDocumentInfo.getChatId(),
+                            RECOGNITION_PROMPT, (sender) -> sender.sendPhoto(sendPhoto));
                 } else {
-                    bot.sendDocument(new SendDocument()
+                    SendDocument sendDocument = new SendDocument()
                             .setChatId(unrecognizedDocumentInfo.getChatId())
                             .setReplyMarkup(new InlineKeyboardMarkup()
                                     .setKeyboard(buttons)
@@ -106,57 +157,56 @@ public class ImageTypeRecognitionJob {
                             .setDocument(unrecognizedDocumentInfo.getTelegramFileId())
                             .setCaption(TextContents.RECOGNISE_DOCUMENT_TEXT.getText() +
                                     ":" +
-                                    unrecognizedDocumentInfo.getOriginalFileName().orElse(""))
-                    );
+                                    unrecognizedDocumentInfo.getOriginalFileName().orElse(""));
+                    sentPrompt = outboundMessageScheduler.send(unrecognizedDocumentInfo.getChatId(),
+                            RECOGNITION_PROMPT, (sender) -> sender.sendDocument(sendDocument));
+                }
+                sentPrompts.put(unrecognizedDocumentInfo.getId(), sentPrompt);
+            }
+
+            // documents are marked only once the prompt is delivered, failed ones are retried by the next pass
+            for (Map.Entry<String, CompletableFuture<Message>> sentPrompt : sentPrompts.entrySet()) {
+                try {
+                    sentPrompt.getValue().get(PROMPT_SEND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    persistentStorage.markDocumentAsNotifiedForRecognition(username, sentPrompt.getKey());
+                } catch (ExecutionException e) {
+                    log.error("Cannot send recognition prompt for document {} of user {}",
+                            sentPrompt.getKey(), username, e.getCause());
+                } catch (TimeoutException e) {
+                    // the remaining prompts are queued behind this one in the same chat
+                    log.warn("Recognition prompts of user {} are not sent within {}s, leaving them to the next pass",
+                            username, PROMPT_SEND_TIMEOUT_SECONDS);
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.warn("Interrupted while waiting for recognition prompts of user {}", username);
+                    return;
                 }
-                persistentStorage.markDocumentAsNotifiedForRecognition(username, unrecognizedDocumentInfo.getId());
             }
         } catch (Exception e) {
             log.error("Got exception during processing images for user {}", username, e);
         }
     }
 
-    private Map<UnrecognizedDocumentInfo, List<TelegramInlineCallbackData>> prepareCallbacks(
+    static Map<UnrecognizedDocumentInfo, List<List<InlineKeyboardButton>>> prepareCallbacks(
+            CallbackDataCodec callbackDataCodec,
+            String username,
             List<UnrecognizedDocumentInfo> unrecognizedDocumentInfoList) {
-        Map<UnrecognizedDocumentInfo, List<TelegramInlineCallbackData>> callbacksPerDocument =
-                new HashMap<>();
+        Map<UnrecognizedDocumentInfo, List<List<InlineKeyboardButton>>> buttonsPerDocument = new LinkedHashMap<>();
 
         for (UnrecognizedDocumentInfo documentInfo : unrecognizedDocumentInfoList) {
-            List<TelegramInlineCallbackData> callbacks = new ArrayList<>();
+            List<List<InlineKeyboardButton>> buttons = new ArrayList<>();
             for (DocumentType documentType : DocumentType.realDocuments()) {
-                String id = UUID.randomUUID().toString();
-                callbacks.add(new TelegramInlineCallbackData(
-                        id,
-                        documentType,
-                        documentInfo.getId(),
-                        documentInfo.getCloudFileId(),
-                        documentType.getText()
+                buttons.add(Collections.singletonList(new InlineKeyboardButton(documentType.getText())
+                        .setCallbackData(callbackDataCodec.encode(username, documentInfo.getId(), Optional.of(documentType)))
                 ));
             }
-            String id = UUID.randomUUID().toString();
-            callbacks.add(new TelegramInlineCallbackData(
-                    id,
-                    null,
-                    documentInfo.getId(),
-                    documentInfo.getCloudFileId(),
-                    TextContents.UNKNOWN_DOCUMENT_TYPE_ANSWER.getText()
+            buttons.add(Collections.singletonList(new InlineKeyboardButton(TextContents.UNKNOWN_DOCUMENT_TYPE_ANSWER.getText())
+                    .setCallbackData(callbackDataCodec.encode(username, documentInfo.getId(), Optional.empty()))
             ));
-            callbacksPerDocument.put(documentInfo, callbacks);
+            buttonsPerDocument.put(documentInfo, buttons);
         }
-        List<TelegramInlineCallbackData> allCallbacks = callbacksPerDocument.values()
-                .stream()
-                .flatMap(Collection::stream)
-                .collect(Collectors.toList());
-        log.info("Persisting inline callbacks into storage with ids {}",
-                allCallbacks.stream().map(TelegramInlineCallbackData::getId));
-        callbackDataStorage.persistCallbacks(allCallbacks);
-        log.info("Callbacks were persisted");
-        return callbacksPerDocument;
+        return buttonsPerDocument;
     }
 
-
-    private void scheduleRecognition() {
-        log.info("Triggered image recognition job");
-        active.set(true);
-    }
 }
@@ -2,16 +2,18 @@ package de.avpod.telegrambot.telegram;
 
 import lombok.Setter;
 
+import java.util.function.BiConsumer;
+
 @Setter
 public class ImageTypeRecognitionJobTrigger {
-    private Runnable listener;
+    private BiConsumer<String, String> listener;
 
-    public void scheduleRecognition() {
+    public void scheduleRecognition(String username, String documentId) {
         if (listener != null)
-            listener.run();
+            listener.accept(username, documentId);
     }
 
-    public void addListener(Runnable runnable) {
-        this.listener = runnable;
+    public void addListener(BiConsumer<String, String> listener) {
+        this.listener = listener;
     }
 }
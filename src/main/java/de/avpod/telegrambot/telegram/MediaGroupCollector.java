@@ -0,0 +1,108 @@
+package de.avpod.telegrambot.telegram;
+
+import lombok.extern.log4j.Log4j2;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.telegram.telegrambots.api.objects.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Telegram delivers every part of an album as a separate update sharing the media group id. Parts are collected
+ * until no new one arrived within the window, so the whole album can be processed as one batch.
+ */
+@Log4j2
+public class MediaGroupCollector {
+    /**
+     * Telegram albums consist of up to 10 items.
+     */
+    private static final int MAX_GROUP_SIZE = 10;
+
+    private final long windowNanos;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, PendingGroup> groups = new HashMap<>();
+
+    public MediaGroupCollector(long windowMillis) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new CustomizableThreadFactory("executor-media-group"));
+    }
+
+    /**
+     * @return future completed with all messages of the album for its first part and with empty for the others
+     */
+    public CompletableFuture<Optional<List<Message>>> collect(Message message) {
+        String groupId = message.getMediaGroupId();
+        CompletableFuture<Optional<List<Message>>> future = new CompletableFuture<>();
+        boolean full;
+        synchronized (groups) {
+            PendingGroup group = groups.get(groupId);
+            if (group == null) {
+                group = new PendingGroup();
+                groups.put(groupId, group);
+                scheduler.schedule(() -> flushIfQuiet(groupId), windowNanos, TimeUnit.NANOSECONDS);
+            }
+            group.messages.add(message);
+            group.futures.add(future);
+            group.lastAddedAt = System.nanoTime();
+            full = group.messages.size() >= MAX_GROUP_SIZE;
+        }
+        if (full)
+            flush(groupId);
+        return future;
+    }
+
+    private void flushIfQuiet(String groupId) {
+        synchronized (groups) {
+            PendingGroup group = groups.get(groupId);
+            if (group == null)
+                return;
+            long quietNanos = System.nanoTime() - group.lastAddedAt;
+            if (quietNanos < windowNanos) {
+                scheduler.schedule(() -> flushIfQuiet(groupId), windowNanos - quietNanos, TimeUnit.NANOSECONDS);
+                return;
+            }
+        }
+        flush(groupId);
+    }
+
+    private void flush(String groupId) {
+        PendingGroup group;
+        synchronized (groups) {
+            group = groups.remove(groupId);
+        }
+        if (group == null)
+            return;
+
+        log.info("Collected {} parts of media group {}", group.messages.size(), groupId);
+        group.futures.get(0).complete(Optional.of(group.messages));
+        for (int i = 1; i < group.futures.size(); i++) {
+            group.futures.get(i).complete(Optional.empty());
+        }
+    }
+
+    /**
+     * Completes the groups still being collected with the parts received so far and stops the scheduler.
+     */
+    public void shutdown() {
+        List<String> groupIds;
+        synchronized (groups) {
+            groupIds = new ArrayList<>(groups.keySet());
+        }
+        groupIds.forEach(this::flush);
+        scheduler.shutdownNow();
+    }
+
+    private static class PendingGroup {
+        private final List<Message> messages = new ArrayList<>();
+        private final List<CompletableFuture<Optional<List<Message>>>> futures = new ArrayList<>();
+        private long lastAddedAt;
+    }
+}
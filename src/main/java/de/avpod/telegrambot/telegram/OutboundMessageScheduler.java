@@ -0,0 +1,342 @@
+package de.avpod.telegrambot.telegram;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.telegram.telegrambots.api.methods.BotApiMethod;
+import org.telegram.telegrambots.bots.AbsSender;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends all outgoing Bot API calls within Telegram limits: a global token bucket for the bot and one per chat.
+ * Messages of one chat are sent in order and one at a time, between chats the message with the higher
+ * {@link Priority} goes first. A 429 response puts the message back to the head of its chat queue and
+ * pauses the chat and the global bucket for the returned retry_after, so the other chats do not keep hitting
+ * the limit meanwhile.
+ */
+@Log4j2
+public class OutboundMessageScheduler implements MeterBinder {
+
+    public enum Priority {
+        USER_REPLY,
+        RECOGNITION_PROMPT
+    }
+
+    @FunctionalInterface
+    public interface OutboundCall<T extends Serializable> {
+        T send(AbsSender sender) throws TelegramApiException;
+    }
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final AbsSender sender;
+    private final double perChatRatePerSecond;
+    private final int perChatBurst;
+    private final int maxRetries;
+    private final TokenBucket globalBucket;
+    private final Map<Long, ChatQueue> chats = new HashMap<>();
+    private final ExecutorService sendExecutor;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Thread dispatcher;
+    private boolean shutdown;
+    /**
+     * Set once the dispatcher is stopped, messages which would be queued again are failed instead.
+     */
+    private boolean stopped;
+
+    private final LongAdder queueDepth = new LongAdder();
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder rateLimitedCount = new LongAdder();
+    /**
+     * Time from enqueueing to a successful send, including rate limit waits. Set once the metrics are bound.
+     */
+    private volatile Timer sendLatency;
+
+    public OutboundMessageScheduler(AbsSender sender,
+                                    double globalRatePerSecond,
+                                    int globalBurst,
+                                    double perChatRatePerSecond,
+                                    int perChatBurst,
+                                    int senderThreads,
+                                    int maxRetries) {
+        this.sender = sender;
+        this.perChatRatePerSecond = perChatRatePerSecond;
+        this.perChatBurst = perChatBurst;
+        this.maxRetries = maxRetries;
+        this.globalBucket = new TokenBucket(globalRatePerSecond, globalBurst, System.nanoTime());
+        this.sendExecutor = Executors.newFixedThreadPool(senderThreads, new CustomizableThreadFactory("executor-outbound"));
+        this.dispatcher = new CustomizableThreadFactory("executor-outbound-dispatcher").newThread(this::dispatchLoop);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    public <T extends Serializable> CompletableFuture<T> send(long chatId, Priority priority, BotApiMethod<T> method) {
+        return send(chatId, priority, (sender) -> sender.execute(method));
+    }
+
+    public <T extends Serializable> CompletableFuture<T> send(long chatId, Priority priority, OutboundCall<T> call) {
+        OutboundMessage<T> message = new OutboundMessage<>(chatId, priority, sequence.incrementAndGet(), call);
+        synchronized (chats) {
+            if (shutdown) {
+                message.future.completeExceptionally(new IllegalStateException("Outbound scheduler is shut down"));
+                return message.future;
+            }
+            chats.computeIfAbsent(chatId, (id) -> new ChatQueue(
+                    new TokenBucket(perChatRatePerSecond, perChatBurst, System.nanoTime())
+            )).messages.addLast(message);
+            queueDepth.increment();
+            chats.notifyAll();
+        }
+        return message.future;
+    }
+
+    /**
+     * Rejects new messages and lets the queued ones be sent within the timeout, rate limits still apply.
+     * Messages left in the queues or dropped from the sender pool are completed exceptionally.
+     *
+     * @return count of messages which were not sent
+     */
+    public long shutdown(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (chats) {
+            shutdown = true;
+            long remainingNanos;
+            while (queueDepth.sum() > 0 && (remainingNanos = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(chats, remainingNanos);
+            }
+        }
+        dispatcher.interrupt();
+        List<Runnable> droppedSends = sendExecutor.shutdownNow();
+
+        long unsent = queueDepth.sum();
+        synchronized (chats) {
+            stopped = true;
+            for (ChatQueue chat : chats.values()) {
+                for (OutboundMessage<?> message : chat.messages)
+                    abandon(message);
+                chat.messages.clear();
+            }
+        }
+        for (Runnable droppedSend : droppedSends)
+            abandon(((SendTask) droppedSend).message);
+        return unsent;
+    }
+
+    private void abandon(OutboundMessage<?> message) {
+        queueDepth.decrement();
+        message.future.completeExceptionally(new IllegalStateException("Outbound scheduler is shut down"));
+    }
+
+    private void dispatchLoop() {
+        synchronized (chats) {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    long now = System.nanoTime();
+                    long waitNanos = Long.MAX_VALUE;
+                    ChatQueue candidate = null;
+
+                    Iterator<ChatQueue> iterator = chats.values().iterator();
+                    while (iterator.hasNext()) {
+                        ChatQueue chat = iterator.next();
+                        if (chat.inFlight)
+                            continue;
+                        if (chat.messages.isEmpty()) {
+                            if (chat.bucket.isFull(now))
+                                iterator.remove();
+                            continue;
+                        }
+                        long chatWait = chat.bucket.nanosUntilAvailable(now);
+                        if (chatWait > 0) {
+                            waitNanos = Math.min(waitNanos, chatWait);
+                            continue;
+                        }
+                        if (candidate == null || chat.messages.peekFirst().compareTo(candidate.messages.peekFirst()) < 0)
+                            candidate = chat;
+                    }
+
+                    if (candidate != null) {
+                        long globalWait = globalBucket.nanosUntilAvailable(now);
+                        if (globalWait > 0) {
+                            waitNanos = Math.min(waitNanos, globalWait);
+                        } else {
+                            globalBucket.take(now);
+                            candidate.bucket.take(now);
+                            candidate.inFlight = true;
+                            OutboundMessage<?> message = candidate.messages.pollFirst();
+                            try {
+                                sendExecutor.execute(new SendTask(message));
+                            } catch (RejectedExecutionException e) {
+                                candidate.inFlight = false;
+                                abandon(message);
+                            }
+                            continue;
+                        }
+                    }
+
+                    if (waitNanos == Long.MAX_VALUE)
+                        chats.wait();
+                    else
+                        TimeUnit.NANOSECONDS.timedWait(chats, waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    log.error("Unexpected exception in outbound dispatcher", e);
+                }
+            }
+        }
+    }
+
+    private <T extends Serializable> void doSend(OutboundMessage<T> message) {
+        long retryAfterNanos = 0;
+        try {
+            T result = message.call.send(sender);
+            sentCount.increment();
+            Timer latencyTimer = sendLatency;
+            if (latencyTimer != null)
+                latencyTimer.record(System.nanoTime() - message.enqueuedAt, TimeUnit.NANOSECONDS);
+            queueDepth.decrement();
+            message.future.complete(result);
+        } catch (TelegramApiRequestException e) {
+            if (isRateLimited(e) && message.attempts < maxRetries) {
+                rateLimitedCount.increment();
+                retryAfterNanos = TimeUnit.SECONDS.toNanos(e.getParameters().getRetryAfter());
+                log.warn("Rate limited for chat {}, retrying in {}s", message.chatId, e.getParameters().getRetryAfter());
+            } else {
+                fail(message, e);
+            }
+        } catch (Exception e) {
+            fail(message, e);
+        }
+
+        synchronized (chats) {
+            ChatQueue chat = chats.get(message.chatId);
+            chat.inFlight = false;
+            if (retryAfterNanos > 0 && stopped) {
+                abandon(message);
+            } else if (retryAfterNanos > 0) {
+                long now = System.nanoTime();
+                message.attempts++;
+                chat.bucket.blockFor(retryAfterNanos, now);
+                globalBucket.blockFor(retryAfterNanos, now);
+                chat.messages.addFirst(message);
+            }
+            chats.notifyAll();
+        }
+    }
+
+    private void fail(OutboundMessage<?> message, Exception e) {
+        log.error("Cannot send message to chat {}", message.chatId, e);
+        failedCount.increment();
+        queueDepth.decrement();
+        message.future.completeExceptionally(e);
+    }
+
+    private static boolean isRateLimited(TelegramApiRequestException e) {
+        return e.getErrorCode() != null && e.getErrorCode() == TOO_MANY_REQUESTS &&
+                e.getParameters() != null && e.getParameters().getRetryAfter() != null;
+    }
+
+    public long getQueueDepth() {
+        return queueDepth.sum();
+    }
+
+    public long getSentCount() {
+        return sentCount.sum();
+    }
+
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    public long getRateLimitedCount() {
+        return rateLimitedCount.sum();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("telegram.outbound.queued", this, OutboundMessageScheduler::getQueueDepth)
+                .register(registry);
+        FunctionCounter.builder("telegram.outbound.messages", this, OutboundMessageScheduler::getSentCount)
+                .tag("result", "sent")
+                .register(registry);
+        FunctionCounter.builder("telegram.outbound.messages", this, OutboundMessageScheduler::getFailedCount)
+                .tag("result", "failed")
+                .register(registry);
+        FunctionCounter.builder("telegram.outbound.rate.limited", this, OutboundMessageScheduler::getRateLimitedCount)
+                .register(registry);
+        sendLatency = Timer.builder("telegram.outbound.latency")
+                .description("Time from enqueueing to a successful send, including rate limit waits")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    /**
+     * Named task, so the sends dropped on shutdown can be failed.
+     */
+    private class SendTask implements Runnable {
+        private final OutboundMessage<?> message;
+
+        private SendTask(OutboundMessage<?> message) {
+            this.message = message;
+        }
+
+        @Override
+        public void run() {
+            doSend(message);
+        }
+    }
+
+    private static class ChatQueue {
+        private final Deque<OutboundMessage<?>> messages = new ArrayDeque<>();
+        private final TokenBucket bucket;
+        private boolean inFlight;
+
+        private ChatQueue(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    private static class OutboundMessage<T extends Serializable> implements Comparable<OutboundMessage<?>> {
+        private final long chatId;
+        private final Priority priority;
+        private final long sequence;
+        private final long enqueuedAt = System.nanoTime();
+        private final OutboundCall<T> call;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private int attempts;
+
+        private OutboundMessage(long chatId, Priority priority, long sequence, OutboundCall<T> call) {
+            this.chatId = chatId;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.call = call;
+        }
+
+        @Override
+        public int compareTo(OutboundMessage<?> other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package de.avpod.telegrambot.telegram;
+
+import de.avpod.telegrambot.ContentFingerprint;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Local copy of a {@link TelegramFileContent}, the temporary file is deleted on close.
+ */
+@Log4j2
+@AllArgsConstructor
+public class SpooledFile implements AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Getter
+    private final Path path;
+    @Getter
+    private final long size;
+    @Getter
+    private final ContentFingerprint fingerprint;
+
+    public InputStream openStream() throws IOException {
+        return new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+    }
+
+    @Override
+    public void close() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Cannot delete temporary file {}", path, e);
+        }
+    }
+}
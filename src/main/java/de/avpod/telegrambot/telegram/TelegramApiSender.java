@@ -0,0 +1,23 @@
+package de.avpod.telegrambot.telegram;
+
+import org.telegram.telegrambots.ApiContext;
+import org.telegram.telegrambots.bots.DefaultAbsSender;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+
+/**
+ * Bot API client used only for outgoing calls, so sending does not depend on the bot receiving updates.
+ */
+public class TelegramApiSender extends DefaultAbsSender {
+    private final String token;
+
+    public TelegramApiSender(String token, String baseUrl) {
+        super(ApiContext.getInstance(DefaultBotOptions.class));
+        this.token = token;
+        getOptions().setBaseUrl(baseUrl);
+    }
+
+    @Override
+    public String getBotToken() {
+        return token;
+    }
+}
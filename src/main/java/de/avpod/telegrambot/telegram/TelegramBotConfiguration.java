@@ -1,67 +1,251 @@
 package de.avpod.telegrambot.telegram;
 
-import de.avpod.telegrambot.AvpodBot;
-import de.avpod.telegrambot.CloudWrapper;
-import de.avpod.telegrambot.PersistentStorageWrapper;
-import de.avpod.telegrambot.UserAwareExecutor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.avpod.telegrambot.*;
 import de.avpod.telegrambot.aws.DynamoDBConfguration;
+import de.avpod.telegrambot.aws.S3Configuration;
 import de.avpod.telegrambot.google.GoogleDriveConfiguration;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.web.client.RestTemplate;
-import org.telegram.telegrambots.ApiConstants;
 import org.telegram.telegrambots.ApiContextInitializer;
 import org.telegram.telegrambots.TelegramBotsApi;
 import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
 import org.telegram.telegrambots.generics.BotSession;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Executor;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
-@Import({GoogleDriveConfiguration.class, DynamoDBConfguration.class})
+@Import({GoogleDriveConfiguration.class, S3Configuration.class, DynamoDBConfguration.class})
 public class TelegramBotConfiguration {
 
     @Value("${telegram.token}")
     private String token;
 
-    @Bean
-    BotSession avpodTelegramBot(CloudWrapper cloudWrapper,
-                                PersistentStorageWrapper persistentStorageWrapper,
-                                CallbackDataStorage callbackDataStorage) throws TelegramApiRequestException {
-        ApiContextInitializer.init();
+    @Value("${telegram.api.baseUrl:https://api.telegram.org/bot}")
+    private String apiBaseUrl;
+
+    @Value("${telegram.api.fileBaseUrl:https://api.telegram.org/file/bot}")
+    private String apiFileBaseUrl;
+
+    @Value("${telegram.callback.secret:${telegram.token}}")
+    private String callbackSecret;
+
+    @Value("${telegram.callback.ttlHours:72}")
+    private long callbackTtlHours;
+
+    @Value("${telegram.webhook.url:}")
+    private String webhookUrl;
+
+    @Value("${telegram.webhook.path:/telegram/webhook}")
+    private String webhookPath;
+
+    @Value("${telegram.webhook.secret:}")
+    private String webhookSecret;
+
+    @Value("${telegram.executor.mode:lanes}")
+    private String executorMode;
+
+    @Value("${telegram.executor.handlerThreads:4}")
+    private int handlerThreads;
+
+    @Value("${telegram.executor.lanes:0}")
+    private int executorLanes;
+
+    @Value("${telegram.executor.laneQueueCapacity:1000}")
+    private int executorLaneQueueCapacity;
+
+    @Value("${telegram.executor.maxPendingPerUser:100}")
+    private int executorMaxPendingPerUser;
+
+    /**
+     * BLOCK waits on the polling or webhook thread, so it is opt-in only.
+     */
+    @Value("${telegram.executor.rejectionPolicy:ABORT}")
+    private LaneUserAwareExecutor.RejectionPolicy executorRejectionPolicy;
+
+    @Value("${telegram.executor.blockTimeoutMillis:5000}")
+    private long executorBlockTimeoutMillis;
+
+    @Value("${telegram.executor.driveConcurrency:16}")
+    private int driveConcurrency;
+
+    @Value("${telegram.executor.dynamoDbConcurrency:32}")
+    private int dynamoDbConcurrency;
+
+    @Value("${telegram.executor.limiterTimeoutMillis:30000}")
+    private long limiterTimeoutMillis;
+
+    /**
+     * Drive permits are held for a whole upload, large files keep them for minutes.
+     */
+    @Value("${telegram.executor.driveLimiterTimeoutMillis:600000}")
+    private long driveLimiterTimeoutMillis;
+
+    @Value("${telegram.outbound.globalRatePerSecond:30}")
+    private double outboundGlobalRatePerSecond;
+
+    @Value("${telegram.outbound.globalBurst:30}")
+    private int outboundGlobalBurst;
+
+    @Value("${telegram.outbound.perChatRatePerSecond:1}")
+    private double outboundPerChatRatePerSecond;
+
+    @Value("${telegram.outbound.perChatBurst:3}")
+    private int outboundPerChatBurst;
+
+    @Value("${telegram.outbound.senderThreads:8}")
+    private int outboundSenderThreads;
+
+    @Value("${telegram.outbound.maxRetries:3}")
+    private int outboundMaxRetries;
+
+    @Value("${telegram.upload.progressIntervalSeconds:30}")
+    private long uploadProgressIntervalSeconds;
+
+    @Value("${telegram.upload.mediaGroupWindowMillis:1500}")
+    private long mediaGroupWindowMillis;
+
+    @Value("${telegram.upload.maxPerceptualDistance:4}")
+    private int maxPerceptualDistance;
+
+    @Value("${telegram.flowStatusCache.enabled:true}")
+    private boolean flowStatusCacheEnabled;
+
+    @Value("${telegram.flowStatusCache.ttlSeconds:60}")
+    private long flowStatusCacheTtlSeconds;
+
+    @Value("${telegram.flowStatusCache.maxSize:10000}")
+    private int flowStatusCacheMaxSize;
+
+    @Value("${telegram.recognition.workers:4}")
+    private int recognitionWorkers;
+
+    @Value("${telegram.recognition.queueCapacity:1000}")
+    private int recognitionQueueCapacity;
+
+    @Value("${telegram.recognition.sweepPeriodSeconds:600}")
+    private long recognitionSweepPeriodSeconds;
+
+    @Value("${telegram.dedup.windowSize:10000}")
+    private int dedupWindowSize;
+
+    @Value("${telegram.dedup.offsetSaveIntervalSeconds:10}")
+    private long dedupOffsetSaveIntervalSeconds;
+
+    @Value("${telegram.shutdown.timeoutSeconds:30}")
+    private long shutdownTimeoutSeconds;
+
+    /**
+     * Stopped by {@link GracefulShutdown} before the bot is drained.
+     */
+    @Bean(destroyMethod = "")
+    @ConditionalOnProperty(value = "telegram.mode", havingValue = "polling", matchIfMissing = true)
+    BotSession avpodTelegramBot(AvpodBot telegramBot) throws TelegramApiRequestException {
         TelegramBotsApi botsApi = new TelegramBotsApi();
         // Register our bot
-        return botsApi.registerBot(telegramBot(cloudWrapper, persistentStorageWrapper, callbackDataStorage));
+        return botsApi.registerBot(telegramBot);
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "telegram.mode", havingValue = "webhook")
+    TelegramWebhookController telegramWebhookController(AvpodBot telegramBot) throws IOException {
+        if (webhookSecret.isEmpty() || webhookUrl.isEmpty())
+            throw new IllegalStateException("telegram.webhook.url and telegram.webhook.secret are required in webhook mode");
+
+        new TelegramWebhookRegistrar(apiBaseUrl + token + "/", new RestTemplate(), new ObjectMapper())
+                .register(webhookUrl + webhookPath, webhookSecret);
+        return new TelegramWebhookController(telegramBot, webhookSecret);
     }
 
     @Bean
     AvpodBot telegramBot(CloudWrapper cloudWrapper,
                          PersistentStorageWrapper persistentStorageWrapper,
-                         CallbackDataStorage callbackDataStorage) {
+                         CallbackDataStorage callbackDataStorage,
+                         OutboundMessageScheduler outboundMessageScheduler,
+                         UpdateDeduplicator updateDeduplicator,
+                         MeterRegistry meterRegistry) {
         ImageTypeRecognitionJobTrigger imageTypeRecognitionJobTrigger = imageTypeRecognitionJobTrigger();
-        return new AvpodBot(
+        AvpodBot avpodBot = new AvpodBot(
                 token,
                 messageProcessors(
-                        new TelegramFilesLoader(token, ApiConstants.BASE_URL + token + "/",
-                                restTemplate()
+                        new TelegramFilesLoader(token, apiBaseUrl + token + "/", apiFileBaseUrl,
+                                restTemplate(), meterRegistry
                         ),
                         cloudWrapper,
-                        handlerExecutor(),
+                        handlerExecutor(meterRegistry),
                         persistentStorageWrapper,
                         imageTypeRecognitionJobTrigger,
-                        callbackDataStorage
+                        callbackDataCodec(),
+                        callbackDataStorage,
+                        new UploadProgressNotifier(outboundMessageScheduler, uploadProgressIntervalSeconds),
+                        mediaGroupCollector(),
+                        new DuplicateDocumentDetector(persistentStorageWrapper, maxPerceptualDistance, meterRegistry),
+                        meterRegistry
                 ),
-                userAwareResponseExecutor(),
-                persistentStorageWrapper
+                userAwareResponseExecutor(meterRegistry),
+                persistentStorageWrapper,
+                outboundMessageScheduler,
+                updateDeduplicator
         );
+        // used by the polling session
+        avpodBot.getOptions().setBaseUrl(apiBaseUrl);
+        return avpodBot;
+    }
+
+    @Bean
+    GracefulShutdown gracefulShutdown(Optional<BotSession> botSession,
+                                      AvpodBot telegramBot,
+                                      ImageTypeRecognitionJob imageTypeRecognitionJob,
+                                      OutboundMessageScheduler outboundMessageScheduler,
+                                      UpdateDeduplicator updateDeduplicator,
+                                      MeterRegistry meterRegistry) {
+        return new GracefulShutdown(botSession, telegramBot, userAwareResponseExecutor(meterRegistry),
+                handlerExecutor(meterRegistry), mediaGroupCollector(), imageTypeRecognitionJob,
+                outboundMessageScheduler, updateDeduplicator, TimeUnit.SECONDS.toMillis(shutdownTimeoutSeconds));
+    }
+
+    /**
+     * The offset is persisted only with telegram.dedup.persistOffset=true and the dynamodb storage backend.
+     */
+    @Bean
+    UpdateDeduplicator updateDeduplicator(Optional<UpdateOffsetStore> updateOffsetStore) {
+        return new UpdateDeduplicator(dedupWindowSize, updateOffsetStore,
+                TimeUnit.SECONDS.toMillis(dedupOffsetSaveIntervalSeconds));
+    }
+
+    @Bean
+    MediaGroupCollector mediaGroupCollector() {
+        return new MediaGroupCollector(mediaGroupWindowMillis);
+    }
+
+    /**
+     * Metrics of the scheduler are bound by the actuator as it is a MeterBinder bean.
+     */
+    @Bean
+    OutboundMessageScheduler outboundMessageScheduler() {
+        ApiContextInitializer.init();
+        return new OutboundMessageScheduler(new TelegramApiSender(token, apiBaseUrl),
+                outboundGlobalRatePerSecond, outboundGlobalBurst,
+                outboundPerChatRatePerSecond, outboundPerChatBurst,
+                outboundSenderThreads, outboundMaxRetries);
     }
 
     @Bean
@@ -70,16 +254,62 @@ public class TelegramBotConfiguration {
     }
 
     @Bean
-    ImageTypeRecognitionJob imageTypeRecognitionJob(AvpodBot bot,
+    ImageTypeRecognitionJob imageTypeRecognitionJob(OutboundMessageScheduler outboundMessageScheduler,
                                                     ImageTypeRecognitionJobTrigger recognitionJobTrigger,
                                                     PersistentStorageWrapper persistentStorageWrapper,
-                                                    CallbackDataStorage callbackDataStorage) {
-        return new ImageTypeRecognitionJob(bot, recognitionJobTrigger, persistentStorageWrapper, callbackDataStorage);
+                                                    MeterRegistry meterRegistry) {
+        return new ImageTypeRecognitionJob(outboundMessageScheduler, recognitionJobTrigger, persistentStorageWrapper,
+                callbackDataCodec(), recognitionWorkers, recognitionQueueCapacity, recognitionSweepPeriodSeconds,
+                meterRegistry);
     }
 
+    @Bean
+    CallbackDataCodec callbackDataCodec() {
+        return new CallbackDataCodec(callbackSecret, TimeUnit.HOURS.toSeconds(callbackTtlHours));
+    }
 
-    private Executor handlerExecutor() {
-        return Executors.newFixedThreadPool(4, new CustomizableThreadFactory("executor-cloud-connect"));
+
+    @Bean
+    @Primary
+    CloudWrapper cloudWrapper(@Qualifier("cloudBackend") CloudWrapper backend, MeterRegistry meterRegistry) {
+        CloudWrapper cloudWrapper = new TimedCloudWrapper(backend, new OperationTimer(meterRegistry, "cloud.operation"));
+        if (virtualThreadsMode())
+            cloudWrapper = new LimitedCloudWrapper(cloudWrapper,
+                    new ConcurrencyLimiter("drive", driveConcurrency, driveLimiterTimeoutMillis));
+        return cloudWrapper;
+    }
+
+    @Bean
+    @Primary
+    PersistentStorageWrapper persistentStorageWrapper(
+            @Qualifier("storageBackend") PersistentStorageWrapper backend,
+            MeterRegistry meterRegistry) {
+        PersistentStorageWrapper persistentStorageWrapper = new TimedPersistentStorageWrapper(backend,
+                new OperationTimer(meterRegistry, "storage.operation"));
+        if (virtualThreadsMode())
+            persistentStorageWrapper = new LimitedPersistentStorageWrapper(persistentStorageWrapper,
+                    new ConcurrencyLimiter("dynamodb", dynamoDbConcurrency, limiterTimeoutMillis));
+        if (flowStatusCacheEnabled) {
+            CachingPersistentStorageWrapper cachingPersistentStorageWrapper = new CachingPersistentStorageWrapper(
+                    persistentStorageWrapper, flowStatusCacheTtlSeconds, flowStatusCacheMaxSize);
+            cachingPersistentStorageWrapper.bindTo(meterRegistry);
+            persistentStorageWrapper = cachingPersistentStorageWrapper;
+        }
+        return persistentStorageWrapper;
+    }
+
+    private boolean virtualThreadsMode() {
+        return "virtual".equals(executorMode);
+    }
+
+    @Bean
+    ExecutorService handlerExecutor(MeterRegistry meterRegistry) {
+        if (virtualThreadsMode())
+            return ExecutorServiceMetrics.monitor(meterRegistry,
+                    VirtualThreads.newPerTaskExecutor("executor-cloud-connect"), "handler");
+        return ExecutorServiceMetrics.monitor(meterRegistry,
+                Executors.newFixedThreadPool(handlerThreads, new CustomizableThreadFactory("executor-cloud-connect")),
+                "handler");
     }
 
     @Bean
@@ -92,26 +322,41 @@ public class TelegramBotConfiguration {
     }
 
 
-    private UserAwareExecutor userAwareResponseExecutor() {
-        return new UserAwareExecutor(4);
+    @Bean
+    UserAwareExecutor userAwareResponseExecutor(MeterRegistry meterRegistry) {
+        if (virtualThreadsMode())
+            return new SerialUserAwareExecutor(VirtualThreads.newPerTaskExecutor("executor-user"),
+                    executorMaxPendingPerUser, meterRegistry);
+        return new LaneUserAwareExecutor(executorLanes, executorLaneQueueCapacity, executorMaxPendingPerUser,
+                executorRejectionPolicy, executorBlockTimeoutMillis, meterRegistry);
     }
 
     private List<UpdateProcessor> messageProcessors(TelegramFilesLoader telegramFilesUploader,
                                                     CloudWrapper cloudWrapper,
-                                                    Executor handlerExecutor,
+                                                    ExecutorService handlerExecutor,
                                                     PersistentStorageWrapper persistentStorageWrapper,
                                                     ImageTypeRecognitionJobTrigger imageTypeRecognitionJob,
-                                                    CallbackDataStorage callbackDataStorage) {
-        return Arrays.asList(
-                new CallbackUpdateProcessor(cloudWrapper, persistentStorageWrapper, callbackDataStorage, handlerExecutor),
+                                                    CallbackDataCodec callbackDataCodec,
+                                                    CallbackDataStorage callbackDataStorage,
+                                                    UploadProgressNotifier uploadProgressNotifier,
+                                                    MediaGroupCollector mediaGroupCollector,
+                                                    DuplicateDocumentDetector duplicateDocumentDetector,
+                                                    MeterRegistry meterRegistry) {
+        return Arrays.<UpdateProcessor>asList(
+                new CallbackUpdateProcessor(cloudWrapper, persistentStorageWrapper, callbackDataCodec,
+                        callbackDataStorage, imageTypeRecognitionJob, handlerExecutor),
                 new CustomKeyboardTextUpdateProcessor(),
                 new UploadDocumentUpdateProcessor(telegramFilesUploader, cloudWrapper,
-                        handlerExecutor, persistentStorageWrapper, imageTypeRecognitionJob),
+                        handlerExecutor, persistentStorageWrapper, imageTypeRecognitionJob, uploadProgressNotifier,
+                        duplicateDocumentDetector),
                 new UploadImageUpdateProcessor(telegramFilesUploader, cloudWrapper,
-                        handlerExecutor, persistentStorageWrapper, imageTypeRecognitionJob),
+                        handlerExecutor, persistentStorageWrapper, imageTypeRecognitionJob, uploadProgressNotifier,
+                        mediaGroupCollector, duplicateDocumentDetector),
                 new ManualFinishTextUpdateProcessor(persistentStorageWrapper),
                 new FallbackTextUpdateProcessor()
 
-        );
+        ).stream()
+                .map((processor) -> new TimedUpdateProcessor(processor, meterRegistry))
+                .collect(Collectors.toList());
     }
 }
@@ -0,0 +1,151 @@
+package de.avpod.telegrambot.telegram;
+
+import de.avpod.telegrambot.ContentFingerprint;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.ToString;
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File stored on Telegram servers. Every {@link #openStream()} call starts a new download, {@link #spool(boolean)}
+ * keeps a local copy so the content can be checked before it is uploaded.
+ */
+@Value
+@ToString(exclude = {"url", "meterRegistry"})
+@Log4j2
+public class TelegramFileContent {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TIMEOUT_MILLIS = 30 * 1000;
+
+    private final String name;
+    private final long size;
+    private final String url;
+    private final MeterRegistry meterRegistry;
+
+    public InputStream openStream() throws IOException {
+        log.info("Opening content stream for file {} with size {}", name, size);
+        long startedAt = System.nanoTime();
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        return new MeteredInputStream(new BufferedInputStream(connection.getInputStream(), BUFFER_SIZE),
+                startedAt, meterRegistry);
+    }
+
+    /**
+     * Downloads the content into a temporary file, calculating the fingerprint on the way.
+     *
+     * @param image whether the perceptual hash should be calculated as well
+     */
+    public SpooledFile spool(boolean image) throws IOException {
+        Path path = Files.createTempFile("telegram-", "-" + name);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            long spooledSize;
+            try (InputStream content = new DigestInputStream(openStream(), digest)) {
+                spooledSize = Files.copy(content, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Optional<Long> perceptualHash = image ? perceptualHash(path) : Optional.empty();
+            return new SpooledFile(path, spooledSize, new ContentFingerprint(toHex(digest.digest()), perceptualHash));
+        } catch (NoSuchAlgorithmException e) {
+            Files.deleteIfExists(path);
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    private Optional<Long> perceptualHash(Path path) {
+        try {
+            BufferedImage image = ImageIO.read(path.toFile());
+            if (image == null) {
+                log.warn("Cannot decode image {}, comparing by content only", name);
+                return Optional.empty();
+            }
+            return Optional.of(ContentFingerprint.differenceHash(image));
+        } catch (IOException e) {
+            log.warn("Cannot read image {}, comparing by content only", name, e);
+            return Optional.empty();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Records the downloaded bytes and the time from opening until the consumer closes the stream.
+     */
+    private static class MeteredInputStream extends FilterInputStream {
+        private final long startedAt;
+        private final MeterRegistry meterRegistry;
+        private long bytesRead;
+        private boolean closed;
+
+        private MeteredInputStream(InputStream in, long startedAt, MeterRegistry meterRegistry) {
+            super(in);
+            this.startedAt = startedAt;
+            this.meterRegistry = meterRegistry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0)
+                bytesRead++;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0)
+                bytesRead += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            bytesRead += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                meterRegistry.timer("telegram.files.download").record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+                DistributionSummary.builder("telegram.files.download.bytes")
+                        .baseUnit("bytes")
+                        .register(meterRegistry)
+                        .record(bytesRead);
+            }
+            super.close();
+        }
+    }
+}
@@ -1,8 +1,9 @@
 package de.avpod.telegrambot.telegram;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.AllArgsConstructor;
 import lombok.extern.log4j.Log4j2;
-import org.apache.commons.io.FileUtils;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
@@ -10,17 +11,30 @@ import org.springframework.web.client.RestTemplate;
 import org.telegram.telegrambots.api.objects.File;
 
 import java.io.IOException;
-import java.net.URL;
 
 @Log4j2
 @AllArgsConstructor
 public class TelegramFilesLoader {
     private final String botToken;
     private final String telegramApiBaseUrl;
+    /**
+     * Prefix of download urls, followed by the bot token and the file path.
+     */
+    private final String telegramFileBaseUrl;
     private final RestTemplate restTemplate;
+    private final MeterRegistry meterRegistry;
 
-    public java.io.File downloadFile(String fileId) throws IOException {
-        log.info("Downloading file from Telegram Server for path {}", fileId);
+    public TelegramFileContent resolveFile(String fileId) throws IOException {
+        log.info("Resolving file on Telegram Server for path {}", fileId);
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            return doResolveFile(fileId);
+        } finally {
+            sample.stop(meterRegistry.timer("telegram.files.resolve"));
+        }
+    }
+
+    private TelegramFileContent doResolveFile(String fileId) throws IOException {
 
         String getFileCall = telegramApiBaseUrl + "getFile?file_id=" + fileId;
         ParameterizedTypeReference<TelegramRestResponse<File>> responseType =
@@ -33,18 +47,16 @@ public class TelegramFilesLoader {
             log.warn("Cannot find file on Telegram servers with id: {}, response {}", fileId, fileInfoResponse);
             throw new IOException("Cannot get file info from the path:" + getFileCall);
         }
-        log.info("Loaded file path info {}, loading content", fileInfoResponse.getBody().getResult());
+        log.info("Loaded file path info {}, content will be streamed on upload", fileInfoResponse.getBody().getResult());
 
         File telegramFile = fileInfoResponse.getBody().getResult();
         String fileExtension = tryGetExtension(telegramFile);
-        String url = File.getFileUrl(botToken, telegramFile.getFilePath());
-        java.io.File downloadedContent = new java.io.File(telegramFile.getFileId() + "." + fileExtension);
-        FileUtils.copyURLToFile(new URL(url), downloadedContent);
-
-        log.info("Downloaded file content with size {} and name {}",
-                downloadedContent.getTotalSpace(), downloadedContent.getName());
-
-        return downloadedContent;
+        return new TelegramFileContent(
+                telegramFile.getFileId() + "." + fileExtension,
+                telegramFile.getFileSize() == null ? -1 : telegramFile.getFileSize(),
+                telegramFileBaseUrl + botToken + "/" + telegramFile.getFilePath(),
+                meterRegistry
+        );
     }
 
     private String tryGetExtension(File telegramFile) {
@@ -0,0 +1,55 @@
+package de.avpod.telegrambot.telegram;
+
+import de.avpod.telegrambot.AvpodBot;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+import org.telegram.telegrambots.api.objects.Update;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+
+/**
+ * Receives updates pushed by Telegram in webhook mode and hands them to the same processing as long polling.
+ */
+@RestController
+@Log4j2
+public class TelegramWebhookController {
+    static final String SECRET_TOKEN_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+
+    private final AvpodBot bot;
+    private final byte[] secretToken;
+
+    public TelegramWebhookController(AvpodBot bot, String secretToken) {
+        this.bot = bot;
+        this.secretToken = secretToken.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @PostMapping(path = "${telegram.webhook.path:/telegram/webhook}", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Void> onUpdate(@RequestHeader(value = SECRET_TOKEN_HEADER, required = false) String token,
+                                         @RequestBody Update update) {
+        if (token == null || !MessageDigest.isEqual(secretToken, token.getBytes(StandardCharsets.UTF_8))) {
+            log.warn("Rejecting webhook update {} with invalid secret token", update.getUpdateId());
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+
+        if (bot.isStopped()) {
+            log.warn("Rejecting webhook update {} during shutdown, Telegram will deliver it again", update.getUpdateId());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+
+        log.info("Got webhook update {}", update.getUpdateId());
+        if (!bot.submitUpdates(Collections.singletonList(update)).isEmpty()) {
+            log.warn("Rejecting webhook update {}, the bot is at capacity, Telegram will deliver it again",
+                    update.getUpdateId());
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
+        }
+        return ResponseEntity.ok().build();
+    }
+}
@@ -0,0 +1,36 @@
+package de.avpod.telegrambot.telegram;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+
+/**
+ * Points Telegram to the webhook endpoint, the secret token is sent back by Telegram with every update.
+ */
+@Log4j2
+@AllArgsConstructor
+public class TelegramWebhookRegistrar {
+    private final String telegramApiBaseUrl;
+    private final RestTemplate restTemplate;
+    private final ObjectMapper objectMapper;
+
+    public void register(String webhookUrl, String secretToken) throws IOException {
+        log.info("Registering webhook {}", webhookUrl);
+        MultiValueMap<String, String> parameters = new LinkedMultiValueMap<>();
+        parameters.add("url", webhookUrl);
+        parameters.add("secret_token", secretToken);
+        parameters.add("allowed_updates", "[\"message\",\"callback_query\"]");
+
+        String response = restTemplate.postForObject(telegramApiBaseUrl + "setWebhook", parameters, String.class);
+        JsonNode responseNode = objectMapper.readTree(response);
+        if (!responseNode.path("ok").asBoolean())
+            throw new IOException("Cannot register webhook, response:" + response);
+        log.info("Webhook registered: {}", responseNode.path("description").asText());
+    }
+}
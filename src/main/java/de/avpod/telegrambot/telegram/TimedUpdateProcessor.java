@@ -0,0 +1,48 @@
+package de.avpod.telegrambot.telegram;
+
+import de.avpod.telegrambot.ProcessingResult;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.telegram.telegrambots.api.objects.Update;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Records the time from the update hand over until the processing result is ready, tagged with the processor
+ * and the outcome: skipped when the processor is not responsible, handled or failed otherwise.
+ */
+public class TimedUpdateProcessor implements UpdateProcessor {
+    private final UpdateProcessor delegate;
+    private final MeterRegistry meterRegistry;
+    private final String processorName;
+
+    public TimedUpdateProcessor(UpdateProcessor delegate, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.meterRegistry = meterRegistry;
+        this.processorName = delegate.getClass().getSimpleName();
+    }
+
+    @Override
+    public Optional<CompletableFuture<ProcessingResult>> processUpdate(Update update) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        Optional<CompletableFuture<ProcessingResult>> handled;
+        try {
+            handled = delegate.processUpdate(update);
+        } catch (RuntimeException e) {
+            sample.stop(timer("failed"));
+            throw e;
+        }
+
+        if (!handled.isPresent()) {
+            sample.stop(timer("skipped"));
+            return handled;
+        }
+        return handled.map((future) -> future.whenComplete((processingResult, e) ->
+                sample.stop(timer(e == null ? "handled" : "failed"))));
+    }
+
+    private Timer timer(String outcome) {
+        return meterRegistry.timer("telegram.update.processing", "processor", processorName, "outcome", outcome);
+    }
+}
@@ -0,0 +1,61 @@
+package de.avpod.telegrambot.telegram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Not thread safe, guarded by the lock of {@link OutboundMessageScheduler}.
+ */
+class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long refilledAt;
+    private long blockedUntil;
+
+    TokenBucket(double ratePerSecond, int burst, long now) {
+        this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = burst;
+        this.tokens = burst;
+        this.refilledAt = now;
+        this.blockedUntil = now;
+    }
+
+    /**
+     * @return 0 if a token can be taken right now, otherwise nanos to wait for the next token
+     */
+    long nanosUntilAvailable(long now) {
+        refill(now);
+        if (now - blockedUntil < 0)
+            return blockedUntil - now;
+        if (tokens >= 1)
+            return 0;
+        return (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    void take(long now) {
+        refill(now);
+        tokens -= 1;
+    }
+
+    /**
+     * Empties the bucket until the given time, an existing longer block is kept.
+     */
+    void blockFor(long nanos, long now) {
+        if (now + nanos - blockedUntil > 0)
+            blockedUntil = now + nanos;
+        tokens = 0;
+        refilledAt = blockedUntil;
+    }
+
+    boolean isFull(long now) {
+        refill(now);
+        return now - blockedUntil >= 0 && tokens >= capacity;
+    }
+
+    private void refill(long now) {
+        if (now - refilledAt <= 0)
+            return;
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+    }
+}
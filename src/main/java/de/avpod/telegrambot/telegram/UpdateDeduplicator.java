@@ -0,0 +1,169 @@
+package de.avpod.telegrambot.telegram;
+
+import de.avpod.telegrambot.UpdateOffsetStore;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.telegram.telegrambots.api.objects.Update;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops updates which Telegram delivers again after a webhook retry or a restart, before any I/O is spent on
+ * them. Ids of recent updates and callback queries are kept in a bounded window. With an offset store the update
+ * id up to which everything was processed is saved periodically by a background task and updates up to it are
+ * dropped after a restart. The offset relies on updates arriving in order, as long polling delivers them.
+ */
+@Log4j2
+public class UpdateDeduplicator {
+    /**
+     * Telegram keeps undelivered updates for 24 hours, an older offset cannot match any redelivery.
+     */
+    static final long OFFSET_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private final Map<String, Boolean> window;
+    private final TreeSet<Integer> inFlight = new TreeSet<>();
+    private final Optional<UpdateOffsetStore> offsetStore;
+    private final Optional<ScheduledExecutorService> saveScheduler;
+    private final long restoredOffset;
+    private long maxAcceptedUpdateId;
+    /**
+     * Guarded by the monitor of the deduplicator, a failed save is retried by the next one.
+     */
+    private long savedOffset;
+
+    /**
+     * @param saveIntervalMillis period of the offset saves, with 0 the offset is saved only on shutdown
+     */
+    public UpdateDeduplicator(int windowSize, Optional<UpdateOffsetStore> offsetStore, long saveIntervalMillis) {
+        this.window = new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > windowSize;
+            }
+        };
+        this.offsetStore = offsetStore;
+        this.restoredOffset = offsetStore.flatMap(this::loadOffset).orElse(-1L);
+        this.maxAcceptedUpdateId = restoredOffset;
+        this.savedOffset = restoredOffset;
+        // the save is I/O, it must not run on the lane or sender thread which finished the update
+        this.saveScheduler = offsetStore.filter((store) -> saveIntervalMillis > 0)
+                .map((store) -> Executors.newSingleThreadScheduledExecutor(
+                        new CustomizableThreadFactory("executor-update-offset")));
+        saveScheduler.ifPresent((scheduler) -> scheduler.scheduleWithFixedDelay(this::saveOffset,
+                saveIntervalMillis, saveIntervalMillis, TimeUnit.MILLISECONDS));
+    }
+
+    private Optional<Long> loadOffset(UpdateOffsetStore store) {
+        try {
+            return store.load(OFFSET_MAX_AGE_MILLIS);
+        } catch (Exception e) {
+            log.error("Cannot load update offset, relying on the in-memory window only", e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return false if the update or its callback query was seen before
+     */
+    public boolean accept(Update update) {
+        Integer updateId = update.getUpdateId();
+        String callbackQueryId = update.hasCallbackQuery() ? update.getCallbackQuery().getId() : null;
+        synchronized (window) {
+            if (updateId != null && (updateId <= restoredOffset || window.containsKey(updateKey(updateId)))) {
+                log.info("Dropping update {}, it was already processed", updateId);
+                return false;
+            }
+            if (callbackQueryId != null && window.containsKey(callbackKey(callbackQueryId))) {
+                log.info("Dropping update {}, callback query {} was already processed", updateId, callbackQueryId);
+                return false;
+            }
+            if (callbackQueryId != null)
+                window.put(callbackKey(callbackQueryId), Boolean.TRUE);
+            if (updateId != null) {
+                window.put(updateKey(updateId), Boolean.TRUE);
+                inFlight.add(updateId);
+                maxAcceptedUpdateId = Math.max(maxAcceptedUpdateId, updateId);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called once the processing of an accepted update is finished, successful or not. Dropped updates count
+     * as finished too, Telegram does not deliver them again after they were confirmed.
+     */
+    public void processed(Update update) {
+        if (update.getUpdateId() == null)
+            return;
+        synchronized (window) {
+            inFlight.remove(update.getUpdateId());
+        }
+    }
+
+    /**
+     * Forgets an accepted update which was not processed, so it is accepted again when Telegram delivers it
+     * once more.
+     */
+    public void release(Update update) {
+        Integer updateId = update.getUpdateId();
+        synchronized (window) {
+            if (update.hasCallbackQuery())
+                window.remove(callbackKey(update.getCallbackQuery().getId()));
+            if (updateId != null) {
+                window.remove(updateKey(updateId));
+                inFlight.remove(updateId);
+            }
+        }
+    }
+
+    /**
+     * Saves the highest update id with all updates before it processed, if it moved since the last save.
+     */
+    public synchronized void saveOffset() {
+        if (!offsetStore.isPresent())
+            return;
+        long offset = processedOffset();
+        if (offset <= savedOffset)
+            return;
+        try {
+            offsetStore.get().save(offset);
+            savedOffset = offset;
+            log.info("Saved update offset {}", offset);
+        } catch (Exception e) {
+            log.error("Cannot save update offset {}", offset, e);
+        }
+    }
+
+    /**
+     * Stops the periodic saves and saves the offset a last time.
+     */
+    public void shutdown() {
+        saveScheduler.ifPresent(ScheduledExecutorService::shutdown);
+        saveOffset();
+    }
+
+    /**
+     * The update id up to which all accepted updates were processed.
+     */
+    long processedOffset() {
+        synchronized (window) {
+            if (inFlight.isEmpty())
+                return maxAcceptedUpdateId;
+            return Math.min(maxAcceptedUpdateId, inFlight.first() - 1);
+        }
+    }
+
+    private static String updateKey(int updateId) {
+        return "update:" + updateId;
+    }
+
+    private static String callbackKey(String callbackQueryId) {
+        return "callback:" + callbackQueryId;
+    }
+}
@@ -7,13 +7,13 @@ import org.telegram.telegrambots.api.methods.send.SendMessage;
 import org.telegram.telegrambots.api.objects.Document;
 import org.telegram.telegrambots.api.objects.Message;
 
-import java.io.File;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Log4j2
 @AllArgsConstructor
@@ -23,6 +23,8 @@ public class UploadDocumentUpdateProcessor implements DocumentUpdateProcessor {
     private final Executor handlerExecutor;
     private final PersistentStorageWrapper persistentStorage;
     private final ImageTypeRecognitionJobTrigger imageTypeRecognitionJobTrigger;
+    private final UploadProgressNotifier uploadProgressNotifier;
+    private final DuplicateDocumentDetector duplicateDocumentDetector;
 
     @Override
     public Optional<CompletableFuture<ProcessingResult>> processDocumentMessage(Document document, Message message) {
@@ -35,30 +37,63 @@ public class UploadDocumentUpdateProcessor implements DocumentUpdateProcessor {
         CompletableFuture<ProcessingResult> responseFuture = new CompletableFuture<>();
         handlerExecutor.execute(() -> {
             try {
-                File downloadedFile = filesLoader.downloadFile(document.getFileId());
+                TelegramFileContent telegramFile = filesLoader.resolveFile(document.getFileId());
                 String fileName = message.getFrom().getUserName() + "_" + document.getFileName();
-                String cloudIdentifier = uploadToCloud(message.getFrom().getUserName(),
-                        fileName, document.getMimeType(), downloadedFile
-                );
-                ProcessingResult processingResult = new ProcessingResult(
-                        Optional.of(new SendMessage()
+                boolean image = document.getMimeType() != null && document.getMimeType().startsWith("image/");
+                try (SpooledFile spooledFile = telegramFile.spool(image)) {
+                    String username = message.getFrom().getUserName();
+                    ContentFingerprint fingerprint = spooledFile.getFingerprint();
+                    DocumentHashIndex.Match match = duplicateDocumentDetector.check(username, fingerprint);
+                    if (match == DocumentHashIndex.Match.EXACT) {
+                        responseFuture.complete(new ProcessingResult(Optional.of(new SendMessage()
                                 .setChatId(chatId)
-                                .setText(TextContents.DOCUMENT_UPLOAD_SUCCESS.getText())),
-                        Optional.of(() -> {
-                            persistentStorage.saveDocumentInfo(
-                                    message.getFrom().getUserName(),
-                                    document.getFileId(),
-                                    cloudIdentifier,
-                                    Optional.of(document.getFileName()),
-                                    fileName,
-                                    Optional.empty()
-                            );
-                            persistentStorage.updateFlowStatus(message.getFrom().getUserName(), FlowStatus.WAITING_DOCUMENT_RECOGNITION);
-                            imageTypeRecognitionJobTrigger.scheduleRecognition();
-                            return Collections.emptyList();
-                        })
-                );
-                responseFuture.complete(processingResult);
+                                .setText(TextContents.DOCUMENT_ALREADY_RECEIVED.getText())
+                        ), Optional.empty()));
+                        return;
+                    }
+                    String cloudIdentifier;
+                    try {
+                        cloudIdentifier = uploadToCloud(chatId, username, fileName, document.getMimeType(),
+                                spooledFile);
+                    } catch (Exception e) {
+                        duplicateDocumentDetector.release(username, fingerprint);
+                        throw e;
+                    }
+                    UploadedDocument uploadedDocument = UploadedDocument.builder()
+                            .telegramFileId(document.getFileId())
+                            .cloudIdentifier(cloudIdentifier)
+                            .originalFileName(Optional.of(document.getFileName()))
+                            .cloudFileName(fileName)
+                            .telegramThumbnailId(Optional.empty())
+                            .fingerprint(fingerprint)
+                            .build();
+                    AtomicBoolean saved = new AtomicBoolean();
+                    TextContents text = match == DocumentHashIndex.Match.SIMILAR ?
+                            TextContents.DOCUMENT_SIMILAR_UPLOADED :
+                            TextContents.DOCUMENT_UPLOAD_SUCCESS;
+                    ProcessingResult processingResult = new ProcessingResult(
+                            Optional.of(new SendMessage()
+                                    .setChatId(chatId)
+                                    .setText(text.getText())),
+                            Optional.of(() -> {
+                                String documentId = persistentStorage.saveDocumentsAndUpdateFlowStatus(
+                                        username,
+                                        Collections.singletonList(uploadedDocument),
+                                        FlowStatus.WAITING_DOCUMENT_RECOGNITION
+                                ).get(0);
+                                saved.set(true);
+                                imageTypeRecognitionJobTrigger.scheduleRecognition(username, documentId);
+                                return Collections.emptyList();
+                            }),
+                            () -> {
+                                // not saved if the acknowledgement could not be sent, a resent file is uploaded again
+                                if (!saved.get())
+                                    deleteUnsavedCopy(username, uploadedDocument);
+                                duplicateDocumentDetector.release(username, fingerprint);
+                            }
+                    );
+                    responseFuture.complete(processingResult);
+                }
             } catch (Exception e) {
                 log.error("Cannot download/upload document {}", document.getFileId(), e);
                 responseFuture.complete(new ProcessingResult(Optional.of(new SendMessage()
@@ -71,14 +106,27 @@ public class UploadDocumentUpdateProcessor implements DocumentUpdateProcessor {
         return Optional.of(responseFuture);
     }
 
-    private String uploadToCloud(String username, String filename,
-                                 String mimeType, File file) throws Exception {
+    private void deleteUnsavedCopy(String username, UploadedDocument document) {
+        log.warn("Document {} of user {} was not saved, deleting its cloud copy",
+                document.getCloudFileName(), username);
+        try {
+            cloudWrapper.deleteDocument(document.getCloudIdentifier());
+        } catch (Exception e) {
+            log.error("Cannot delete cloud copy {} of user {}", document.getCloudIdentifier(), username, e);
+        }
+    }
+
+    private String uploadToCloud(long chatId, String username, String filename,
+                                 String mimeType, SpooledFile file) throws Exception {
         log.info("Uploading file with name {} to cloud for username {}", filename, username);
         return cloudWrapper.uploadFile(UploadFile.builder()
-                .content(file)
+                .content(file::openStream)
+                .localCopy(file.getPath())
+                .size(file.getSize())
                 .username(username)
                 .name(filename)
                 .mimeType(mimeType)
+                .progressListener(uploadProgressNotifier.listenerFor(chatId))
                 .build());
     }
 }
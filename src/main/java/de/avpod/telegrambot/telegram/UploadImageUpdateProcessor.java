@@ -2,17 +2,19 @@ package de.avpod.telegrambot.telegram;
 
 import de.avpod.telegrambot.*;
 import lombok.AllArgsConstructor;
+import lombok.Value;
 import lombok.extern.log4j.Log4j2;
 import org.telegram.telegrambots.api.methods.send.SendMessage;
 import org.telegram.telegrambots.api.objects.Message;
 import org.telegram.telegrambots.api.objects.PhotoSize;
 
-import java.io.File;
 import java.net.URLConnection;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 @Log4j2
 @AllArgsConstructor
@@ -22,6 +24,9 @@ public class UploadImageUpdateProcessor implements ImageUpdateProcessor {
     private Executor handlerExecutor;
     private final PersistentStorageWrapper persistentStorage;
     private final ImageTypeRecognitionJobTrigger imageTypeRecognitionJobTrigger;
+    private final UploadProgressNotifier uploadProgressNotifier;
+    private final MediaGroupCollector mediaGroupCollector;
+    private final DuplicateDocumentDetector duplicateDocumentDetector;
 
     @Override
     public Optional<CompletableFuture<ProcessingResult>> processImageMessage(List<PhotoSize> thumbnails, Message message) {
@@ -29,40 +34,46 @@ public class UploadImageUpdateProcessor implements ImageUpdateProcessor {
                 message.getFrom().getUserName(), message.getFrom().getId(),
                 new Date(TimeUnit.SECONDS.toMillis(message.getDate()))
         );
+        if (message.getMediaGroupId() != null) {
+            return Optional.of(mediaGroupCollector.collect(message).thenCompose((album) -> album.isPresent() ?
+                    processAlbum(album.get()) :
+                    CompletableFuture.completedFuture(new ProcessingResult(Optional.empty(), Optional.empty()))
+            ));
+        }
         CompletableFuture<ProcessingResult> responseFuture = new CompletableFuture<>();
 
         handlerExecutor.execute(() -> {
             long chatId = message.getChat().getId();
-            thumbnails.sort(Comparator.comparingInt(PhotoSize::getFileSize).reversed());
-            PhotoSize biggestImageInfo = thumbnails.get(0);
             try {
-                File downloadedFile = filesLoader.downloadFile(biggestImageInfo.getFileId());
-                String fileName = message.getFrom().getUserName() + "_" + downloadedFile.getPath();
-                String mimeType = URLConnection.guessContentTypeFromName(downloadedFile.getName());
-                String cloudIdentifier = uploadToCloud(
-                        message.getFrom().getUserName(), fileName, mimeType, downloadedFile
-                );
+                Optional<UploadedImage> uploadedImage = uploadImage(message);
+                if (!uploadedImage.isPresent()) {
+                    responseFuture.complete(new ProcessingResult(Optional.of(new SendMessage()
+                            .setChatId(chatId)
+                            .setText(TextContents.DOCUMENT_ALREADY_RECEIVED.getText())
+                    ), Optional.empty()));
+                    return;
+                }
+                UploadedDocument document = uploadedImage.get().getDocument();
+                AtomicBoolean saved = new AtomicBoolean();
+                TextContents text = uploadedImage.get().isSimilar() ?
+                        TextContents.DOCUMENT_SIMILAR_UPLOADED :
+                        TextContents.DOCUMENT_UPLOAD_SUCCESS;
                 ProcessingResult processingResult = new ProcessingResult(
                         Optional.of(new SendMessage()
                                 .setChatId(chatId)
-                                .setText(TextContents.DOCUMENT_UPLOAD_SUCCESS.getText())),
+                                .setText(text.getText())),
                         Optional.of(() -> {
-                            persistentStorage.saveDocumentInfo(
-                                    message.getFrom().getUserName(),
-                                    biggestImageInfo.getFileId(),
-                                    cloudIdentifier,
-                                    Optional.empty(),
-                                    fileName,
-                                    Optional.of(thumbnails.get(thumbnails.size() -1).getFileId())
-                            );
-                            persistentStorage.updateFlowStatus(message.getFrom().getUserName(), FlowStatus.WAITING_DOCUMENT_RECOGNITION);
-                            imageTypeRecognitionJobTrigger.scheduleRecognition();
+                            List<String> documentIds = saveDocuments(message.getFrom().getUserName(),
+                                    Collections.singletonList(document), saved);
+                            imageTypeRecognitionJobTrigger.scheduleRecognition(message.getFrom().getUserName(),
+                                    documentIds.get(0));
                             return Collections.emptyList();
-                        })
+                        }),
+                        completion(message.getFrom().getUserName(), Collections.singletonList(document), saved)
                 );
                 responseFuture.complete(processingResult);
             } catch (Exception e) {
-                log.error("Cannot download/upload image {}", biggestImageInfo.getFileId(), e);
+                log.error("Cannot download/upload image of message {}", message.getMessageId(), e);
                 responseFuture.complete(new ProcessingResult(Optional.of(new SendMessage()
                         .setChatId(chatId)
                         .setText(TextContents.DOCUMENT_UPLOAD_ERROR.getText())
@@ -74,14 +85,159 @@ public class UploadImageUpdateProcessor implements ImageUpdateProcessor {
         return Optional.of(responseFuture);
     }
 
-    private String uploadToCloud(String username, String filename,
-                                 String mimeType, File file) throws Exception {
+    /**
+     * Uploads all images of the album concurrently, then answers with one acknowledgement, saves all documents
+     * with one storage write and triggers recognition once. The recognition pass still sends one prompt per image:
+     * every prompt carries the type buttons of its own document, and Telegram does not allow an inline keyboard
+     * on a media group, so the prompts of an album cannot be merged into one message.
+     */
+    private CompletableFuture<ProcessingResult> processAlbum(List<Message> messages) {
+        Message firstMessage = messages.get(0);
+        long chatId = firstMessage.getChat().getId();
+        String username = firstMessage.getFrom().getUserName();
+        log.info("Uploading album {} with {} images for username {}",
+                firstMessage.getMediaGroupId(), messages.size(), username);
+
+        // empty for duplicates, null for failed uploads
+        List<CompletableFuture<Optional<UploadedImage>>> uploads = messages.stream()
+                .map((message) -> CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return uploadImage(message);
+                    } catch (Exception e) {
+                        log.error("Cannot download/upload image of message {} from album {}",
+                                message.getMessageId(), message.getMediaGroupId(), e);
+                        return null;
+                    }
+                }, handlerExecutor))
+                .collect(Collectors.toList());
+
+        return CompletableFuture.allOf(uploads.toArray(new CompletableFuture[0])).thenApply((ignored) -> {
+            List<Optional<UploadedImage>> results = uploads.stream()
+                    .map(CompletableFuture::join)
+                    .collect(Collectors.toList());
+            boolean failed = results.contains(null);
+            List<UploadedImage> images = results.stream()
+                    .filter((result) -> result != null && result.isPresent())
+                    .map(Optional::get)
+                    .collect(Collectors.toList());
+            List<UploadedDocument> documents = images.stream()
+                    .map(UploadedImage::getDocument)
+                    .collect(Collectors.toList());
+            if (documents.isEmpty()) {
+                return new ProcessingResult(Optional.of(new SendMessage()
+                        .setChatId(chatId)
+                        .setText(failed ?
+                                TextContents.DOCUMENT_UPLOAD_ERROR.getText() :
+                                TextContents.DOCUMENT_ALREADY_RECEIVED.getText())
+                ), Optional.empty());
+            }
+
+            AtomicBoolean saved = new AtomicBoolean();
+            TextContents text = TextContents.ALBUM_UPLOAD_SUCCESS;
+            if (failed)
+                text = TextContents.ALBUM_UPLOAD_PARTIAL_ERROR;
+            else if (images.stream().anyMatch(UploadedImage::isSimilar))
+                text = TextContents.ALBUM_SIMILAR_UPLOADED;
+            return new ProcessingResult(
+                    Optional.of(new SendMessage()
+                            .setChatId(chatId)
+                            .setText(text.getText())),
+                    Optional.of(() -> {
+                        List<String> documentIds = saveDocuments(username, documents, saved);
+                        // the id is only logged, one recognition pass prompts for all unknown documents of the user
+                        imageTypeRecognitionJobTrigger.scheduleRecognition(username, documentIds.get(0));
+                        return Collections.emptyList();
+                    }),
+                    completion(username, documents, saved)
+            );
+        });
+    }
+
+    private List<String> saveDocuments(String username, List<UploadedDocument> documents, AtomicBoolean saved) {
+        List<String> documentIds = persistentStorage.saveDocumentsAndUpdateFlowStatus(
+                username, documents, FlowStatus.WAITING_DOCUMENT_RECOGNITION
+        );
+        saved.set(true);
+        return documentIds;
+    }
+
+    /**
+     * Releases the pending fingerprints. If the state update did not save the documents, for example because the
+     * acknowledgement could not be sent, the cloud copies are deleted, so a resent file is uploaded again.
+     */
+    private Runnable completion(String username, List<UploadedDocument> documents, AtomicBoolean saved) {
+        return () -> documents.forEach((document) -> {
+            if (!saved.get())
+                deleteUnsavedCopy(username, document);
+            duplicateDocumentDetector.release(username, document.getFingerprint());
+        });
+    }
+
+    private void deleteUnsavedCopy(String username, UploadedDocument document) {
+        log.warn("Document {} of user {} was not saved, deleting its cloud copy",
+                document.getCloudFileName(), username);
+        try {
+            cloudWrapper.deleteDocument(document.getCloudIdentifier());
+        } catch (Exception e) {
+            log.error("Cannot delete cloud copy {} of user {}", document.getCloudIdentifier(), username, e);
+        }
+    }
+
+    /**
+     * @return empty if the user has already sent this image
+     */
+    private Optional<UploadedImage> uploadImage(Message message) throws Exception {
+        List<PhotoSize> thumbnails = message.getPhoto();
+        thumbnails.sort(Comparator.comparingInt(PhotoSize::getFileSize).reversed());
+        PhotoSize biggestImageInfo = thumbnails.get(0);
+        TelegramFileContent telegramFile = filesLoader.resolveFile(biggestImageInfo.getFileId());
+        String username = message.getFrom().getUserName();
+        String fileName = username + "_" + telegramFile.getName();
+        String mimeType = URLConnection.guessContentTypeFromName(telegramFile.getName());
+        try (SpooledFile spooledFile = telegramFile.spool(true)) {
+            ContentFingerprint fingerprint = spooledFile.getFingerprint();
+            DocumentHashIndex.Match match = duplicateDocumentDetector.check(username, fingerprint);
+            if (match == DocumentHashIndex.Match.EXACT)
+                return Optional.empty();
+
+            String cloudIdentifier;
+            try {
+                cloudIdentifier = uploadToCloud(message.getChat().getId(), username, fileName, mimeType, spooledFile);
+            } catch (Exception e) {
+                duplicateDocumentDetector.release(username, fingerprint);
+                throw e;
+            }
+            return Optional.of(new UploadedImage(UploadedDocument.builder()
+                    .telegramFileId(biggestImageInfo.getFileId())
+                    .cloudIdentifier(cloudIdentifier)
+                    .originalFileName(Optional.empty())
+                    .cloudFileName(fileName)
+                    .telegramThumbnailId(Optional.of(thumbnails.get(thumbnails.size() - 1).getFileId()))
+                    .fingerprint(fingerprint)
+                    .build(), match == DocumentHashIndex.Match.SIMILAR));
+        }
+    }
+
+    private String uploadToCloud(long chatId, String username, String filename,
+                                 String mimeType, SpooledFile file) throws Exception {
         log.info("Uploading file with name {} to cloud for username {}", filename, username);
         return cloudWrapper.uploadFile(UploadFile.builder()
-                .content(file)
+                .content(file::openStream)
+                .localCopy(file.getPath())
+                .size(file.getSize())
                 .username(username)
                 .name(filename)
                 .mimeType(mimeType)
+                .progressListener(uploadProgressNotifier.listenerFor(chatId))
                 .build());
     }
+
+    /**
+     * Similar images are kept, the user is only told about the resemblance.
+     */
+    @Value
+    private static class UploadedImage {
+        private final UploadedDocument document;
+        private final boolean similar;
+    }
 }
@@ -0,0 +1,38 @@
+package de.avpod.telegrambot.telegram;
+
+import de.avpod.telegrambot.TextContents;
+import de.avpod.telegrambot.UploadProgressListener;
+import lombok.AllArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.telegram.telegrambots.api.methods.send.SendMessage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells the user that a long upload is still in flight, at most once per configured interval per upload.
+ */
+@Log4j2
+@AllArgsConstructor
+public class UploadProgressNotifier {
+    private final OutboundMessageScheduler outboundMessageScheduler;
+    private final long intervalSeconds;
+
+    public UploadProgressListener listenerFor(long chatId) {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+        AtomicLong lastNotifiedAt = new AtomicLong(System.nanoTime());
+        return (uploadedBytes, totalBytes) -> {
+            long now = System.nanoTime();
+            long last = lastNotifiedAt.get();
+            if (now - last < intervalNanos || !lastNotifiedAt.compareAndSet(last, now))
+                return;
+
+            String text = TextContents.DOCUMENT_UPLOAD_IN_PROGRESS.getText();
+            if (totalBytes > 0)
+                text += " " + (uploadedBytes * 100 / totalBytes) + "% done.";
+            log.info("Notifying chat {} about upload progress {}/{}", chatId, uploadedBytes, totalBytes);
+            outboundMessageScheduler.send(chatId, OutboundMessageScheduler.Priority.USER_REPLY,
+                    new SendMessage().setChatId(chatId).setText(text));
+        };
+    }
+}
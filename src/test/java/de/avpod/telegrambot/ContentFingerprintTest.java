@@ -0,0 +1,61 @@
+package de.avpod.telegrambot;
+
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ContentFingerprintTest {
+
+    private static BufferedImage gradient(boolean brightLeft) {
+        BufferedImage image = new BufferedImage(90, 80, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            int value = x * 255 / (image.getWidth() - 1);
+            Color color = brightLeft ? new Color(255 - value, 255 - value, 255 - value) : new Color(value, value, value);
+            for (int y = 0; y < image.getHeight(); y++)
+                image.setRGB(x, y, color.getRGB());
+        }
+        return image;
+    }
+
+    private static BufferedImage blocks(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        Graphics2D graphics = image.createGraphics();
+        for (int block = 0; block < 72; block++) {
+            graphics.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            graphics.fillRect((block % 9) * width / 9, (block / 9) * height / 8, width / 9 + 1, height / 8 + 1);
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    private static BufferedImage resize(BufferedImage source, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(source, 0, 0, width, height, null);
+        graphics.dispose();
+        return image;
+    }
+
+    @Test
+    public void differenceHashComparesNeighbourPixels() {
+        assertEquals(-1L, ContentFingerprint.differenceHash(gradient(true)));
+        assertEquals(0L, ContentFingerprint.differenceHash(gradient(false)));
+    }
+
+    @Test
+    public void differenceHashSurvivesResizing() {
+        BufferedImage image = blocks(900, 800);
+        long hash = ContentFingerprint.differenceHash(image);
+        assertEquals(hash, ContentFingerprint.differenceHash(blocks(900, 800)));
+        assertTrue(Long.bitCount(hash ^ ContentFingerprint.differenceHash(resize(image, 450, 400))) <= 2);
+        assertTrue(Long.bitCount(hash ^ ContentFingerprint.differenceHash(gradient(true))) > 10);
+    }
+}
@@ -0,0 +1,43 @@
+package de.avpod.telegrambot;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class DocumentHashIndexTest {
+    private final DocumentHashIndex index = new DocumentHashIndex(
+            Collections.singleton("abc123"),
+            Collections.singleton(0x0F0FL)
+    );
+
+    @Test
+    public void sameContentIsExactMatch() {
+        ContentFingerprint fingerprint = new ContentFingerprint("abc123", Optional.empty());
+        assertEquals(DocumentHashIndex.Match.EXACT, index.match(fingerprint, 0));
+        assertEquals(DocumentHashIndex.Match.EXACT, index.match(fingerprint, -1));
+        assertTrue(index.contains(fingerprint, -1));
+    }
+
+    @Test
+    public void closePerceptualHashIsSimilarMatch() {
+        ContentFingerprint fingerprint = new ContentFingerprint("other", Optional.of(0x0F0EL));
+        assertEquals(DocumentHashIndex.Match.SIMILAR, index.match(fingerprint, 1));
+        assertEquals(DocumentHashIndex.Match.NONE, index.match(fingerprint, 0));
+        assertTrue(index.contains(fingerprint, 1));
+        assertFalse(index.contains(fingerprint, 0));
+
+        assertEquals(DocumentHashIndex.Match.SIMILAR,
+                index.match(new ContentFingerprint("other", Optional.of(0x0F0FL)), 0));
+    }
+
+    @Test
+    public void perceptualComparisonCanBeDisabled() {
+        assertEquals(DocumentHashIndex.Match.NONE,
+                index.match(new ContentFingerprint("other", Optional.of(0x0F0FL)), -1));
+        assertEquals(DocumentHashIndex.Match.NONE,
+                index.match(new ContentFingerprint("other", Optional.empty()), 64));
+    }
+}
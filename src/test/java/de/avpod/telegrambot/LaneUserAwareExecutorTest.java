@@ -0,0 +1,218 @@
+package de.avpod.telegrambot;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static de.avpod.telegrambot.LaneUserAwareExecutor.RejectionPolicy.ABORT;
+import static de.avpod.telegrambot.LaneUserAwareExecutor.RejectionPolicy.BLOCK;
+import static de.avpod.telegrambot.LaneUserAwareExecutor.RejectionPolicy.DISCARD;
+import static org.junit.Assert.*;
+
+public class LaneUserAwareExecutorTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private LaneUserAwareExecutor testee;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (testee != null)
+            testee.shutdownNow();
+    }
+
+    @Test
+    public void tasksOfOneUserRunInOrderOnOneLane() throws Exception {
+        testee = new LaneUserAwareExecutor(4, 1000, 1000, ABORT, 0, new SimpleMeterRegistry());
+        Map<String, List<Integer>> executed = new HashMap<>();
+        Map<String, List<String>> threads = new HashMap<>();
+        CountDownLatch done = new CountDownLatch(5 * 50);
+
+        for (int i = 0; i < 50; i++) {
+            for (int user = 0; user < 5; user++) {
+                String username = "user" + user;
+                List<Integer> userExecuted = executed.computeIfAbsent(username,
+                        (key) -> Collections.synchronizedList(new ArrayList<>()));
+                List<String> userThreads = threads.computeIfAbsent(username,
+                        (key) -> Collections.synchronizedList(new ArrayList<>()));
+                int index = i;
+                assertTrue(testee.submit(username, () -> {
+                    userExecuted.add(index);
+                    userThreads.add(Thread.currentThread().getName());
+                    done.countDown();
+                }));
+            }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            expected.add(i);
+        for (String username : executed.keySet()) {
+            assertEquals(expected, executed.get(username));
+            assertEquals(1, threads.get(username).stream().distinct().count());
+        }
+    }
+
+    @Test
+    public void userIsPinnedToLaneOfItsHash() throws Exception {
+        testee = new LaneUserAwareExecutor(2, 10, 10, ABORT, 0, new SimpleMeterRegistry());
+        // hash codes 97 and 98 go to different lanes
+        String first = thread(testee, "a");
+        String second = thread(testee, "b");
+
+        assertNotEquals(first, second);
+        assertEquals(first, thread(testee, "a"));
+        assertEquals(first, thread(testee, "c"));
+        assertEquals(second, thread(testee, "b"));
+    }
+
+    @Test
+    public void perUserLimitAppliesToNewTasksOnly() throws Exception {
+        testee = new LaneUserAwareExecutor(1, 10, 2, ABORT, 0, new SimpleMeterRegistry());
+        blockLane("user");
+        assertTrue(testee.submit("user", () -> {
+        }));
+        try {
+            testee.submit("user", () -> {
+            });
+            fail("Exception expected");
+        } catch (RejectedExecutionException e) {
+            assertTrue(e.getMessage().contains("pending tasks"));
+        }
+        assertTrue(testee.submit("other", () -> {
+        }));
+
+        CountDownLatch continuation = new CountDownLatch(1);
+        testee.getExecutor("user").execute(continuation::countDown);
+        assertEquals(3, testee.getPendingTasks());
+
+        release.countDown();
+        assertTrue(continuation.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fullLaneQueueDiscardsNewTasks() throws Exception {
+        testee = new LaneUserAwareExecutor(1, 2, 10, DISCARD, 0, new SimpleMeterRegistry());
+        blockLane("a");
+        assertTrue(testee.submit("b", () -> {
+        }));
+        assertTrue(testee.submit("c", () -> {
+        }));
+
+        assertFalse(testee.submit("d", () -> {
+        }));
+        assertEquals(3, testee.getPendingTasks());
+    }
+
+    @Test
+    public void blockingSharesOneTimeoutPerBatch() throws Exception {
+        testee = new LaneUserAwareExecutor(1, 1, 10, BLOCK, 300, new SimpleMeterRegistry());
+        blockLane("a");
+        assertTrue(testee.submit("b", () -> {
+        }));
+
+        Map<String, Runnable> batch = new LinkedHashMap<>();
+        for (String username : Arrays.asList("c", "d", "e", "f"))
+            batch.put(username, () -> {
+            });
+        long start = System.nanoTime();
+        List<String> rejected = testee.submitAll(batch);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(Arrays.asList("c", "d", "e", "f"), rejected);
+        assertTrue(elapsedMillis >= 250);
+        assertTrue("Waited " + elapsedMillis + "ms", elapsedMillis < 600);
+    }
+
+    @Test
+    public void blockedTaskIsAcceptedOnceLaneHasCapacity() throws Exception {
+        testee = new LaneUserAwareExecutor(1, 1, 10, BLOCK, 5000, new SimpleMeterRegistry());
+        blockLane("a");
+        assertTrue(testee.submit("b", () -> {
+        }));
+
+        CountDownLatch executed = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {
+            }
+            release.countDown();
+        }).start();
+        assertTrue(testee.submit("c", executed::countDown));
+        assertTrue(executed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void idleUsersAreEvicted() throws Exception {
+        testee = new LaneUserAwareExecutor(2, 100, 10, ABORT, 0, new SimpleMeterRegistry());
+        CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++)
+            testee.submit("user" + i, done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (testee.pendingUsersCount() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, testee.pendingUsersCount());
+        assertEquals(0, testee.getPendingTasks());
+    }
+
+    @Test
+    public void shutdownDropsQueuedTasks() throws Exception {
+        testee = new LaneUserAwareExecutor(1, 10, 10, ABORT, 0, new SimpleMeterRegistry());
+        blockLane("a");
+        testee.submit("b", () -> {
+        });
+        testee.submit("c", () -> {
+        });
+
+        assertEquals(2, testee.shutdownNow());
+        try {
+            testee.submit("d", () -> {
+            });
+            fail("Exception expected");
+        } catch (RejectedExecutionException ignored) {
+        }
+        assertEquals(0, testee.getPendingTasks());
+        testee = null;
+    }
+
+    /**
+     * Occupies the lane of the user until the release.
+     */
+    private void blockLane(String username) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        assertTrue(testee.submit(username, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    private static String thread(LaneUserAwareExecutor executor, String username) throws InterruptedException {
+        String[] thread = new String[1];
+        CountDownLatch done = new CountDownLatch(1);
+        executor.submit(username, () -> {
+            thread[0] = Thread.currentThread().getName();
+            done.countDown();
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return thread[0];
+    }
+}
@@ -0,0 +1,165 @@
+package de.avpod.telegrambot;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SerialUserAwareExecutorTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private SerialUserAwareExecutor testee;
+
+    @Before
+    public void setUp() {
+        testee = new SerialUserAwareExecutor(Executors.newCachedThreadPool(), 3, new SimpleMeterRegistry());
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        testee.shutdownNow();
+    }
+
+    @Test
+    public void tasksOfOneUserRunInOrderOneAtATime() throws Exception {
+        testee.shutdownNow();
+        testee = new SerialUserAwareExecutor(Executors.newCachedThreadPool(), 1000, new SimpleMeterRegistry());
+        Map<String, List<Integer>> executed = new HashMap<>();
+        AtomicInteger[] running = new AtomicInteger[5];
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(5 * 50);
+
+        for (int i = 0; i < 50; i++) {
+            for (int user = 0; user < 5; user++) {
+                String username = "user" + user;
+                List<Integer> userExecuted = executed.computeIfAbsent(username,
+                        (key) -> Collections.synchronizedList(new ArrayList<>()));
+                if (running[user] == null)
+                    running[user] = new AtomicInteger();
+                AtomicInteger userRunning = running[user];
+                int index = i;
+                testee.getExecutor(username).execute(() -> {
+                    if (userRunning.incrementAndGet() > 1)
+                        overlaps.incrementAndGet();
+                    userExecuted.add(index);
+                    userRunning.decrementAndGet();
+                    done.countDown();
+                });
+            }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            expected.add(i);
+        for (List<Integer> userExecuted : executed.values())
+            assertEquals(expected, userExecuted);
+        assertEquals(0, overlaps.get());
+    }
+
+    @Test
+    public void perUserLimitAppliesToNewTasksOnly() throws Exception {
+        blockUser("user");
+        testee.submit("user", () -> {
+        });
+        testee.submit("user", () -> {
+        });
+        try {
+            testee.submit("user", () -> {
+            });
+            fail("Exception expected");
+        } catch (RejectedExecutionException e) {
+            assertTrue(e.getMessage().contains("pending tasks"));
+        }
+        CountDownLatch continuation = new CountDownLatch(1);
+        testee.getExecutor("user").execute(continuation::countDown);
+        assertEquals(3, testee.getPendingTasks());
+
+        CountDownLatch other = new CountDownLatch(1);
+        assertTrue(testee.submit("other", other::countDown));
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+
+        release.countDown();
+        assertTrue(continuation.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void rejectedUsersOfBatchAreReported() throws Exception {
+        blockUser("full");
+        testee.submit("full", () -> {
+        });
+        testee.submit("full", () -> {
+        });
+
+        CountDownLatch executed = new CountDownLatch(2);
+        Map<String, Runnable> batch = new LinkedHashMap<>();
+        batch.put("first", executed::countDown);
+        batch.put("full", executed::countDown);
+        batch.put("second", executed::countDown);
+
+        assertEquals(Collections.singletonList("full"), testee.submitAll(batch));
+        assertTrue(executed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void drainedQueuesAreRemoved() throws Exception {
+        CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++)
+            testee.submit("user" + i % 10, done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (testee.pendingUsersCount() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, testee.pendingUsersCount());
+        assertEquals(0, testee.getPendingTasks());
+    }
+
+    @Test
+    public void shutdownDropsQueuedTasks() throws Exception {
+        blockUser("user");
+        testee.submit("user", () -> {
+        });
+        testee.getExecutor("user").execute(() -> {
+        });
+
+        assertEquals(2, testee.shutdownNow());
+        try {
+            testee.submit("user", () -> {
+            });
+            fail("Exception expected");
+        } catch (RejectedExecutionException ignored) {
+        }
+        assertEquals(0, testee.getPendingTasks());
+    }
+
+    /**
+     * Keeps a task of the user running until the release.
+     */
+    private void blockUser(String username) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        testee.submit(username, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,346 @@
+package de.avpod.telegrambot.aws;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBQueryExpression;
+import com.amazonaws.services.dynamodbv2.model.*;
+import com.amazonaws.waiters.WaiterParameters;
+import de.avpod.telegrambot.ContentFingerprint;
+import de.avpod.telegrambot.DocumentType;
+import de.avpod.telegrambot.DocumentUpdateResult;
+import de.avpod.telegrambot.FlowStatus;
+import de.avpod.telegrambot.PersistentStorageWrapper;
+import de.avpod.telegrambot.UploadedDocument;
+import de.avpod.telegrambot.telegram.UnrecognizedDocumentInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {
+        DynamoDBConfguration.class
+})
+@TestPropertySource(locations = "classpath:application-test.properties", properties = {
+        "aws.dynamodb.documentsLayout=items",
+        "aws.dynamodb.documentsTablename=TelegramBotDocumentsTest"
+})
+public class DynamoDBDocumentItemsWrapperTest {
+
+    @Value("${aws.dynamodb.tablename}")
+    private String tableName;
+
+    @Value("${aws.dynamodb.documentsTablename}")
+    private String documentsTableName;
+
+    @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
+    @Autowired
+    private PersistentStorageWrapper testee;
+
+    @Qualifier("amazonCredentialsDynamobDbWrapper")
+    @Autowired
+    private AmazonDynamoDB dynamoDB;
+
+    private DynamoDBMapper mapper;
+
+    @Before
+    public void loadSampleData() {
+        GlobalSecondaryIndex pendingRecognitionIndex = new GlobalSecondaryIndex()
+                .withIndexName(UserInfo.PENDING_RECOGNITION_INDEX)
+                .withKeySchema(new KeySchemaElement()
+                        .withAttributeName("recognition_pending").withKeyType(KeyType.HASH))
+                .withProjection(new Projection().withProjectionType(ProjectionType.ALL))
+                .withProvisionedThroughput(
+                        new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L));
+        dynamoDB.createTable(new CreateTableRequest()
+                .withTableName(tableName)
+                .withKeySchema(new KeySchemaElement().withAttributeName("username").withKeyType(KeyType.HASH))
+                .withAttributeDefinitions(
+                        new AttributeDefinition().withAttributeName("username").withAttributeType("S"),
+                        new AttributeDefinition().withAttributeName("recognition_pending").withAttributeType("S"))
+                .withProvisionedThroughput(
+                        new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L))
+                .withGlobalSecondaryIndexes(pendingRecognitionIndex));
+        dynamoDB.createTable(new CreateTableRequest()
+                .withTableName(documentsTableName)
+                .withKeySchema(
+                        new KeySchemaElement().withAttributeName("username").withKeyType(KeyType.HASH),
+                        new KeySchemaElement().withAttributeName("id").withKeyType(KeyType.RANGE))
+                .withAttributeDefinitions(
+                        new AttributeDefinition().withAttributeName("username").withAttributeType("S"),
+                        new AttributeDefinition().withAttributeName("id").withAttributeType("S"))
+                .withProvisionedThroughput(
+                        new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L)));
+        dynamoDB.waiters().tableExists().run(new WaiterParameters<>(new DescribeTableRequest(tableName)));
+        dynamoDB.waiters().tableExists().run(new WaiterParameters<>(new DescribeTableRequest(documentsTableName)));
+
+        // user written by the embedded layout, before the documents mask and the counters existed
+        mapper = new DynamoDBMapper(dynamoDB);
+        mapper.save(UserInfo.builder()
+                        .chatId(666L)
+                        .status(FlowStatus.WAITING_FILES.name())
+                        .username("test_user")
+                        .recognitionPending(UserInfo.PENDING_RECOGNITION)
+                        .firstName("Silvester")
+                        .lastName("Stallone")
+                        .documents(Arrays.asList(
+                                StoredDocument.builder()
+                                        .id("myID1")
+                                        .documentType("UNKNOWN")
+                                        .cloudIdentifier("1kPKGKLi0IWKqkCIw15")
+                                        .originalFilename("test-file.pdf")
+                                        .savedFilename("saved-file.pdf")
+                                        .telegramFileId("AAAAAABBBBB")
+                                        .telegramThumbnailId("CCCCAAAAAABBBBB")
+                                        .build(),
+                                StoredDocument.builder()
+                                        .id("myID2")
+                                        .documentType("PASSPORT")
+                                        .cloudIdentifier("2kPKGKLi0IWKqkCIw15")
+                                        .originalFilename("pass-file.pdf")
+                                        .savedFilename("saved-pass-file.pdf")
+                                        .telegramFileId("DDDDDAAAAAABBBBB")
+                                        .telegramThumbnailId("BAAAAATMAAAAN")
+                                        .build()
+                        ))
+                        .build(),
+                userTableConfig());
+    }
+
+    @After
+    public void clean() {
+        dynamoDB.deleteTable(tableName);
+        dynamoDB.deleteTable(documentsTableName);
+        dynamoDB.waiters().tableNotExists().run(new WaiterParameters<>(new DescribeTableRequest(tableName)));
+        dynamoDB.waiters().tableNotExists().run(new WaiterParameters<>(new DescribeTableRequest(documentsTableName)));
+    }
+
+    private DynamoDBMapperConfig userTableConfig() {
+        return new DynamoDBMapperConfig(DynamoDBMapperConfig.TableNameOverride.withTableNameReplacement(tableName));
+    }
+
+    private UserInfo loadUserItem(String username) {
+        return mapper.load(UserInfo.class, username, userTableConfig());
+    }
+
+    private List<StoredDocumentItem> loadDocumentItems(String username) {
+        return mapper.query(StoredDocumentItem.class,
+                new DynamoDBQueryExpression<StoredDocumentItem>()
+                        .withHashKeyValues(StoredDocumentItem.builder().username(username).build())
+                        .withConsistentRead(true),
+                new DynamoDBMapperConfig(
+                        DynamoDBMapperConfig.TableNameOverride.withTableNameReplacement(documentsTableName)));
+    }
+
+    private static UploadedDocument uploadedDocument(String cloudId, ContentFingerprint fingerprint) {
+        return UploadedDocument.builder()
+                .telegramFileId("telegram-" + cloudId)
+                .cloudIdentifier(cloudId)
+                .originalFileName(Optional.empty())
+                .cloudFileName(cloudId + ".jpg")
+                .telegramThumbnailId(Optional.empty())
+                .fingerprint(fingerprint)
+                .build();
+    }
+
+    private static Map<String, Integer> counts(Object... typesAndCounts) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < typesAndCounts.length; i += 2)
+            counts.put(((DocumentType) typesAndCounts[i]).name(), (Integer) typesAndCounts[i + 1]);
+        return counts;
+    }
+
+    @Test
+    public void readsDoNotMigrateEmbeddedDocuments() {
+        UserInfo userInfo = testee.getFullInfo("test_user");
+        assertEquals(2, userInfo.getDocuments().size());
+        assertEquals("Silvester", userInfo.getFirstName());
+        assertEquals(1, testee.queryUnrecognizedDocuments("test_user").size());
+
+        assertEquals(2, loadUserItem("test_user").getDocuments().size());
+        assertNull(loadUserItem("test_user").getDocumentCounts());
+        assertEquals(0, loadDocumentItems("test_user").size());
+    }
+
+    @Test
+    public void embeddedDocumentsAreMigratedOnFirstWrite() {
+        testee.markDocumentAsNotifiedForRecognition("test_user", "myID1");
+
+        UserInfo userItem = loadUserItem("test_user");
+        assertNull(userItem.getDocuments());
+        assertEquals(counts(DocumentType.UNKNOWN_REQUESTED, 1, DocumentType.PASSPORT, 1), userItem.getDocumentCounts());
+        assertEquals(DocumentType.PASSPORT.mask(), (long) userItem.getDocumentsMask());
+        assertEquals(1, (int) userItem.getUnrecognizedCount());
+        assertNull(userItem.getRecognitionPending());
+        List<StoredDocumentItem> items = loadDocumentItems("test_user");
+        assertEquals(2, items.size());
+        Set<String> ids = items.stream().map(StoredDocumentItem::getId).collect(Collectors.toSet());
+        assertEquals(new HashSet<>(Arrays.asList("myID1", "myID2")), ids);
+
+        // a second write finds nothing to migrate
+        testee.updateDocumentType("test_user", "myID1", DocumentType.INN);
+        assertEquals(2, testee.getFullInfo("test_user").getDocuments().size());
+        assertEquals(2, loadDocumentItems("test_user").size());
+        assertEquals(counts(DocumentType.INN, 1, DocumentType.PASSPORT, 1),
+                loadUserItem("test_user").getDocumentCounts());
+    }
+
+    @Test
+    public void migrateAllUsers() {
+        testee.insertUser("test_user_2", "John", "Konnor", 123L, FlowStatus.WAITING_FILES);
+        ((DynamoDBDocumentItemsWrapper) testee).migrateAllUsers();
+
+        assertNull(loadUserItem("test_user").getDocuments());
+        assertEquals(2, loadDocumentItems("test_user").size());
+        assertEquals(counts(DocumentType.UNKNOWN, 1, DocumentType.PASSPORT, 1),
+                loadUserItem("test_user").getDocumentCounts());
+        assertEquals(UserInfo.PENDING_RECOGNITION, loadUserItem("test_user").getRecognitionPending());
+        assertEquals(0, loadDocumentItems("test_user_2").size());
+        assertEquals(Collections.emptyMap(), loadUserItem("test_user_2").getDocumentCounts());
+        assertEquals(FlowStatus.WAITING_FILES, testee.getFlowStatus("test_user_2"));
+    }
+
+    @Test
+    public void saveDocumentItemsUpdatesUserOnce() {
+        List<String> documentIds = testee.saveDocumentsAndUpdateFlowStatus("test_user", Arrays.asList(
+                uploadedDocument("cloudId1", new ContentFingerprint("sha1", Optional.of(0x0F0FL))),
+                uploadedDocument("cloudId2", new ContentFingerprint("sha2", Optional.empty()))
+        ), FlowStatus.WAITING_DOCUMENT_RECOGNITION);
+        assertEquals(2, documentIds.size());
+
+        UserInfo userInfo = testee.getFullInfo("test_user");
+        assertEquals(FlowStatus.WAITING_DOCUMENT_RECOGNITION.name(), userInfo.getStatus());
+        assertEquals(UserInfo.PENDING_RECOGNITION, userInfo.getRecognitionPending());
+        assertEquals(4, userInfo.getDocuments().size());
+        StoredDocument saved = userInfo.getDocuments()
+                .stream()
+                .filter((document) -> document.getId().equals(documentIds.get(0)))
+                .findFirst()
+                .get();
+        assertEquals("cloudId1", saved.getCloudIdentifier());
+        assertEquals(DocumentType.UNKNOWN.name(), saved.getDocumentType());
+        assertEquals("sha1", saved.getContentSha256());
+        assertTrue(testee.getDocumentHashIndex("test_user").contains(new ContentFingerprint("sha2", Optional.empty()), 0));
+        // counted once on the migration and once by the save
+        UserInfo userItem = loadUserItem("test_user");
+        assertEquals(counts(DocumentType.UNKNOWN, 3, DocumentType.PASSPORT, 1), userItem.getDocumentCounts());
+        assertEquals(3, (int) userItem.getUnrecognizedCount());
+    }
+
+    @Test
+    public void newUserNeedsNoMigration() {
+        testee.insertUser("test_user_2", "John", "Konnor", 123L, FlowStatus.WAITING_FILES);
+        String documentId = testee.saveDocumentAndUpdateFlowStatus("test_user_2", "telegramId", "cloudId",
+                Optional.empty(), "cloud-file.pdf", Optional.empty(), FlowStatus.WAITING_DOCUMENT_RECOGNITION);
+        assertEquals(counts(DocumentType.UNKNOWN, 1), loadUserItem("test_user_2").getDocumentCounts());
+
+        assertEquals(FlowStatus.WAITING_FILES,
+                testee.updateDocumentType("test_user_2", documentId, DocumentType.PASSPORT).getFlowStatus());
+        UserInfo userItem = loadUserItem("test_user_2");
+        assertEquals(counts(DocumentType.PASSPORT, 1), userItem.getDocumentCounts());
+        assertEquals(DocumentType.PASSPORT.mask(), (long) userItem.getDocumentsMask());
+        assertNull(userItem.getRecognitionPending());
+    }
+
+    @Test
+    public void saveDocumentNotExistingUserException() {
+        try {
+            testee.saveDocumentInfo("test_user_not_exists", "telegramId", "cloudId",
+                    Optional.empty(), "cloud-file.pdf", Optional.empty());
+            fail("Exception expected");
+        } catch (IllegalStateException ignored) {
+        }
+        assertNull(testee.getFullInfo("test_user_not_exists"));
+        assertEquals(0, loadDocumentItems("test_user_not_exists").size());
+    }
+
+    @Test
+    public void documentTypeChangesUpdateStatusCounters() {
+        assertEquals(FlowStatus.WAITING_FILES,
+                testee.updateDocumentType("test_user", "myID1", DocumentType.INN).getFlowStatus());
+        UserInfo userInfo = loadUserItem("test_user");
+        assertEquals(DocumentType.PASSPORT.mask() | DocumentType.INN.mask(), (long) userInfo.getDocumentsMask());
+        assertEquals(0, (int) userInfo.getUnrecognizedCount());
+        assertNull(userInfo.getRecognitionPending());
+
+        String documentId = testee.saveDocumentAndUpdateFlowStatus("test_user", "telegramId", "cloudId",
+                Optional.empty(), "cloud-file.pdf", Optional.empty(), FlowStatus.WAITING_DOCUMENT_RECOGNITION);
+        assertEquals(1, (int) loadUserItem("test_user").getUnrecognizedCount());
+        assertEquals(FlowStatus.MANDATORY_DOCUMENTS_SUBMITTED,
+                testee.updateDocumentType("test_user", documentId, DocumentType.SNILS).getFlowStatus());
+
+        userInfo = loadUserItem("test_user");
+        assertEquals(0, (int) userInfo.getUnrecognizedCount());
+        assertEquals(FlowStatus.MANDATORY_DOCUMENTS_SUBMITTED.name(), userInfo.getStatus());
+    }
+
+    @Test
+    public void markDocumentAsNotifiedClearsPendingRecognition() {
+        testee.saveDocumentInfo("test_user", "telegramId", "cloudId",
+                Optional.empty(), "cloud-file.pdf", Optional.empty());
+        List<String> unknownIds = testee.queryUnrecognizedDocuments("test_user")
+                .stream()
+                .map(UnrecognizedDocumentInfo::getId)
+                .collect(Collectors.toList());
+        assertEquals(2, unknownIds.size());
+
+        testee.markDocumentAsNotifiedForRecognition("test_user", unknownIds.get(0));
+        UserInfo userInfo = loadUserItem("test_user");
+        assertEquals(UserInfo.PENDING_RECOGNITION, userInfo.getRecognitionPending());
+        assertEquals(2, (int) userInfo.getUnrecognizedCount());
+
+        testee.markDocumentAsNotifiedForRecognition("test_user", unknownIds.get(1));
+        userInfo = loadUserItem("test_user");
+        assertNull(userInfo.getRecognitionPending());
+        assertEquals(2, (int) userInfo.getUnrecognizedCount());
+        assertEquals(FlowStatus.WAITING_DOCUMENT_RECOGNITION.name(), userInfo.getStatus());
+        assertTrue(testee.queryUnrecognizedDocuments("test_user").isEmpty());
+        assertTrue(loadDocumentItems("test_user")
+                .stream()
+                .filter((item) -> unknownIds.contains(item.getId()))
+                .allMatch((item) -> item.getDocumentType().equals(DocumentType.UNKNOWN_REQUESTED.name())));
+
+        Collection<String> usernames = testee.queryUsersForImageRecognition()
+                .stream()
+                .map(UserInfo::getUsername)
+                .collect(Collectors.toList());
+        assertFalse(usernames.toString(), usernames.contains("test_user"));
+    }
+
+    @Test
+    public void deleteDocument() {
+        ContentFingerprint fingerprint = new ContentFingerprint("abc123", Optional.of(0x0F0FL));
+        String documentId = testee.saveDocumentsAndUpdateFlowStatus("test_user",
+                Collections.singletonList(uploadedDocument("cloudId", fingerprint)),
+                FlowStatus.WAITING_DOCUMENT_RECOGNITION).get(0);
+
+        DocumentUpdateResult result = testee.deleteDocument("test_user", documentId);
+        assertEquals(Optional.of("cloudId"), result.getCloudIdentifier());
+        assertFalse(testee.getDocumentHashIndex("test_user").contains(fingerprint, 0));
+        assertEquals(2, loadDocumentItems("test_user").size());
+
+        result = testee.deleteDocument("test_user", "myID2");
+        assertEquals(Optional.of("2kPKGKLi0IWKqkCIw15"), result.getCloudIdentifier());
+        assertEquals(FlowStatus.WAITING_DOCUMENT_RECOGNITION, result.getFlowStatus());
+        UserInfo userInfo = loadUserItem("test_user");
+        assertEquals(0L, (long) userInfo.getDocumentsMask());
+        assertEquals(1, (int) userInfo.getUnrecognizedCount());
+        assertEquals(counts(DocumentType.UNKNOWN, 1), userInfo.getDocumentCounts());
+
+        result = testee.deleteDocument("test_user", "not_existing");
+        assertFalse(result.getCloudIdentifier().isPresent());
+        assertEquals(1, loadDocumentItems("test_user").size());
+    }
+}
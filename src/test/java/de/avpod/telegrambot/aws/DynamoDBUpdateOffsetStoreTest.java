@@ -0,0 +1,53 @@
+package de.avpod.telegrambot.aws;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class DynamoDBUpdateOffsetStoreTest {
+    private static final long MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private DynamoDBMapper mapper;
+    private DynamoDBUpdateOffsetStore testee;
+
+    @Before
+    public void setUp() {
+        mapper = mock(DynamoDBMapper.class);
+        testee = new DynamoDBUpdateOffsetStore(mapper, "test-bot");
+    }
+
+    @Test
+    public void recentOffsetIsLoaded() {
+        savedOffset(42L, System.currentTimeMillis() - MAX_AGE_MILLIS + TimeUnit.MINUTES.toMillis(1));
+
+        assertEquals(Optional.of(42L), testee.load(MAX_AGE_MILLIS));
+    }
+
+    @Test
+    public void offsetOlderThanMaxAgeIsIgnored() {
+        savedOffset(42L, System.currentTimeMillis() - MAX_AGE_MILLIS - TimeUnit.MINUTES.toMillis(1));
+
+        assertEquals(Optional.empty(), testee.load(MAX_AGE_MILLIS));
+    }
+
+    @Test
+    public void missingOffsetIsIgnored() {
+        assertEquals(Optional.empty(), testee.load(MAX_AGE_MILLIS));
+    }
+
+    private void savedOffset(long updateId, long savedAt) {
+        when(mapper.load(eq(TelegramUpdateOffset.class), eq("test-bot"), any(DynamoDBMapperConfig.class)))
+                .thenReturn(TelegramUpdateOffset.builder()
+                        .bot("test-bot")
+                        .updateId(updateId)
+                        .savedAt(savedAt)
+                        .build());
+    }
+}
@@ -3,10 +3,15 @@ package de.avpod.telegrambot.aws;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBSaveExpression;
 import com.amazonaws.services.dynamodbv2.model.*;
 import com.amazonaws.waiters.WaiterParameters;
+import de.avpod.telegrambot.ContentFingerprint;
+import de.avpod.telegrambot.DocumentHashIndex;
+import de.avpod.telegrambot.DocumentType;
 import de.avpod.telegrambot.FlowStatus;
 import de.avpod.telegrambot.PersistentStorageWrapper;
+import de.avpod.telegrambot.UploadedDocument;
 import de.avpod.telegrambot.telegram.UnrecognizedDocumentInfo;
 import org.junit.After;
 import org.junit.Before;
@@ -48,6 +53,7 @@ public class DynamoDBWrapperTest {
     public void loadSampleData() {
         List<AttributeDefinition> attributeDefinitions = new ArrayList<>();
         attributeDefinitions.add(new AttributeDefinition().withAttributeName("username").withAttributeType("S"));
+        attributeDefinitions.add(new AttributeDefinition().withAttributeName("recognition_pending").withAttributeType("S"));
 
         List<KeySchemaElement> keySchema = new ArrayList<>();
         keySchema.add(
@@ -56,9 +62,18 @@ public class DynamoDBWrapperTest {
         );
 
 
+        GlobalSecondaryIndex pendingRecognitionIndex = new GlobalSecondaryIndex()
+                .withIndexName(UserInfo.PENDING_RECOGNITION_INDEX)
+                .withKeySchema(new KeySchemaElement()
+                        .withAttributeName("recognition_pending").withKeyType(KeyType.HASH))
+                .withProjection(new Projection().withProjectionType(ProjectionType.ALL))
+                .withProvisionedThroughput(
+                        new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L));
+
         CreateTableRequest request = new CreateTableRequest().withTableName(tableName).withKeySchema(keySchema)
                 .withAttributeDefinitions(attributeDefinitions).withProvisionedThroughput(
-                        new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L));
+                        new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L))
+                .withGlobalSecondaryIndexes(pendingRecognitionIndex);
 
         dynamoDB.createTable(request);
         dynamoDB.waiters().tableExists().run(new WaiterParameters<>(
@@ -69,6 +84,7 @@ public class DynamoDBWrapperTest {
                         .chatId(666L)
                         .status(FlowStatus.WAITING_FILES.name())
                         .username("test_user")
+                        .recognitionPending(UserInfo.PENDING_RECOGNITION)
                         .firstName("Silvester")
                         .lastName("Stallone")
                         .documents(Arrays.asList(
@@ -115,6 +131,10 @@ public class DynamoDBWrapperTest {
     public void updateFlowStatus() {
         testee.updateFlowStatus("test_user", FlowStatus.FINISHED);
         assertEquals(FlowStatus.FINISHED, testee.getFlowStatus("test_user"));
+        UserInfo userInfo = testee.getFullInfo("test_user");
+        assertNull(userInfo.getRecognitionPending());
+        assertEquals("Silvester", userInfo.getFirstName());
+        assertEquals(2, userInfo.getDocuments().size());
     }
 
     @Test
@@ -141,6 +161,56 @@ public class DynamoDBWrapperTest {
         assertNull(testee.getFullInfo("test_user_not_exists"));
     }
 
+    @Test
+    public void saveDocumentsAndUpdateFlowStatus() {
+        List<String> documentIds = testee.saveDocumentsAndUpdateFlowStatus("test_user", Arrays.asList(
+                UploadedDocument.builder()
+                        .telegramFileId("telegramId1")
+                        .cloudIdentifier("cloudId1")
+                        .originalFileName(Optional.empty())
+                        .cloudFileName("cloud-file1.jpg")
+                        .telegramThumbnailId(Optional.of("telegramThumbnailId1"))
+                        .build(),
+                UploadedDocument.builder()
+                        .telegramFileId("telegramId2")
+                        .cloudIdentifier("cloudId2")
+                        .originalFileName(Optional.empty())
+                        .cloudFileName("cloud-file2.jpg")
+                        .telegramThumbnailId(Optional.of("telegramThumbnailId2"))
+                        .build()
+        ), FlowStatus.WAITING_DOCUMENT_RECOGNITION);
+        assertEquals(2, documentIds.size());
+        UserInfo userInfo = testee.getFullInfo("test_user");
+        assertEquals(FlowStatus.WAITING_DOCUMENT_RECOGNITION.name(), userInfo.getStatus());
+        assertEquals(4, userInfo.getDocuments().size());
+        assertEquals(documentIds.get(0), userInfo.getDocuments().get(2).getId());
+        assertEquals("cloudId1", userInfo.getDocuments().get(2).getCloudIdentifier());
+        assertEquals(documentIds.get(1), userInfo.getDocuments().get(3).getId());
+        assertEquals("telegramThumbnailId2", userInfo.getDocuments().get(3).getTelegramThumbnailId());
+    }
+
+    @Test
+    public void documentHashIndexFollowsSavedAndDeletedDocuments() {
+        ContentFingerprint fingerprint = new ContentFingerprint("abc123", Optional.of(0x0F0FL));
+        String documentId = testee.saveDocumentsAndUpdateFlowStatus("test_user", Collections.singletonList(
+                UploadedDocument.builder()
+                        .telegramFileId("telegramId")
+                        .cloudIdentifier("cloudId")
+                        .originalFileName(Optional.empty())
+                        .cloudFileName("cloud-file.jpg")
+                        .telegramThumbnailId(Optional.empty())
+                        .fingerprint(fingerprint)
+                        .build()
+        ), FlowStatus.WAITING_DOCUMENT_RECOGNITION).get(0);
+        DocumentHashIndex hashIndex = testee.getDocumentHashIndex("test_user");
+        assertTrue(hashIndex.contains(fingerprint, 0));
+        assertTrue(hashIndex.contains(new ContentFingerprint("other", Optional.of(0x0F0EL)), 1));
+        assertFalse(hashIndex.contains(new ContentFingerprint("other", Optional.of(0x0F0EL)), 0));
+
+        testee.deleteDocument("test_user", documentId);
+        assertFalse(testee.getDocumentHashIndex("test_user").contains(fingerprint, 0));
+    }
+
     @Test
     public void saveDocumentExistingUserAppendDocument() {
         testee.saveDocumentInfo("test_user", "telegramId", "cloudId",
@@ -163,6 +233,30 @@ public class DynamoDBWrapperTest {
         assertEquals("telegramId", document.getTelegramFileId());
     }
 
+    @Test
+    public void saveDocumentAndUpdateFlowStatus() {
+        String documentId = testee.saveDocumentAndUpdateFlowStatus("test_user", "telegramId", "cloudId",
+                Optional.of("original.pdf"), "cloud-file.pdf", Optional.empty(),
+                FlowStatus.WAITING_DOCUMENT_RECOGNITION);
+        UserInfo userInfo = testee.getFullInfo("test_user");
+        assertEquals(FlowStatus.WAITING_DOCUMENT_RECOGNITION.name(), userInfo.getStatus());
+        assertEquals(UserInfo.PENDING_RECOGNITION, userInfo.getRecognitionPending());
+        assertEquals(3, userInfo.getDocuments().size());
+        StoredDocument document = userInfo.getDocuments().get(2);
+        assertEquals(documentId, document.getId());
+        assertEquals("UNKNOWN", document.getDocumentType());
+        assertEquals("original.pdf", document.getOriginalFilename());
+        assertNull(document.getTelegramThumbnailId());
+
+        try {
+            testee.saveDocumentAndUpdateFlowStatus("test_user_not_exists", "telegramId", "cloudId",
+                    Optional.empty(), "cloud-file.pdf", Optional.empty(), FlowStatus.WAITING_DOCUMENT_RECOGNITION);
+            fail("Exception expected");
+        } catch (IllegalStateException ignored) {
+        }
+        assertNull(testee.getFullInfo("test_user_not_exists"));
+    }
+
     @Test
     public void queryUsersWithImagesWithUnknwonTypes() {
         mapper.save(UserInfo.builder()
@@ -190,6 +284,7 @@ public class DynamoDBWrapperTest {
                         .chatId(111L)
                         .status(FlowStatus.FINISHED.name())
                         .username("should_not_be_included_finished")
+                        .recognitionPending(UserInfo.PENDING_RECOGNITION)
                         .firstName("Silvester")
                         .lastName("Stallone")
                         .documents(Arrays.asList(
@@ -222,6 +317,7 @@ public class DynamoDBWrapperTest {
                         .chatId(111L)
                         .status(FlowStatus.WAITING_DOCUMENT_RECOGNITION.name())
                         .username("should_be_included")
+                        .recognitionPending(UserInfo.PENDING_RECOGNITION)
                         .firstName("Silvester")
                         .lastName("Stallone")
                         .documents(Arrays.asList(
@@ -247,6 +343,64 @@ public class DynamoDBWrapperTest {
         assertTrue(usernames.toString(), usernames.contains("test_user"));
     }
 
+    @Test
+    public void recognizedDocumentsLeavePendingRecognitionIndex() {
+        testee.updateDocumentType("test_user", "myID1", DocumentType.INN);
+        UserInfo userInfo = testee.getFullInfo("test_user");
+        assertNull(userInfo.getRecognitionPending());
+        Collection<String> usernames = testee.queryUsersForImageRecognition()
+                .stream()
+                .map(UserInfo::getUsername)
+                .collect(Collectors.toList());
+        assertFalse(usernames.toString(), usernames.contains("test_user"));
+    }
+
+    @Test
+    public void documentTypeChangesUpdateDocumentsMask() {
+        assertEquals(FlowStatus.WAITING_FILES,
+                testee.updateDocumentType("test_user", "myID1", DocumentType.INN).getFlowStatus());
+        UserInfo userInfo = testee.getFullInfo("test_user");
+        assertEquals(DocumentType.PASSPORT.mask() | DocumentType.INN.mask(), (long) userInfo.getDocumentsMask());
+        assertEquals(0, (int) userInfo.getUnrecognizedCount());
+
+        String documentId = testee.saveDocumentAndUpdateFlowStatus("test_user", "telegramId", "cloudId",
+                Optional.empty(), "cloud-file.pdf", Optional.empty(), FlowStatus.WAITING_DOCUMENT_RECOGNITION);
+        assertEquals(1, (int) testee.getFullInfo("test_user").getUnrecognizedCount());
+        assertEquals(FlowStatus.MANDATORY_DOCUMENTS_SUBMITTED,
+                testee.updateDocumentType("test_user", documentId, DocumentType.SNILS).getFlowStatus());
+
+        assertEquals(FlowStatus.WAITING_FILES, testee.deleteDocument("test_user", "myID2").getFlowStatus());
+        userInfo = testee.getFullInfo("test_user");
+        assertEquals(DocumentType.INN.mask() | DocumentType.SNILS.mask(), (long) userInfo.getDocumentsMask());
+        assertEquals(FlowStatus.WAITING_FILES.name(), userInfo.getStatus());
+    }
+
+    @Test
+    public void documentChangesKeepConcurrentlyAppendedDocuments() {
+        assertNull(testee.getFullInfo("test_user").getDocumentsVersion());
+        testee.markDocumentAsNotifiedForRecognition("test_user", "myID1");
+        assertEquals(1L, (long) testee.getFullInfo("test_user").getDocumentsVersion());
+
+        UserInfo staleUserInfo = testee.getFullInfo("test_user");
+        testee.saveDocumentInfo("test_user", "telegramId", "cloudId",
+                Optional.empty(), "cloud-file.pdf", Optional.empty());
+        assertEquals(2L, (long) testee.getFullInfo("test_user").getDocumentsVersion());
+        try {
+            mapper.save(staleUserInfo,
+                    new DynamoDBSaveExpression().withExpectedEntry("documents_version",
+                            new ExpectedAttributeValue(new AttributeValue().withN("1"))),
+                    new DynamoDBMapperConfig(DynamoDBMapperConfig.TableNameOverride.withTableNameReplacement(tableName)));
+            fail("Exception expected");
+        } catch (ConditionalCheckFailedException ignored) {
+        }
+
+        testee.deleteDocument("test_user", "myID2");
+        UserInfo userInfo = testee.getFullInfo("test_user");
+        assertEquals(3L, (long) userInfo.getDocumentsVersion());
+        assertEquals(2, userInfo.getDocuments().size());
+        assertEquals(1, (int) userInfo.getUnrecognizedCount());
+    }
+
     @Test
     public void queryUnrecognizedDocuments() {
         List<UnrecognizedDocumentInfo> documentInfos = testee.queryUnrecognizedDocuments("test_user");
@@ -0,0 +1,118 @@
+package de.avpod.telegrambot.google;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static de.avpod.telegrambot.google.DriveCircuitBreaker.State.CLOSED;
+import static de.avpod.telegrambot.google.DriveCircuitBreaker.State.HALF_OPEN;
+import static de.avpod.telegrambot.google.DriveCircuitBreaker.State.OPEN;
+import static org.junit.Assert.*;
+
+public class DriveCircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailuresOnly() {
+        DriveCircuitBreaker testee = new DriveCircuitBreaker(3, 10_000, 0, 0);
+        degrade(testee, 2);
+        testee.acquire();
+        testee.onAvailable();
+        degrade(testee, 2);
+        assertEquals(CLOSED, testee.getState());
+
+        degrade(testee, 1);
+        assertEquals(OPEN, testee.getState());
+        assertUnavailable(testee);
+    }
+
+    @Test
+    public void successfulProbeClosesCircuit() throws Exception {
+        DriveCircuitBreaker testee = new DriveCircuitBreaker(1, 100, 0, 0);
+        degrade(testee, 1);
+        Thread.sleep(150);
+
+        testee.acquire();
+        assertEquals(HALF_OPEN, testee.getState());
+        // only a single probe is let through
+        assertUnavailable(testee);
+
+        testee.onAvailable();
+        assertEquals(CLOSED, testee.getState());
+        testee.acquire();
+        testee.onAvailable();
+    }
+
+    @Test
+    public void failedProbeOpensCircuitAgain() throws Exception {
+        DriveCircuitBreaker testee = new DriveCircuitBreaker(5, 100, 0, 0);
+        degrade(testee, 5);
+        Thread.sleep(150);
+
+        testee.acquire();
+        testee.onDegraded();
+        assertEquals(OPEN, testee.getState());
+        assertUnavailable(testee);
+    }
+
+    @Test
+    public void abandonedProbeLetsNextCallProbe() throws Exception {
+        DriveCircuitBreaker testee = new DriveCircuitBreaker(1, 100, 0, 0);
+        degrade(testee, 1);
+        Thread.sleep(150);
+
+        testee.acquire();
+        testee.onAbandoned();
+        assertEquals(HALF_OPEN, testee.getState());
+
+        testee.acquire();
+        testee.onAvailable();
+        assertEquals(CLOSED, testee.getState());
+    }
+
+    @Test
+    public void queuedCallsWaitForCircuitToClose() throws Exception {
+        DriveCircuitBreaker testee = new DriveCircuitBreaker(1, 300, 1, 5000);
+        degrade(testee, 1);
+
+        CompletableFuture<Void> queued = CompletableFuture.runAsync(testee::acquire);
+        while (testee.getQueuedCalls() == 0)
+            Thread.sleep(10);
+        // the queue is full, further calls fail fast
+        assertUnavailable(testee);
+
+        // the waiting call becomes the probe once the circuit is half open
+        queued.get(5, TimeUnit.SECONDS);
+        assertEquals(HALF_OPEN, testee.getState());
+        assertEquals(0, testee.getQueuedCalls());
+        testee.onAvailable();
+        assertEquals(CLOSED, testee.getState());
+    }
+
+    @Test
+    public void callsWhichCannotWaitUntilHalfOpenFailFast() {
+        DriveCircuitBreaker testee = new DriveCircuitBreaker(1, 10_000, 10, 100);
+        degrade(testee, 1);
+
+        long start = System.nanoTime();
+        assertUnavailable(testee);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, testee.getQueuedCalls());
+    }
+
+    private static void degrade(DriveCircuitBreaker testee, int failures) {
+        for (int i = 0; i < failures; i++) {
+            testee.acquire();
+            testee.onDegraded();
+        }
+    }
+
+    private static void assertUnavailable(DriveCircuitBreaker testee) {
+        try {
+            testee.acquire();
+            fail("Exception expected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("unavailable"));
+        }
+    }
+}
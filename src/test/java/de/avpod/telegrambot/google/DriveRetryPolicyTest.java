@@ -0,0 +1,100 @@
+package de.avpod.telegrambot.google;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class DriveRetryPolicyTest {
+    private final DriveRetryPolicy testee = new DriveRetryPolicy(5, 100, 1000);
+
+    @Test
+    public void transientFailuresAreRetried() {
+        assertEquals(Optional.of("socket"), testee.retryReason(new SocketException("Connection reset")));
+        assertEquals(Optional.of("socket"), testee.retryReason(new SocketTimeoutException("Read timed out")));
+        assertEquals(Optional.of("rate_limit"), testee.retryReason(httpError(429, null)));
+        assertEquals(Optional.of("rate_limit"), testee.retryReason(forbidden("userRateLimitExceeded")));
+        assertEquals(Optional.of("rate_limit"), testee.retryReason(forbidden("rateLimitExceeded")));
+        assertEquals(Optional.of("server_error"), testee.retryReason(httpError(500, null)));
+        assertEquals(Optional.of("server_error"), testee.retryReason(httpError(503, null)));
+    }
+
+    @Test
+    public void permanentFailuresAreNotRetried() {
+        assertEquals(Optional.empty(), testee.retryReason(httpError(400, null)));
+        assertEquals(Optional.empty(), testee.retryReason(httpError(403, null)));
+        assertEquals(Optional.empty(), testee.retryReason(httpError(404, null)));
+        assertEquals(Optional.empty(), testee.retryReason(forbidden("insufficientPermissions")));
+        assertEquals(Optional.empty(), testee.retryReason(new IOException("Unexpected end of stream")));
+        assertEquals(Optional.empty(), testee.retryReason(new IllegalStateException("Bug")));
+    }
+
+    @Test
+    public void delayIsJitteredUpToExponentialCeiling() {
+        Exception e = httpError(503, null);
+        for (int attempt = 0; attempt < 10; attempt++) {
+            long ceiling = Math.min(1000, 100L << attempt);
+            long max = 0;
+            for (int i = 0; i < 1000; i++) {
+                long delay = testee.delayMillis(attempt, e);
+                assertTrue(delay >= 0);
+                assertTrue(delay <= ceiling);
+                max = Math.max(max, delay);
+            }
+            // full jitter spreads the delays over the whole range
+            assertTrue(max > ceiling / 2);
+        }
+        assertTrue(testee.delayMillis(100, e) <= 1000);
+    }
+
+    @Test
+    public void retryAfterSecondsIsTheMinimumDelay() {
+        Exception e = httpError(429, " 3 ");
+        for (int i = 0; i < 100; i++)
+            assertEquals(3000, testee.delayMillis(0, e));
+    }
+
+    @Test
+    public void retryAfterDateIsTheMinimumDelay() {
+        String retryAt = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(10));
+        long delay = testee.delayMillis(0, httpError(503, retryAt));
+        assertTrue(delay > 8000);
+        assertTrue(delay <= 10000);
+
+        String past = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).minusSeconds(10));
+        assertTrue(testee.delayMillis(0, httpError(503, past)) <= 100);
+    }
+
+    @Test
+    public void invalidRetryAfterIsIgnored() {
+        assertTrue(testee.delayMillis(0, httpError(429, "soon")) <= 100);
+        assertTrue(testee.delayMillis(0, httpError(429, "")) <= 100);
+    }
+
+    private static HttpResponseException httpError(int statusCode, String retryAfter) {
+        return new HttpResponseException.Builder(statusCode, "Error", new HttpHeaders().setRetryAfter(retryAfter))
+                .build();
+    }
+
+    private static GoogleJsonResponseException forbidden(String reason) {
+        GoogleJsonError.ErrorInfo errorInfo = new GoogleJsonError.ErrorInfo();
+        errorInfo.setReason(reason);
+        GoogleJsonError details = new GoogleJsonError();
+        details.setCode(403);
+        details.setErrors(Collections.singletonList(errorInfo));
+        return new GoogleJsonResponseException(
+                new HttpResponseException.Builder(403, "Forbidden", new HttpHeaders()), details);
+    }
+}
@@ -0,0 +1,109 @@
+package de.avpod.telegrambot.telegram;
+
+import de.avpod.telegrambot.DocumentType;
+import de.avpod.telegrambot.RecognizeDocumentCallbackData;
+import org.junit.Test;
+
+import java.util.Base64;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class CallbackDataCodecTest {
+    private final CallbackDataCodec testee = new CallbackDataCodec("test-secret", 3600);
+
+    @Test
+    public void documentTypeRoundTrip() {
+        String documentId = UUID.randomUUID().toString();
+        String encoded = testee.encode("test_user", documentId, Optional.of(DocumentType.PASSPORT));
+
+        CallbackLookupResult result = testee.decode("test_user", encoded);
+        assertEquals(CallbackLookupResult.Status.FOUND, result.getStatus());
+        RecognizeDocumentCallbackData callbackData = result.getCallbackData().get();
+        assertEquals(DocumentType.PASSPORT, callbackData.getDocumentType());
+        assertFalse(callbackData.isDeleteRequested());
+        assertEquals(documentId, callbackData.getDocumentId());
+    }
+
+    @Test
+    public void deleteRoundTrip() {
+        String encoded = testee.encode("test_user", "myID1", Optional.empty());
+
+        RecognizeDocumentCallbackData callbackData = testee.decode("test_user", encoded).getCallbackData().get();
+        assertNull(callbackData.getDocumentType());
+        assertTrue(callbackData.isDeleteRequested());
+        assertEquals("myID1", callbackData.getDocumentId());
+    }
+
+    @Test
+    public void uuidAndUtf8KeyFormats() {
+        String uuid = UUID.randomUUID().toString();
+        String uuidEncoded = testee.encode("test_user", uuid, Optional.of(DocumentType.INN));
+        // 16 bytes instead of the 36 characters of the canonical form
+        assertEquals(40, uuidEncoded.length());
+        assertEquals(uuid, testee.decode("test_user", uuidEncoded).getCallbackData().get().getDocumentId());
+
+        String utf8Encoded = testee.encode("test_user", "myID1", Optional.of(DocumentType.INN));
+        assertEquals(26, utf8Encoded.length());
+        assertEquals("myID1", testee.decode("test_user", utf8Encoded).getCallbackData().get().getDocumentId());
+        try {
+            // not the canonical form, so it is kept as text and does not fit
+            testee.encode("test_user", uuid.toUpperCase(), Optional.of(DocumentType.INN));
+            fail("Exception expected");
+        } catch (IllegalArgumentException ignored) {
+        }
+        String nonAsciiId = "dokument-\u00fc";
+        assertEquals(nonAsciiId, testee.decode("test_user",
+                testee.encode("test_user", nonAsciiId, Optional.empty())).getCallbackData().get().getDocumentId());
+    }
+
+    @Test
+    public void tamperedDataIsNotFound() {
+        String encoded = testee.encode("test_user", "myID1", Optional.of(DocumentType.PASSPORT));
+        byte[] data = Base64.getUrlDecoder().decode(encoded);
+        data[0] = (byte) DocumentType.INN.ordinal();
+        String tampered = Base64.getUrlEncoder().withoutPadding().encodeToString(data);
+
+        assertEquals(CallbackLookupResult.Status.NOT_FOUND, testee.decode("test_user", tampered).getStatus());
+        assertEquals(CallbackLookupResult.Status.NOT_FOUND, testee.decode("other_user", encoded).getStatus());
+        assertEquals(CallbackLookupResult.Status.NOT_FOUND,
+                new CallbackDataCodec("other-secret", 3600).decode("test_user", encoded).getStatus());
+        assertEquals(CallbackLookupResult.Status.NOT_FOUND, testee.decode("test_user", "not base64!").getStatus());
+        assertEquals(CallbackLookupResult.Status.NOT_FOUND, testee.decode("test_user", "AAAA").getStatus());
+        assertFalse(testee.decode("test_user", tampered).getCallbackData().isPresent());
+    }
+
+    @Test
+    public void expiredDataKeepsAnswer() {
+        CallbackDataCodec expiringCodec = new CallbackDataCodec("test-secret", -1);
+        String encoded = expiringCodec.encode("test_user", "myID1", Optional.of(DocumentType.SNILS));
+
+        CallbackLookupResult result = expiringCodec.decode("test_user", encoded);
+        assertEquals(CallbackLookupResult.Status.EXPIRED, result.getStatus());
+        assertEquals("myID1", result.getCallbackData().get().getDocumentId());
+        assertEquals(DocumentType.SNILS, result.getCallbackData().get().getDocumentType());
+        assertEquals(CallbackLookupResult.Status.FOUND, testee.decode("test_user", encoded).getStatus());
+    }
+
+    @Test
+    public void callbackDataLengthIsLimited() {
+        String longestId = repeat('a', 34);
+        String encoded = testee.encode("test_user", longestId, Optional.of(DocumentType.PASSPORT));
+        assertEquals(CallbackDataCodec.MAX_CALLBACK_DATA_LENGTH, encoded.length());
+        assertEquals(longestId, testee.decode("test_user", encoded).getCallbackData().get().getDocumentId());
+
+        try {
+            testee.encode("test_user", longestId + "a", Optional.of(DocumentType.PASSPORT));
+            fail("Exception expected");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    private static String repeat(char character, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++)
+            builder.append(character);
+        return builder.toString();
+    }
+}
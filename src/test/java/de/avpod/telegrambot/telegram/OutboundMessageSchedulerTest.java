@@ -0,0 +1,165 @@
+package de.avpod.telegrambot.telegram;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static de.avpod.telegrambot.telegram.OutboundMessageScheduler.Priority.RECOGNITION_PROMPT;
+import static de.avpod.telegrambot.telegram.OutboundMessageScheduler.Priority.USER_REPLY;
+import static org.junit.Assert.*;
+
+public class OutboundMessageSchedulerTest {
+    private OutboundMessageScheduler testee;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (testee != null)
+            testee.shutdown(0);
+    }
+
+    @Test
+    public void messagesOfOneChatAreSentInOrder() throws Exception {
+        testee = new OutboundMessageScheduler(null, 1000, 100, 1000, 100, 4, 0);
+        List<Integer> sent = Collections.synchronizedList(new ArrayList<>());
+
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            int index = i;
+            futures.add(testee.send(1, USER_REPLY, (sender) -> {
+                sent.add(index);
+                return index;
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++)
+            assertEquals(i, (int) futures.get(i).get(5, TimeUnit.SECONDS));
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            expected.add(i);
+        assertEquals(expected, sent);
+        assertEquals(0, testee.getQueueDepth());
+        assertEquals(20, testee.getSentCount());
+    }
+
+    @Test
+    public void higherPriorityGoesFirstBetweenChats() throws Exception {
+        // one token per 200ms, both messages are queued while the first one holds the only token
+        testee = new OutboundMessageScheduler(null, 5, 1, 1000, 10, 1, 0);
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+
+        CompletableFuture<String> first = testee.send(1, USER_REPLY, (sender) -> record(sent, "first"));
+        first.get(5, TimeUnit.SECONDS);
+        CompletableFuture<String> prompt = testee.send(2, RECOGNITION_PROMPT, (sender) -> record(sent, "prompt"));
+        CompletableFuture<String> reply = testee.send(3, USER_REPLY, (sender) -> record(sent, "reply"));
+
+        prompt.get(5, TimeUnit.SECONDS);
+        reply.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("first", "reply", "prompt"), sent);
+    }
+
+    @Test
+    public void rateLimitedMessageIsRetriedAndPausesOtherChats() throws Exception {
+        testee = new OutboundMessageScheduler(null, 1000, 100, 1000, 100, 2, 3);
+        AtomicInteger attempts = new AtomicInteger();
+        long[] sentAt = new long[2];
+
+        long start = System.nanoTime();
+        CompletableFuture<String> limited = testee.send(1, USER_REPLY, (sender) -> {
+            if (attempts.incrementAndGet() == 1)
+                throw tooManyRequests(1);
+            sentAt[0] = System.nanoTime();
+            return "limited";
+        });
+        while (testee.getRateLimitedCount() == 0)
+            Thread.sleep(10);
+        // lets the sender thread block the buckets after counting the 429
+        Thread.sleep(100);
+        CompletableFuture<String> other = testee.send(2, USER_REPLY, (sender) -> {
+            sentAt[1] = System.nanoTime();
+            return "other";
+        });
+        assertEquals("other", other.get(5, TimeUnit.SECONDS));
+        assertEquals("limited", limited.get(5, TimeUnit.SECONDS));
+
+        assertEquals(2, attempts.get());
+        assertEquals(1, testee.getRateLimitedCount());
+        assertTrue(sentAt[0] - start >= TimeUnit.SECONDS.toNanos(1));
+        assertTrue(sentAt[1] - start >= TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void rateLimitedMessageFailsAfterMaxRetries() throws Exception {
+        testee = new OutboundMessageScheduler(null, 1000, 100, 1000, 100, 1, 0);
+
+        CompletableFuture<String> limited = testee.send(1, USER_REPLY, (sender) -> {
+            throw tooManyRequests(1);
+        });
+        try {
+            limited.get(5, TimeUnit.SECONDS);
+            fail("Exception expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TelegramApiRequestException);
+        }
+        assertEquals(1, testee.getFailedCount());
+        assertEquals(0, testee.getQueueDepth());
+    }
+
+    @Test
+    public void shutdownCompletesQueuedAndDroppedMessages() throws Exception {
+        testee = new OutboundMessageScheduler(null, 1000, 100, 1000, 100, 1, 0);
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> blocking = testee.send(1, USER_REPLY, (sender) -> {
+            sending.countDown();
+            // like a blocking HTTP call, the interrupt of the shutdown is not noticed
+            while (release.getCount() > 0) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+            return "blocking";
+        });
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        // dispatched to the busy sender pool or still queued
+        List<CompletableFuture<String>> waiting = new ArrayList<>();
+        for (int chatId = 2; chatId < 6; chatId++)
+            waiting.add(testee.send(chatId, USER_REPLY, (sender) -> "waiting"));
+        waiting.add(testee.send(1, USER_REPLY, (sender) -> "waiting"));
+
+        assertEquals(6, testee.shutdown(0));
+        for (CompletableFuture<String> future : waiting)
+            assertTrue(future.isCompletedExceptionally());
+        assertTrue(testee.send(7, USER_REPLY, (sender) -> "late").isCompletedExceptionally());
+
+        release.countDown();
+        assertEquals("blocking", blocking.get(5, TimeUnit.SECONDS));
+        assertEquals(0, testee.getQueueDepth());
+        testee = null;
+    }
+
+    private static String record(List<String> sent, String name) {
+        sent.add(name);
+        return name;
+    }
+
+    private static TelegramApiRequestException tooManyRequests(int retryAfterSeconds) {
+        return new TelegramApiRequestException("Error sending message", new JSONObject()
+                .put("ok", false)
+                .put("error_code", 429)
+                .put("description", "Too Many Requests: retry after " + retryAfterSeconds)
+                .put("parameters", new JSONObject().put("retry_after", retryAfterSeconds)));
+    }
+}
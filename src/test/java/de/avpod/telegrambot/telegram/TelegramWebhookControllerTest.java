@@ -0,0 +1,102 @@
+package de.avpod.telegrambot.telegram;
+
+import de.avpod.telegrambot.AvpodBot;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.util.StreamUtils;
+import org.telegram.telegrambots.api.objects.Update;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class TelegramWebhookControllerTest {
+    private static final String WEBHOOK_PATH = "/telegram/webhook";
+    private static final String SECRET = "test-secret";
+
+    private AvpodBot bot;
+    private MockMvc mockMvc;
+
+    @Before
+    public void setUp() {
+        bot = mock(AvpodBot.class);
+        mockMvc = MockMvcBuilders.standaloneSetup(new TelegramWebhookController(bot, SECRET))
+                .addPlaceholderValue("telegram.webhook.path", WEBHOOK_PATH)
+                .build();
+    }
+
+    @Test
+    public void recordedUpdatesAreDispatchedToBot() throws Exception {
+        postUpdate("updates/text-message.json", SECRET, 200);
+        postUpdate("updates/photo-message.json", SECRET, 200);
+        postUpdate("updates/callback-query.json", SECRET, 200);
+
+        ArgumentCaptor<List<Update>> updates = ArgumentCaptor.forClass(List.class);
+        verify(bot, times(3)).submitUpdates(updates.capture());
+        List<Update> received = updates.getAllValues().stream()
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+
+        assertEquals(836512001, (int) received.get(0).getUpdateId());
+        assertEquals("Finish", received.get(0).getMessage().getText());
+        assertEquals("test_user", received.get(0).getMessage().getFrom().getUserName());
+
+        assertTrue(received.get(1).getMessage().hasPhoto());
+        assertEquals(3, received.get(1).getMessage().getPhoto().size());
+
+        assertTrue(received.get(2).hasCallbackQuery());
+        assertEquals("0b8f7c2e-5d43-4c6a-9d1e-7a0f3c2b1d9e", received.get(2).getCallbackQuery().getData());
+    }
+
+    @Test
+    public void updatesWithWrongSecretAreRejected() throws Exception {
+        postUpdate("updates/text-message.json", "wrong-secret", 401);
+        postUpdate("updates/text-message.json", null, 401);
+
+        verify(bot, never()).submitUpdates(any());
+    }
+
+    @Test
+    public void updatesDuringShutdownAreLeftForRedelivery() throws Exception {
+        when(bot.isStopped()).thenReturn(true);
+
+        postUpdate("updates/text-message.json", SECRET, 503);
+
+        verify(bot, never()).submitUpdates(any());
+    }
+
+    @Test
+    public void updatesRejectedByBotAreLeftForRedelivery() throws Exception {
+        when(bot.submitUpdates(any())).thenAnswer((invocation) -> invocation.getArgument(0));
+
+        postUpdate("updates/text-message.json", SECRET, 429);
+
+        verify(bot).submitUpdates(any());
+    }
+
+    private void postUpdate(String resource, String secret, int expectedStatus) throws Exception {
+        MockHttpServletRequestBuilder request = post(WEBHOOK_PATH)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(read(resource));
+        if (secret != null)
+            request.header(TelegramWebhookController.SECRET_TOKEN_HEADER, secret);
+
+        mockMvc.perform(request).andExpect(status().is(expectedStatus));
+    }
+
+    private static String read(String resource) throws IOException {
+        return StreamUtils.copyToString(new ClassPathResource(resource).getInputStream(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,72 @@
+package de.avpod.telegrambot.telegram;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void burstIsAvailableAtOnceThenRefillsAtRate() {
+        TokenBucket testee = new TokenBucket(1, 2, 0);
+        assertTrue(testee.isFull(0));
+
+        assertEquals(0, testee.nanosUntilAvailable(0));
+        testee.take(0);
+        assertEquals(0, testee.nanosUntilAvailable(0));
+        testee.take(0);
+        assertEquals(SECOND, testee.nanosUntilAvailable(0), 1);
+        assertEquals(SECOND / 2, testee.nanosUntilAvailable(SECOND / 2), 1);
+
+        assertEquals(0, testee.nanosUntilAvailable(SECOND));
+        assertFalse(testee.isFull(SECOND));
+        assertTrue(testee.isFull(2 * SECOND));
+        // never refilled above the burst
+        assertTrue(testee.isFull(10 * SECOND));
+        testee.take(10 * SECOND);
+        testee.take(10 * SECOND);
+        assertTrue(testee.nanosUntilAvailable(10 * SECOND) > 0);
+    }
+
+    @Test
+    public void blockEmptiesBucketUntilItEnds() {
+        TokenBucket testee = new TokenBucket(1, 5, 0);
+        testee.blockFor(3 * SECOND, 0);
+
+        assertEquals(3 * SECOND, testee.nanosUntilAvailable(0));
+        assertEquals(SECOND, testee.nanosUntilAvailable(2 * SECOND));
+        assertFalse(testee.isFull(3 * SECOND));
+        // nothing is refilled while blocked
+        assertEquals(SECOND, testee.nanosUntilAvailable(3 * SECOND), 1);
+        assertEquals(0, testee.nanosUntilAvailable(4 * SECOND));
+    }
+
+    @Test
+    public void shorterBlockKeepsLongerOne() {
+        TokenBucket testee = new TokenBucket(1, 1, 0);
+        testee.blockFor(10 * SECOND, 0);
+        testee.blockFor(SECOND, SECOND);
+
+        assertEquals(9 * SECOND, testee.nanosUntilAvailable(SECOND));
+        testee.blockFor(20 * SECOND, 2 * SECOND);
+        assertEquals(20 * SECOND, testee.nanosUntilAvailable(2 * SECOND));
+    }
+
+    @Test
+    public void nanoTimeOverflowIsHandled() {
+        long start = Long.MAX_VALUE - SECOND / 2;
+        TokenBucket testee = new TokenBucket(1, 1, start);
+        testee.take(start);
+        assertEquals(SECOND, testee.nanosUntilAvailable(start), 1);
+
+        long afterOverflow = start + SECOND;
+        assertTrue(afterOverflow < 0);
+        assertEquals(0, testee.nanosUntilAvailable(afterOverflow));
+
+        testee.blockFor(SECOND, afterOverflow);
+        assertEquals(SECOND, testee.nanosUntilAvailable(afterOverflow));
+    }
+}
@@ -0,0 +1,196 @@
+package de.avpod.telegrambot.telegram;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.avpod.telegrambot.UpdateOffsetStore;
+import org.junit.After;
+import org.junit.Test;
+import org.telegram.telegrambots.api.objects.Update;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class UpdateDeduplicatorTest {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private UpdateDeduplicator testee;
+
+    @After
+    public void tearDown() {
+        if (testee != null)
+            testee.shutdown();
+    }
+
+    @Test
+    public void redeliveredUpdatesAndCallbacksAreDropped() throws Exception {
+        testee = new UpdateDeduplicator(10, Optional.empty(), 0);
+
+        assertTrue(testee.accept(message(1)));
+        assertFalse(testee.accept(message(1)));
+        assertTrue(testee.accept(callback(2, "query")));
+        // the same button press delivered with another update id
+        assertFalse(testee.accept(callback(3, "query")));
+        assertTrue(testee.accept(callback(4, "other")));
+    }
+
+    @Test
+    public void windowKeepsOnlyRecentIds() throws Exception {
+        testee = new UpdateDeduplicator(3, Optional.empty(), 0);
+        for (int updateId = 1; updateId <= 4; updateId++)
+            assertTrue(testee.accept(message(updateId)));
+
+        assertTrue(testee.accept(message(1)));
+        assertFalse(testee.accept(message(4)));
+    }
+
+    @Test
+    public void releasedUpdateIsAcceptedAgain() throws Exception {
+        testee = new UpdateDeduplicator(10, Optional.empty(), 0);
+        Update update = callback(1, "query");
+        assertTrue(testee.accept(update));
+
+        testee.release(update);
+        assertTrue(testee.accept(callback(1, "query")));
+    }
+
+    @Test
+    public void offsetStopsBeforeOldestUpdateInFlight() throws Exception {
+        testee = new UpdateDeduplicator(10, Optional.empty(), 0);
+        Update first = message(5);
+        Update second = message(6);
+        Update third = message(7);
+        testee.accept(first);
+        testee.accept(second);
+        testee.accept(third);
+        assertEquals(4, testee.processedOffset());
+
+        testee.processed(second);
+        testee.processed(third);
+        assertEquals(4, testee.processedOffset());
+
+        testee.processed(first);
+        assertEquals(7, testee.processedOffset());
+    }
+
+    @Test
+    public void offsetIsSavedOnlyWhenItMoved() throws Exception {
+        RecordingOffsetStore store = new RecordingOffsetStore(Optional.empty());
+        testee = new UpdateDeduplicator(10, Optional.of(store), 0);
+        Update first = message(10);
+        Update second = message(11);
+        testee.accept(first);
+        testee.accept(second);
+
+        testee.processed(second);
+        // nothing is saved on the thread which finished the update
+        assertEquals(Collections.emptyList(), store.saved);
+        testee.saveOffset();
+        assertEquals(Collections.singletonList(9L), store.saved);
+
+        testee.saveOffset();
+        testee.processed(first);
+        testee.saveOffset();
+        assertEquals(Arrays.asList(9L, 11L), store.saved);
+    }
+
+    @Test
+    public void failedSaveIsRetried() throws Exception {
+        RecordingOffsetStore store = new RecordingOffsetStore(Optional.empty());
+        testee = new UpdateDeduplicator(10, Optional.of(store), 0);
+        store.failing = true;
+        Update update = message(1);
+        testee.accept(update);
+        testee.processed(update);
+
+        testee.saveOffset();
+        store.failing = false;
+        testee.saveOffset();
+        assertEquals(Collections.singletonList(1L), store.saved);
+    }
+
+    @Test
+    public void offsetIsSavedInBackground() throws Exception {
+        RecordingOffsetStore store = new RecordingOffsetStore(Optional.empty());
+        testee = new UpdateDeduplicator(10, Optional.of(store), 20);
+        Update update = message(3);
+        testee.accept(update);
+        testee.processed(update);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.saved.isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(Collections.singletonList(3L), store.saved);
+    }
+
+    @Test
+    public void updatesUpToRestoredOffsetAreDropped() throws Exception {
+        RecordingOffsetStore store = new RecordingOffsetStore(Optional.of(100L));
+        testee = new UpdateDeduplicator(10, Optional.of(store), 0);
+
+        assertEquals(UpdateDeduplicator.OFFSET_MAX_AGE_MILLIS, store.maxAgeMillis);
+        assertEquals(24 * 60 * 60 * 1000L, store.maxAgeMillis);
+        assertFalse(testee.accept(message(99)));
+        assertFalse(testee.accept(message(100)));
+        assertTrue(testee.accept(message(101)));
+
+        // the restored offset is not saved again
+        testee.saveOffset();
+        assertEquals(Collections.emptyList(), store.saved);
+    }
+
+    @Test
+    public void expiredOrUnreadableOffsetDropsNothing() throws Exception {
+        testee = new UpdateDeduplicator(10, Optional.of(new RecordingOffsetStore(Optional.empty())), 0);
+        assertTrue(testee.accept(message(1)));
+        testee.shutdown();
+
+        RecordingOffsetStore failing = new RecordingOffsetStore(Optional.of(100L));
+        failing.failing = true;
+        testee = new UpdateDeduplicator(10, Optional.of(failing), 0);
+        assertTrue(testee.accept(message(1)));
+    }
+
+    private static Update message(int updateId) throws IOException {
+        return OBJECT_MAPPER.readValue("{\"update_id\":" + updateId + "," +
+                "\"message\":{\"message_id\":" + updateId + ",\"date\":0,\"text\":\"Finish\"," +
+                "\"chat\":{\"id\":1,\"type\":\"private\"}," +
+                "\"from\":{\"id\":1,\"first_name\":\"Test\",\"username\":\"test_user\"}}}", Update.class);
+    }
+
+    private static Update callback(int updateId, String callbackQueryId) throws IOException {
+        return OBJECT_MAPPER.readValue("{\"update_id\":" + updateId + "," +
+                "\"callback_query\":{\"id\":\"" + callbackQueryId + "\",\"data\":\"data\"," +
+                "\"from\":{\"id\":1,\"first_name\":\"Test\",\"username\":\"test_user\"}}}", Update.class);
+    }
+
+    private static class RecordingOffsetStore implements UpdateOffsetStore {
+        private final Optional<Long> loaded;
+        private final List<Long> saved = Collections.synchronizedList(new ArrayList<>());
+        private volatile boolean failing;
+        private long maxAgeMillis;
+
+        private RecordingOffsetStore(Optional<Long> loaded) {
+            this.loaded = loaded;
+        }
+
+        @Override
+        public Optional<Long> load(long maxAgeMillis) {
+            this.maxAgeMillis = maxAgeMillis;
+            if (failing)
+                throw new IllegalStateException("Table is not available");
+            return loaded;
+        }
+
+        @Override
+        public void save(long updateId) {
+            if (failing)
+                throw new IllegalStateException("Table is not available");
+            saved.add(updateId);
+        }
+    }
+}